@@ -4,11 +4,26 @@ import android.content.Context;
 import android.util.Log;
 
 import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.Priority;
 import com.comandulli.lib.sqlite.ContractDatabase;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Analyst is responsible for handling all logs incoming.
@@ -24,7 +39,7 @@ public class ActionAnalyst {
     public static ActionAnalyst currentAnalyst;
 
     private List<Event> pending = new ArrayList<>();
-    private List<Event> toSync = new ArrayList<>();
+    private volatile List<Event> toSync = new ArrayList<>();
     private final Hashtable<String, ActionSurvey> availableSurveys = new Hashtable<>();
     private ActionSurvey defaultSurvey;
     /**
@@ -36,6 +51,30 @@ public class ActionAnalyst {
      */
     protected boolean surveying;
     private final Context context;
+    private EventRetention retention;
+    private EventRateControl rateControl;
+    private volatile EventClock clock;
+    private EventCoalescer coalescer;
+    private AnalyzeQueue analyzeQueue;
+    private final EventContext eventContext;
+    private final ConcurrentHashMap<Integer, Long> pendingTimeouts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ActionSurvey> expiringSurveys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, TimerWheel.Timeout> scheduledTimeouts = new ConcurrentHashMap<>();
+    private TimerWheel timerWheel;
+    private boolean compactBacklog;
+    private volatile AnalystExecutors executors = new AnalystExecutors();
+    private final List<EventObserver> observers = new CopyOnWriteArrayList<>();
+    private final List<EventObserver> recordObservers = new CopyOnWriteArrayList<>();
+    private final Set<Integer> excludedFromSync = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicIntegerArray syncSizes = new AtomicIntegerArray(Priority.values().length);
+    private boolean evicting;
+    private boolean reevict;
+    private Set<Long> restoring;
+    private final ConcurrentHashMap<Long, Event> pendingById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ConcurrentSkipListMap<Long, Event>> pendingByCode = new ConcurrentHashMap<>();
+    private final ThreadLocal<Move> moving = new ThreadLocal<>();
 
     /**
      * Instantiates a new analyst.
@@ -44,9 +83,54 @@ public class ActionAnalyst {
      * @param contractDatabase the contract database
      */
     public ActionAnalyst(Context context, ContractDatabase contractDatabase) {
-        currentAnalyst = this;
+        this(context, new EventContractor(contractDatabase));
+    }
+
+    /**
+     * Instantiates a new analyst with a custom contractor.
+     *
+     * @param context    the android context
+     * @param contractor the contractor, it may use any Event store {@see com.comandulli.lib.analyst.store.EventStore}
+     */
+    public ActionAnalyst(Context context, EventContractor contractor) {
+        this(context, contractor, true);
+    }
+
+    /**
+     * Instantiates a new analyst, optionally without making it the current one,
+     * as done by analysts running next to the live one such as those of a replay.
+     *
+     * @param context    the android context
+     * @param contractor the contractor
+     * @param current    if it becomes the current analyst
+     */
+    ActionAnalyst(Context context, EventContractor contractor, boolean current) {
+        if (current) {
+            currentAnalyst = this;
+        }
         this.context = context;
-        this.contractor = new EventContractor(contractDatabase);
+        this.contractor = contractor;
+        this.eventContext = new EventContext(contractor);
+        contractor.setThreadFactory(executors.getWriterThreads());
+    }
+
+    /**
+     * Sets the threads and executors of the asynchronous work, to be set before the analyst starts working.
+     *
+     * @param executors the executors
+     */
+    public void setExecutors(AnalystExecutors executors) {
+        this.executors = executors;
+        contractor.setThreadFactory(executors.getWriterThreads());
+    }
+
+    /**
+     * Gets the threads and executors of the asynchronous work.
+     *
+     * @return the executors
+     */
+    public AnalystExecutors getExecutors() {
+        return executors;
     }
 
     /**
@@ -57,47 +141,533 @@ public class ActionAnalyst {
      */
     public void init(List<Event> pending, List<Event> toSync) {
         this.pending = pending;
-        this.toSync = toSync;
+        pendingById.clear();
+        pendingByCode.clear();
+        for (Event event : pending) {
+            indexPending(event);
+        }
+        this.toSync = compactBacklog ? new CompactEventBacklog(toSync) : toSync;
+        long bytes = 0;
+        for (Event event : pending) {
+            bytes += EventRetention.sizeOf(event);
+        }
+        for (Event event : toSync) {
+            bytes += EventRetention.sizeOf(event);
+        }
+        storedBytes.set(bytes);
+        for (Event event : pending) {
+            eventContext.retain(EventContext.getVersion(event));
+        }
+        for (Event event : toSync) {
+            syncSizes.incrementAndGet(event.getPriority().ordinal());
+            eventContext.retain(EventContext.getVersion(event));
+        }
+        if (!isRestoring()) {
+            eventContext.startCounting();
+        }
+        if (!pendingTimeouts.isEmpty()) {
+            // events left pending by a killed app expire from their creation time
+            long now = getClock().currentTimeMillis();
+            for (Event event : pending) {
+                Long timeout = pendingTimeouts.get(event.getType().getCode());
+                if (timeout != null) {
+                    schedulePendingTimeout(event, timeout - (now - EventLogger.getTime(event)));
+                }
+            }
+        }
+        enforceRetention();
+    }
+
+    /**
+     * Method for the event logger to announce the events to sync stored by a previous run
+     * are restored later {@link #restoreToSync(List)}, called before {@link #init(List, List)}.
+     */
+    synchronized void beginRestore() {
+        restoring = new HashSet<>();
+    }
+
+    /**
+     * Method for the event logger to restore the events to sync stored by a previous run,
+     * read in the background so startup does not depend on the size of the backlog.
+     * <p>
+     * The restored events go before the ones that joined meanwhile,
+     * events that joined or left the events to sync since the analyst was initialized are skipped.
+     *
+     * @param stored the stored events to sync, in order
+     */
+    public void restoreToSync(List<Event> stored) {
+        Set<Long> skipped;
+        synchronized (this) {
+            skipped = restoring == null ? new HashSet<Long>() : new HashSet<>(restoring);
+        }
+        List<Event> restored = new ArrayList<>(stored.size());
+        for (Event event : stored) {
+            if (!skipped.contains(event.getId())) {
+                restored.add(event);
+            }
+        }
+        // built outside the lock, only the events touched meanwhile are looked for under it
+        List<Event> merged = compactBacklog ? new CompactEventBacklog(restored) : new ArrayList<>(restored);
+        synchronized (this) {
+            if (restoring != null) {
+                for (Long id : restoring) {
+                    if (!skipped.contains(id) && removeById(merged, id)) {
+                        removeById(restored, id);
+                    }
+                }
+                restoring = null;
+            }
+            merged.addAll(toSync);
+            toSync = merged;
+        }
+        long bytes = 0;
+        for (Event event : restored) {
+            bytes += EventRetention.sizeOf(event);
+            syncSizes.incrementAndGet(event.getPriority().ordinal());
+            eventContext.retain(EventContext.getVersion(event));
+            syncAdded(event);
+        }
+        storedBytes.addAndGet(bytes);
+        // every stored event is counted, snapshots only the previous run referred to can go
+        eventContext.startCounting();
+        enforceRetention();
+    }
+
+    /**
+     * If the events to sync of a previous run are still being restored.
+     *
+     * @return if restoring
+     */
+    public synchronized boolean isRestoring() {
+        return restoring != null;
+    }
+
+    private static boolean removeById(List<Event> events, long id) {
+        Iterator<Event> iterator = events.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getId() == id) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds an event to the events to sync, noting it while a backlog is restored.
+     */
+    private synchronized void joinSync(Event event) {
+        toSync.add(event);
+        if (restoring != null) {
+            restoring.add(event.getId());
+        }
+    }
+
+    /**
+     * Removes an event from the events to sync, noting it while a backlog is restored.
+     */
+    private synchronized boolean leaveSync(Event event) {
+        if (restoring != null) {
+            restoring.add(event.getId());
+        }
+        return toSync.remove(event);
     }
 
     /**
      * Analyze an event.
      * <p>
-     * It starts a new thread to handle an incoming event.
-     * Only one analyze thread is able to run at a time.
-     * All other analyze calls are queued.
+     * The event is queued to a single survey thread,
+     * the analyze queue {@link #setAnalyzeQueue(AnalyzeQueue)} decides what happens when it is full.
      * <p>
      * On analysis it sends the event to the proper survey.
+     * <p>
+     * Observers {@link #addObserver(EventObserver)} are notified first.
+     * With a coalescer {@link #setCoalescer(EventCoalescer)} repeated events
+     * are merged before reaching the surveys.
      *
      * @param event    the event
      * @param activity the class
      */
     public void analyze(final Event event, final Class<?> activity) {
+        for (EventObserver observer : observers) {
+            observer.onEvent(event, activity);
+        }
+        EventCoalescer currentCoalescer = coalescer;
+        if (currentCoalescer != null) {
+            currentCoalescer.offer(event, activity, this);
+        } else {
+            dispatch(event, activity);
+        }
+    }
+
+    /**
+     * Dispatches an event to its survey through the analyze queue.
+     *
+     * @param event    the event
+     * @param activity the class
+     */
+    protected void dispatch(Event event, Class<?> activity) {
+        getAnalyzeQueue().offer(event, activity);
+    }
+
+    /**
+     * Surveys an event, called on the survey thread.
+     *
+     * @param event    the event
+     * @param activity the class
+     */
+    protected void survey(Event event, Class<?> activity) {
         // analyze new event with latest ones and determine the type of it
-        Runnable surveyThread = new Runnable() {
+        try {
+            surveying = true;
+            ActionSurvey survey = getSurvey(activity);
+            survey.survey(event, activity);
+        } catch (Exception e) {
+            Log.e("ERROR", "Caught error in analyze");
+            e.printStackTrace();
+            if (EventLogger.DEBUGMODE) {
+                throw e;
+            }
+        } finally {
+            surveying = false;
+        }
+    }
+
+    /**
+     * Sets the queue between analysis and the surveys, with its overflow policy.
+     * <p>
+     * The previous queue stops accepting events and finishes the ones it holds.
+     *
+     * @param analyzeQueue the analyze queue
+     */
+    public synchronized void setAnalyzeQueue(AnalyzeQueue analyzeQueue) {
+        if (this.analyzeQueue != null) {
+            this.analyzeQueue.stop();
+        }
+        this.analyzeQueue = analyzeQueue;
+        analyzeQueue.start(this);
+    }
+
+    /**
+     * Gets the queue between analysis and the surveys, by default an unbounded one.
+     *
+     * @return the analyze queue
+     */
+    public synchronized AnalyzeQueue getAnalyzeQueue() {
+        if (analyzeQueue == null) {
+            setAnalyzeQueue(new AnalyzeQueue());
+        }
+        return analyzeQueue;
+    }
+
+    /**
+     * Makes every event logged so far durable.
+     * <p>
+     * Events held by the coalescer are released, the surveys handle every event queued before the call
+     * and the store is flushed once the writes they made are done. Nothing is uploaded.
+     * The work runs in the background, the completion reaches {@link Completion.Stage#Persisted}.
+     *
+     * @return the completion
+     */
+    public Completion flush() {
+        return complete(Completion.Stage.Persisted, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * Makes every event logged so far durable and, for an analyst that synchronizes, uploaded.
+     * <p>
+     * Like a flush, followed by uploads retried until the events to sync when the drain was requested are acknowledged.
+     * It gives up at the timeout, the completion then tells the stage reached in time.
+     * Meant for the application going to the background, without blocking the caller.
+     *
+     * @param timeout the maximum time in milliseconds
+     * @return the completion
+     */
+    public Completion drain(long timeout) {
+        return complete(getFinalStage(), timeout, false);
+    }
+
+    /**
+     * Shuts down the analyst.
+     * <p>
+     * The analyze queue stops accepting events, the events logged before are surveyed and made durable,
+     * an analyst that synchronizes uploads them once more without retrying.
+     * Then pending timeouts stop firing and writes to the store are no longer asynchronous,
+     * the store itself stays open.
+     *
+     * @return the completion
+     */
+    public Completion shutdown() {
+        return complete(getFinalStage(), Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Gets the last stage a drain or shutdown aims at.
+     *
+     * @return the stage, persisted as this analyst does not synchronize
+     */
+    protected Completion.Stage getFinalStage() {
+        return Completion.Stage.Persisted;
+    }
+
+    /**
+     * Starts following the uploads a drain or shutdown waits for, before the events to sync are taken,
+     * so none of them can leave unnoticed.
+     *
+     * @return the wait, null as this analyst does not synchronize
+     */
+    protected SyncAwait startSyncAwait() {
+        return null;
+    }
+
+    /**
+     * Releases the threads of a shut down analyst, once its last events are handled.
+     */
+    protected void release() {
+        TimerWheel wheel;
+        synchronized (this) {
+            wheel = timerWheel;
+        }
+        if (wheel != null) {
+            wheel.stop();
+        }
+        contractor.setAsynchronous(false);
+    }
+
+    private Completion complete(final Completion.Stage target, long timeout, final boolean shutdown) {
+        final Completion completion = new Completion(target);
+        final long deadline = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+        flushCoalesced();
+        final SyncAwait syncAwait = target == Completion.Stage.Synced ? startSyncAwait() : null;
+        final AnalyzeQueue queue = getAnalyzeQueue();
+        final long[][] toSyncSnapshot = new long[1][];
+        final CountDownLatch surveyed = new CountDownLatch(1);
+        // a task runs after every event queued before it, even spilled ones
+        final boolean queued = queue.execute(new Runnable() {
             @Override
             public void run() {
-                boolean continueRunning = true;
-                while (continueRunning) {
-                    try {
-                        if (!surveying) {
-                            continueRunning = false;
-                            surveying = true;
-                            ActionSurvey survey = getSurvey(activity);
-                            survey.survey(event, activity);
-                            surveying = false;
+                if (syncAwait != null) {
+                    toSyncSnapshot[0] = getToSyncIds();
+                }
+                surveyed.countDown();
+            }
+        });
+        if (shutdown) {
+            queue.stop();
+        }
+        executors.getBackground().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (queued) {
+                        if (deadline == Long.MAX_VALUE) {
+                            surveyed.await();
+                        } else if (!surveyed.await(remaining(deadline), TimeUnit.NANOSECONDS)) {
+                            return;
+                        }
+                    } else {
+                        // already stopped, the queue still finishes the events it holds
+                        if (!queue.awaitIdle(TimeUnit.NANOSECONDS.toMillis(remaining(deadline)))) {
+                            return;
                         }
-                    } catch (Exception e) {
-                        Log.e("ERROR", "Caught error in analyze");
-                        e.printStackTrace();
-                        if (EventLogger.DEBUGMODE) {
-                            throw e;
+                        if (syncAwait != null) {
+                            toSyncSnapshot[0] = getToSyncIds();
                         }
                     }
+                    contractor.flush();
+                    completion.advance(Completion.Stage.Persisted);
+                    if (syncAwait != null && syncAwait.await(toSyncSnapshot[0], deadline, !shutdown)) {
+                        completion.advance(Completion.Stage.Synced);
+                    }
+                } catch (InterruptedException e) {
+                    Log.w("Analyst", "Interrupted while draining");
+                } catch (RuntimeException e) {
+                    Log.e("ERROR", "Caught error in drain");
+                    e.printStackTrace();
+                } finally {
+                    if (syncAwait != null) {
+                        syncAwait.close();
+                    }
+                    if (shutdown) {
+                        release();
+                    }
+                    completion.complete();
                 }
             }
-        };
-        new Thread(surveyThread).start();
+        });
+        return completion;
+    }
+
+    /**
+     * Gets the time left until a deadline.
+     *
+     * @param deadline the deadline on the monotonic clock in nanoseconds, {@link Long#MAX_VALUE} for none
+     * @return the time in nanoseconds
+     */
+    static long remaining(long deadline) {
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+    }
+
+    /**
+     * Sets the clock events of this analyst are stamped with, null follows the clock of the Event logger {@see EventLogger}.
+     * <p>
+     * Events logged to it and created by its surveys {@link #getCurrentTime()} read it,
+     * so several analysts can run on clocks of their own, as the partitions of a replay do.
+     *
+     * @param clock the clock
+     */
+    public void setClock(EventClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Gets the clock events of this analyst are stamped with.
+     *
+     * @return the clock, the one of the Event logger if none was set
+     */
+    public EventClock getClock() {
+        EventClock current = clock;
+        return current == null ? EventLogger.getClock() : current;
+    }
+
+    /**
+     * Gets the current time of the clock of this analyst as an event timestamp, for events created by surveys.
+     *
+     * @return the current time
+     */
+    public String getCurrentTime() {
+        return EventLogger.formatTime(getClock().currentTimeMillis());
+    }
+
+    /**
+     * Sets the rate control applied before events are analyzed, null admits everything.
+     *
+     * @param rateControl the rate control
+     */
+    public void setRateControl(EventRateControl rateControl) {
+        this.rateControl = rateControl;
+    }
+
+    /**
+     * Gets the rate control.
+     *
+     * @return the rate control or null if there is none
+     */
+    public EventRateControl getRateControl() {
+        return rateControl;
+    }
+
+    /**
+     * Decides if an event of a type should be logged at all.
+     * <p>
+     * The Event logger {@see com.comandulli.lib.analyst.EventLogger} asks before building the event,
+     * so dropped events cost no allocation.
+     *
+     * @param type the event type
+     * @return if admitted
+     */
+    public boolean admit(EventType type) {
+        EventRateControl currentRateControl = rateControl;
+        return currentRateControl == null || currentRateControl.admit(type);
+    }
+
+    /**
+     * Add an observer of every event admitted for analysis.
+     *
+     * @param observer the observer
+     */
+    public void addObserver(EventObserver observer) {
+        observers.add(observer);
+    }
+
+    /**
+     * Remove an observer.
+     *
+     * @param observer the observer
+     */
+    public void removeObserver(EventObserver observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Add an observer of every event the surveys record, as pending or to sync.
+     * <p>
+     * Observers are called on the survey thread with a null class,
+     * also for events excluded from sync {@link #excludeFromSync(int)}.
+     *
+     * @param observer the observer
+     */
+    public void addRecordObserver(EventObserver observer) {
+        recordObservers.add(observer);
+    }
+
+    /**
+     * Remove an observer of recorded events.
+     *
+     * @param observer the observer
+     */
+    public void removeRecordObserver(EventObserver observer) {
+        recordObservers.remove(observer);
+    }
+
+    /**
+     * Excludes a code from sync, events of that code are never stored to be synced.
+     * <p>
+     * Used when the events of a code are replaced by aggregates.
+     *
+     * @param code the code of the event type
+     */
+    public void excludeFromSync(int code) {
+        excludedFromSync.add(code);
+    }
+
+    /**
+     * If the events of a code are excluded from sync.
+     *
+     * @param code the code of the event type
+     * @return if excluded
+     */
+    public boolean isExcludedFromSync(int code) {
+        return excludedFromSync.contains(code);
+    }
+
+    /**
+     * Sets the coalescer merging repeated events before analysis, null disables coalescing.
+     * <p>
+     * Open runs of the previous coalescer are analyzed right away.
+     *
+     * @param coalescer the coalescer
+     */
+    public void setCoalescer(EventCoalescer coalescer) {
+        EventCoalescer previous = this.coalescer;
+        this.coalescer = coalescer;
+        if (previous != null) {
+            previous.flush(this);
+        }
+    }
+
+    /**
+     * Analyzes every event held by the coalescer right away.
+     */
+    public void flushCoalesced() {
+        EventCoalescer currentCoalescer = coalescer;
+        if (currentCoalescer != null) {
+            currentCoalescer.flush(this);
+        }
+    }
+
+    /**
+     * Sets if the events to sync are kept compact {@see CompactEventBacklog}, in primitive arrays
+     * materialized on access, for large backlogs. Events then keep no identity:
+     * every access returns a new object, sync state and priority are the only changes kept.
+     *
+     * @param compactBacklog if the backlog is compact
+     */
+    public synchronized void setCompactBacklog(boolean compactBacklog) {
+        if (this.compactBacklog != compactBacklog) {
+            this.compactBacklog = compactBacklog;
+            toSync = compactBacklog ? new CompactEventBacklog(toSync) : new ArrayList<>(toSync);
+        }
     }
 
     /**
@@ -165,38 +735,200 @@ public class ActionAnalyst {
         return survey;
     }
 
+    /**
+     * Gets the context attributes shared by all stored events.
+     *
+     * @return the event context
+     */
+    public EventContext getEventContext() {
+        return eventContext;
+    }
+
+    /**
+     * Sets a context attribute, such as the device or the user,
+     * sent once per sync batch instead of within every event.
+     *
+     * @param key   the key
+     * @param value the value, null removes the attribute
+     */
+    public void setContextAttribute(String key, String value) {
+        eventContext.setAttribute(key, value);
+    }
+
+    /**
+     * Sets how long events of a code may stay pending.
+     * <p>
+     * When the timeout runs out the survey is asked to expire the event {@link ActionSurvey#expire(Event)},
+     * on the survey thread. Timeouts are kept by a single Timer wheel {@see TimerWheel},
+     * so scheduling and cancelling them costs the same with any number of pending events.
+     * Set timeouts before the analyst is initialized, events loaded pending are scheduled from their creation time.
+     *
+     * @param code    the code of the event type
+     * @param timeout the timeout in milliseconds
+     * @param survey  the survey expiring the events, null for the default survey
+     */
+    public void setPendingTimeout(int code, long timeout, ActionSurvey survey) {
+        pendingTimeouts.put(code, timeout);
+        if (survey != null) {
+            expiringSurveys.put(code, survey);
+        } else {
+            expiringSurveys.remove(code);
+        }
+    }
+
+    /**
+     * Sets the timer wheel of pending timeouts, by default one ticking every second.
+     *
+     * @param timerWheel the timer wheel
+     */
+    public synchronized void setTimerWheel(TimerWheel timerWheel) {
+        this.timerWheel = timerWheel;
+    }
+
+    private synchronized TimerWheel getTimerWheel() {
+        if (timerWheel == null) {
+            timerWheel = new TimerWheel(TimerWheel.DEFAULT_TICK, TimerWheel.DEFAULT_WHEEL_SIZE, executors.getTimerThreads());
+        }
+        return timerWheel;
+    }
+
+    /**
+     * Schedules a task on the timer wheel of this analyst, run on its timer thread.
+     *
+     * @param task  the task
+     * @param delay the delay in milliseconds
+     * @return the timeout, to cancel the task
+     */
+    TimerWheel.Timeout scheduleTimeout(Runnable task, long delay) {
+        return getTimerWheel().schedule(task, delay);
+    }
+
+    private void schedulePendingTimeout(final Event event, long delay) {
+        TimerWheel.Timeout timeout = getTimerWheel().schedule(new Runnable() {
+            @Override
+            public void run() {
+                getAnalyzeQueue().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // a cancelled timeout is no longer scheduled, even if it already fired
+                        if (scheduledTimeouts.remove(event.getId()) != null) {
+                            ActionSurvey survey = expiringSurveys.get(event.getType().getCode());
+                            (survey != null ? survey : getDefaultSurvey()).expire(event);
+                        }
+                    }
+                });
+            }
+        }, delay);
+        scheduledTimeouts.put(event.getId(), timeout);
+    }
+
+    private void cancelPendingTimeout(Event event) {
+        TimerWheel.Timeout timeout = scheduledTimeouts.remove(event.getId());
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
     /**
      * Add an event as pending
      *
      * @param event the event
      */
     public void addToPending(Event event) {
+        for (EventObserver observer : recordObservers) {
+            observer.onEvent(event, null);
+        }
+        eventContext.tag(event);
         event.setSync(false);
+        eventContext.retain(EventContext.getVersion(event));
         pending.add(event);
         contractor.insert(event);
+        indexPending(event);
+        storedBytes.addAndGet(EventRetention.sizeOf(event));
+        Long timeout = pendingTimeouts.get(event.getType().getCode());
+        if (timeout != null) {
+            schedulePendingTimeout(event, timeout);
+        }
         Log.w("ACT-PENDING:" + event.getType().getName(), event.toString());
+        enforceRetention();
     }
 
     /**
      * Add to sync.
+     * <p>
+     * Also called for events moved from pending {@link #moveFromPendingToSync(Event)},
+     * so overrides see every event joining the events to sync.
      *
      * @param event the event
      */
     public void addToSync(Event event) {
+        Move move = moving.get();
+        boolean moved = move != null && move.event == event;
+        if (!moved) {
+            for (EventObserver observer : recordObservers) {
+                observer.onEvent(event, null);
+            }
+        }
+        if (isExcludedFromSync(event.getType().getCode())) {
+            Log.w("ACT-EXCLUDED:" + event.getType().getName(), event.toString());
+            return;
+        }
+        if (!moved) {
+            eventContext.tag(event);
+        }
         event.setSync(true);
-        toSync.add(event);
-        contractor.insert(event);
+        if (moved && move.isUnchanged()) {
+            contractor.updateSync(event);
+        } else {
+            // inserting assigns the id, a compact backlog tells events apart by it,
+            // a moved event changed by an override is written again under its id
+            contractor.insert(event);
+        }
+        joinSync(event);
+        eventContext.retain(EventContext.getVersion(event));
+        if (moved) {
+            eventContext.release(move.context);
+        }
+        syncSizes.incrementAndGet(event.getPriority().ordinal());
+        storedBytes.addAndGet(EventRetention.sizeOf(event) - (moved ? move.size : 0));
+        syncAdded(event);
         Log.w("ACT-SYNC:" + event.getType().getName(), event.toString());
+        enforceRetention();
+    }
+
+    /**
+     * Add to sync with a priority, overriding the priority of the event type.
+     *
+     * @param event    the event
+     * @param priority the priority
+     */
+    public void addToSync(Event event, Priority priority) {
+        event.setPriority(priority);
+        addToSync(event);
     }
 
     /**
      * Move from pending to sync.
+     * <p>
+     * The event goes through {@link #addToSync(Event)}, but the stored event is updated in place,
+     * keeping its id. If an override of it changes the data or the priority, the event is written again under the same id.
      *
      * @param event the event
      */
     public void moveFromPendingToSync(Event event) {
-        removeFromPending(event);
-        addToSync(event);
+        if (isExcludedFromSync(event.getType().getCode())) {
+            removeFromPending(event);
+            return;
+        }
+        cancelPendingTimeout(event);
+        pending.remove(event);
+        unindexPending(event);
+        moving.set(new Move(event));
+        try {
+            addToSync(event);
+        } finally {
+            moving.remove();
+        }
     }
 
     /**
@@ -205,7 +937,12 @@ public class ActionAnalyst {
      * @param event the event
      */
     public void removeFromPending(Event event) {
-        pending.remove(event);
+        cancelPendingTimeout(event);
+        unindexPending(event);
+        if (pending.remove(event)) {
+            storedBytes.addAndGet(-EventRetention.sizeOf(event));
+            eventContext.release(EventContext.getVersion(event));
+        }
         contractor.removeEvent(event);
         Log.w("ACT-UNPEND:" + event.getType().getName(), event.toString());
     }
@@ -216,11 +953,194 @@ public class ActionAnalyst {
      * @param event the event
      */
     public void removeFromSync(Event event) {
-        toSync.remove(event);
+        if (leaveSync(event)) {
+            storedBytes.addAndGet(-EventRetention.sizeOf(event));
+            syncSizes.decrementAndGet(event.getPriority().ordinal());
+            eventContext.release(EventContext.getVersion(event));
+            syncRemoved(event);
+        }
         contractor.removeEvent(event);
         Log.w("ACT-SYNCED:" + event.getType().getName(), event.toString());
     }
 
+    /**
+     * Sets the retention caps of stored events, null removes all caps.
+     * <p>
+     * Caps are checked on every insert, which only compares counters.
+     * When one is exceeded events awaiting sync are evicted in the background,
+     * one batch at a time, until the caps are met again.
+     *
+     * @param retention the retention
+     */
+    public void setRetention(EventRetention retention) {
+        this.retention = retention;
+        enforceRetention();
+    }
+
+    /**
+     * Gets the retention caps.
+     *
+     * @return the retention or null if there is none
+     */
+    public EventRetention getRetention() {
+        return retention;
+    }
+
+    /**
+     * Gets the estimated size in bytes of the stored events.
+     *
+     * @return the size
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Gets the total number of events evicted by the retention caps.
+     *
+     * @return the number
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Evicts an event awaiting sync, it will never be synced.
+     *
+     * @param event the event
+     */
+    protected void evict(Event event) {
+        if (leaveSync(event)) {
+            storedBytes.addAndGet(-EventRetention.sizeOf(event));
+            syncSizes.decrementAndGet(event.getPriority().ordinal());
+            eventContext.release(EventContext.getVersion(event));
+            syncRemoved(event);
+            evictedCount.incrementAndGet();
+            // an event synced since it was chosen is left alone
+            contractor.removeEvent(event);
+            Log.w("ACT-EVICTED:" + event.getType().getName(), event.toString());
+        }
+    }
+
+    /**
+     * Called once an event joined the events to sync, after it is stored.
+     * Subclasses keep state derived from the events to sync with it.
+     *
+     * @param event the event
+     */
+    protected void syncAdded(Event event) {
+    }
+
+    /**
+     * Called once an event left the events to sync, synced or evicted.
+     *
+     * @param event the event
+     */
+    protected void syncRemoved(Event event) {
+    }
+
+    private void enforceRetention() {
+        EventRetention currentRetention = retention;
+        if (currentRetention == null) {
+            return;
+        }
+        Event[] oldest = getToSyncHead(1);
+        if (oldest.length == 0) {
+            // only events awaiting sync are evicted, pending ones alone never start an eviction
+            return;
+        }
+        boolean exceeded = currentRetention.isExceeded(getPendingSize() + getSyncSize(), storedBytes.get());
+        if (!exceeded) {
+            exceeded = currentRetention.isExpired(oldest[0], getClock().currentTimeMillis());
+        }
+        if (exceeded) {
+            evictInBackground();
+        }
+    }
+
+    /**
+     * Gets the first events to sync, in order.
+     */
+    private synchronized Event[] getToSyncHead(int limit) {
+        List<Event> current = toSync;
+        Event[] head = new Event[Math.min(limit, current.size())];
+        for (int i = 0; i < head.length; i++) {
+            head[i] = current.get(i);
+        }
+        return head;
+    }
+
+    /**
+     * Gets the events to sync a batch of evictions is chosen from, in order.
+     * Policies looking at every event choose the candidates by their codes, a compact backlog only materializes those.
+     */
+    private synchronized Event[] getEvictionCandidates(EventRetention retention) {
+        int candidates = retention.getCandidateCount();
+        if (candidates != Integer.MAX_VALUE) {
+            return getToSyncHead(candidates);
+        }
+        List<Event> current = toSync;
+        int[] codes;
+        if (current instanceof CompactEventBacklog) {
+            codes = ((CompactEventBacklog) current).codes();
+        } else {
+            codes = new int[current.size()];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = current.get(i).getType().getCode();
+            }
+        }
+        int[] positions = retention.selectCandidates(codes);
+        Event[] selected = new Event[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            selected[i] = current.get(positions[i]);
+        }
+        return selected;
+    }
+
+    private synchronized void evictInBackground() {
+        Runnable eviction = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    EventRetention currentRetention = retention;
+                    List<Event> victims = null;
+                    if (currentRetention != null) {
+                        // only the events a batch can be chosen from are read
+                        Event[] candidates = getEvictionCandidates(currentRetention);
+                        victims = currentRetention.selectVictims(candidates, getPendingSize() + getSyncSize(), storedBytes.get(), getClock().currentTimeMillis());
+                        for (Event victim : victims) {
+                            evict(victim);
+                        }
+                    }
+                    synchronized (ActionAnalyst.this) {
+                        evicting = false;
+                        if (reevict || (victims != null && !victims.isEmpty())) {
+                            reevict = false;
+                            // keep going one batch at a time until the caps are met
+                            enforceRetention();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.e("ERROR", "Caught error in eviction");
+                    e.printStackTrace();
+                    synchronized (ActionAnalyst.this) {
+                        evicting = false;
+                    }
+                    if (EventLogger.DEBUGMODE) {
+                        throw e;
+                    }
+                }
+            }
+        };
+        if (!evicting) {
+            evicting = true;
+            reevict = false;
+            executors.getBackground().execute(eviction);
+        } else {
+            reevict = true;
+        }
+    }
+
     /**
      * Search pending event.
      *
@@ -228,12 +1148,35 @@ public class ActionAnalyst {
      * @return the event
      */
     public Event searchPendingEvent(int code) {
-        for (Event event : pending) {
-            if (event.getType().getCode() == code) {
-                return event;
+        // looked up in memory, the store is never waited for nor read
+        ConcurrentSkipListMap<Long, Event> events = pendingByCode.get(code);
+        Map.Entry<Long, Event> first = events == null ? null : events.firstEntry();
+        return first == null ? null : first.getValue();
+    }
+
+    /**
+     * Indexes a pending event by id and by code, the first pending event of a code is the oldest one.
+     */
+    private void indexPending(Event event) {
+        pendingById.put(event.getId(), event);
+        int code = event.getType().getCode();
+        ConcurrentSkipListMap<Long, Event> events = pendingByCode.get(code);
+        if (events == null) {
+            ConcurrentSkipListMap<Long, Event> created = new ConcurrentSkipListMap<>();
+            events = pendingByCode.putIfAbsent(code, created);
+            if (events == null) {
+                events = created;
             }
         }
-        return null;
+        events.put(event.getId(), event);
+    }
+
+    private void unindexPending(Event event) {
+        pendingById.remove(event.getId());
+        ConcurrentSkipListMap<Long, Event> events = pendingByCode.get(event.getType().getCode());
+        if (events != null) {
+            events.remove(event.getId());
+        }
     }
 
     /**
@@ -258,6 +1201,16 @@ public class ActionAnalyst {
         return toSync.size();
     }
 
+    /**
+     * Gets number of events of a priority requiring syncing.
+     *
+     * @param priority the priority
+     * @return the number
+     */
+    public int getSyncSize(Priority priority) {
+        return syncSizes.get(priority.ordinal());
+    }
+
     /**
      * Gets total number of pending events.
      *
@@ -283,10 +1236,137 @@ public class ActionAnalyst {
      *
      * @return the event array
      */
-    public Event[] getToSyncAsArray() {
-        Event[] syncArray = new Event[getSyncSize()];
-        toSync.toArray(syncArray);
-        return syncArray;
+    public synchronized Event[] getToSyncAsArray() {
+        // sized by the list itself, events joining or leaving meanwhile wait for the lock
+        return toSync.toArray(new Event[0]);
+    }
+
+    /**
+     * Gets the ids of the events that still need syncing, without materializing a compact backlog.
+     *
+     * @return the ids, in order
+     */
+    public long[] getToSyncIds() {
+        return getToSyncIds(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets the ids of the first events of a priority that still need syncing, without materializing a compact backlog.
+     *
+     * @param priority the priority, null for every event
+     * @param limit    the maximum number of ids
+     * @return the ids, in order
+     */
+    public synchronized long[] getToSyncIds(Priority priority, int limit) {
+        List<Event> current = toSync;
+        if (current instanceof CompactEventBacklog) {
+            return ((CompactEventBacklog) current).ids(priority, limit);
+        }
+        long[] ids = new long[Math.min(current.size(), limit)];
+        int taken = 0;
+        for (Event event : current) {
+            if (taken == ids.length) {
+                break;
+            }
+            if (priority == null || event.getPriority() == priority) {
+                ids[taken++] = event.getId();
+            }
+        }
+        return taken == ids.length ? ids : Arrays.copyOf(ids, taken);
+    }
+
+    /**
+     * Gets the events among some ids that still need syncing, materializing only those of a compact backlog.
+     *
+     * @param sortedIds the ids, sorted
+     * @return the events, in order
+     */
+    public synchronized Event[] getToSyncByIds(long[] sortedIds) {
+        List<Event> current = toSync;
+        if (current instanceof CompactEventBacklog) {
+            return ((CompactEventBacklog) current).select(sortedIds);
+        }
+        List<Event> selected = new ArrayList<>();
+        for (Event event : current) {
+            if (Arrays.binarySearch(sortedIds, event.getId()) >= 0) {
+                selected.add(event);
+                if (selected.size() == sortedIds.length) {
+                    break;
+                }
+            }
+        }
+        return selected.toArray(new Event[selected.size()]);
+    }
+
+    /**
+     * Get the first events of a priority that still need syncing, in order.
+     *
+     * @param priority the priority
+     * @param limit    the maximum number of events
+     * @return the events
+     */
+    public Event[] getToSyncAsArray(Priority priority, int limit) {
+        List<Event> current = toSync;
+        if (current instanceof CompactEventBacklog) {
+            return ((CompactEventBacklog) current).select(priority, limit);
+        }
+        List<Event> selected = new ArrayList<>();
+        for (Event event : getToSyncAsArray()) {
+            if (event.getPriority() == priority) {
+                selected.add(event);
+                if (selected.size() >= limit) {
+                    break;
+                }
+            }
+        }
+        return selected.toArray(new Event[selected.size()]);
+    }
+
+    /**
+     * Follows the uploads of the events to sync a drain or shutdown waits for.
+     */
+    protected interface SyncAwait {
+
+        /**
+         * Waits for events to be uploaded, called by a drain or shutdown once they are durable.
+         *
+         * @param ids      the ids of the events to sync once every event logged before the drain was surveyed
+         * @param deadline the deadline on the monotonic clock in nanoseconds, {@link Long#MAX_VALUE} for none
+         * @param retry    if failed uploads are retried until the deadline
+         * @return if every event was acknowledged by the server
+         * @throws InterruptedException if interrupted while waiting
+         */
+        boolean await(long[] ids, long deadline, boolean retry) throws InterruptedException;
+
+        /**
+         * Stops following the uploads, whether the wait ran or not.
+         */
+        void close();
+
+    }
+
+    /**
+     * An event being moved from pending, with its stored form to tell if an override changed it.
+     */
+    private static class Move {
+        private final Event event;
+        private final String data;
+        private final Priority priority;
+        private final long context;
+        private final long size;
+
+        private Move(Event event) {
+            this.event = event;
+            this.context = EventContext.getVersion(event);
+            this.data = event.getData() == null ? null : event.getData().toEncodedString();
+            this.priority = event.getPriorityOverride();
+            this.size = EventRetention.sizeOf(event);
+        }
+
+        private boolean isUnchanged() {
+            String current = event.getData() == null ? null : event.getData().toEncodedString();
+            return (data == null ? current == null : data.equals(current)) && priority == event.getPriorityOverride();
+        }
     }
 
     /**
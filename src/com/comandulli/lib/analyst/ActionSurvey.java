@@ -2,6 +2,7 @@ package com.comandulli.lib.analyst;
 
 import com.comandulli.lib.analyst.entity.DataWrapper;
 import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -112,6 +113,19 @@ public abstract class ActionSurvey {
         analyst.getDefaultSurvey().resume(data);
     }
 
+    /**
+     * Handle a pending event whose timeout ran out {@see ActionAnalyst#setPendingTimeout(int, long, ActionSurvey)}.
+     * <p>
+     * By default it leaves pending and its Terminated type is synced instead.
+     * Override it to sync the event as it is, or to drop it.
+     *
+     * @param event the expired event
+     */
+    public void expire(Event event) {
+        analyst.removeFromPending(event);
+        analyst.addToSync(new Event(event.getType().getAsNewType(SuperType.Terminated), analyst.getCurrentTime(), event.getData()));
+    }
+
     /**
      * Add to contained.
      *
@@ -0,0 +1,216 @@
+package com.comandulli.lib.analyst;
+
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads and executors an analyst runs its asynchronous work on.
+ * <p>
+ * Long running loops, the survey thread, the timer of pending timeouts and the writer of the contractor,
+ * get a thread of their own from a thread factory. Short tasks go through executors:
+ * background work such as evictions and drains, and the blocking uploads of the sync lanes.
+ * By default every thread is named after its role and tasks run on cached pools of daemon threads,
+ * reused while busy and released once idle.
+ * <p>
+ * Any of them can be replaced, to size, monitor or share threads with the application,
+ * before the analyst starts working {@link ActionAnalyst#setExecutors(AnalystExecutors)}.
+ * On a JVM with virtual threads uploads can run on them {@link #useVirtualThreads()},
+ * so many concurrent uploads, as in replays or load tests, cost no platform thread each.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class AnalystExecutors {
+
+    /**
+     * How long an idle pooled thread is kept, in milliseconds.
+     */
+    public static final long KEEP_ALIVE = 60 * 1000;
+
+    private ThreadFactory surveyThreads = named("AnalystSurvey", false);
+    private ThreadFactory timerThreads = named("AnalystTimer", true);
+    private ThreadFactory writerThreads = named("AnalystWriter", false);
+    private Executor background = newCachedExecutor(named("AnalystWorker", true));
+    private Executor sync = newCachedExecutor(named("AnalystSync", true));
+
+    /**
+     * Gets the thread factory of the survey thread.
+     *
+     * @return the thread factory
+     */
+    public ThreadFactory getSurveyThreads() {
+        return surveyThreads;
+    }
+
+    /**
+     * Sets the thread factory of the survey thread.
+     *
+     * @param surveyThreads the thread factory
+     */
+    public void setSurveyThreads(ThreadFactory surveyThreads) {
+        this.surveyThreads = surveyThreads;
+    }
+
+    /**
+     * Gets the thread factory of the timer of pending timeouts.
+     *
+     * @return the thread factory
+     */
+    public ThreadFactory getTimerThreads() {
+        return timerThreads;
+    }
+
+    /**
+     * Sets the thread factory of the timer of pending timeouts.
+     *
+     * @param timerThreads the thread factory
+     */
+    public void setTimerThreads(ThreadFactory timerThreads) {
+        this.timerThreads = timerThreads;
+    }
+
+    /**
+     * Gets the thread factory of the asynchronous writer of the contractor.
+     *
+     * @return the thread factory
+     */
+    public ThreadFactory getWriterThreads() {
+        return writerThreads;
+    }
+
+    /**
+     * Sets the thread factory of the asynchronous writer of the contractor.
+     *
+     * @param writerThreads the thread factory
+     */
+    public void setWriterThreads(ThreadFactory writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Gets the executor of background work, evictions, flushes and drains.
+     *
+     * @return the executor
+     */
+    public Executor getBackground() {
+        return background;
+    }
+
+    /**
+     * Sets the executor of background work.
+     *
+     * @param background the executor
+     */
+    public void setBackground(Executor background) {
+        this.background = background;
+    }
+
+    /**
+     * Gets the executor of uploads, running the sync lanes and the connections of parallel drains.
+     *
+     * @return the executor
+     */
+    public Executor getSync() {
+        return sync;
+    }
+
+    /**
+     * Sets the executor of uploads.
+     * <p>
+     * It must not be bounded below the number of lanes plus drain connections,
+     * a lane waits for the connections it started.
+     *
+     * @param sync the executor
+     */
+    public void setSync(Executor sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Runs uploads on a virtual thread each, when the runtime has them.
+     *
+     * @return if virtual threads are used, false leaves the executor of uploads unchanged
+     */
+    public boolean useVirtualThreads() {
+        ThreadFactory factory = virtual("AnalystSync");
+        if (factory == null) {
+            return false;
+        }
+        sync = perTask(factory);
+        return true;
+    }
+
+    /**
+     * Creates a thread factory naming threads after a role, numbered from one.
+     *
+     * @param name   the name of the role
+     * @param daemon if the threads are daemon ones
+     * @return the thread factory
+     */
+    public static ThreadFactory named(final String name, final boolean daemon) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(daemon);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Creates a thread factory of virtual threads named after a role, found by reflection
+     * as the library targets runtimes without them.
+     *
+     * @param name the name of the role
+     * @return the thread factory, or null if the runtime has no virtual threads
+     */
+    public static ThreadFactory virtual(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            Method factory = builderType.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (RuntimeException e) {
+            Log.w("Analyst", "Virtual threads unavailable: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a pool of threads, created as needed and released after being idle for the keep alive.
+     *
+     * @param threadFactory the thread factory
+     * @return the executor
+     */
+    public static ThreadPoolExecutor newCachedExecutor(ThreadFactory threadFactory) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * Creates an executor starting a new thread per task, meant for virtual threads.
+     *
+     * @param threadFactory the thread factory
+     * @return the executor
+     */
+    public static Executor perTask(final ThreadFactory threadFactory) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                threadFactory.newThread(task).start();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,531 @@
+package com.comandulli.lib.analyst;
+
+import android.util.Log;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.Priority;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue between the logging of events and the surveys.
+ * <p>
+ * A single survey thread takes events from the queue, in order.
+ * When events arrive faster than the surveys can handle them the overflow policy applies:
+ * block the caller for a while, drop the newest or the oldest event, or spill events to disk.
+ * Every outcome is counted.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class AnalyzeQueue {
+
+    /**
+     * What happens to an event arriving at a full queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Block the caller until there is room, dropping the event after the block timeout.
+         */
+        Block, /**
+         * Drop the arriving event.
+         */
+        DropNewest, /**
+         * Drop the oldest queued event to make room.
+         */
+        DropOldest, /**
+         * Append the event to a spill file, read back in order once the queue has room.
+         */
+        Spill
+    }
+
+    /**
+     * The default block timeout in milliseconds.
+     */
+    public static final long DEFAULT_BLOCK_TIMEOUT = 100;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SPILL_FILE = "analyze.spill";
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final HashMap<String, Class<?>> activities = new HashMap<>();
+    private final HashMap<Integer, EventType> types = new HashMap<>();
+    private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    private File spillDirectory;
+    private File spillFile;
+    private DataOutputStream spillOutput;
+    private DataInputStream spillInput;
+    private int queuedEvents;
+    private int spillDepth;
+    private long spillWritten;
+    private long spillRead;
+    private final ArrayDeque<Entry> spilledTasks = new ArrayDeque<>();
+    private boolean busy;
+    private boolean stopped;
+
+    /**
+     * Instantiates a new unbounded Analyze queue, it never drops events.
+     */
+    public AnalyzeQueue() {
+        this(Integer.MAX_VALUE, OverflowPolicy.Block);
+    }
+
+    /**
+     * Instantiates a new Analyze queue.
+     *
+     * @param capacity the maximum number of queued events in memory
+     * @param policy   the overflow policy
+     */
+    public AnalyzeQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Sets how long {@link OverflowPolicy#Block} waits for room before dropping the event.
+     *
+     * @param timeout the timeout in milliseconds
+     */
+    public void setBlockTimeout(long timeout) {
+        this.blockTimeout = timeout;
+    }
+
+    /**
+     * Sets the directory of the spill file used by {@link OverflowPolicy#Spill}.
+     *
+     * @param directory the directory
+     */
+    public void setSpillDirectory(File directory) {
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * Offers an event to the surveys, applying the overflow policy when full.
+     *
+     * @param event    the event
+     * @param activity the class
+     * @return if the event was accepted
+     */
+    public boolean offer(Event event, Class<?> activity) {
+        Entry entry = new Entry(event, activity);
+        lock.lock();
+        try {
+            if (stopped) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            if (spillDepth == 0 && queuedEvents < capacity) {
+                enqueue(entry);
+                return true;
+            }
+            switch (policy) {
+                case Block:
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+                    while (queuedEvents >= capacity && !stopped) {
+                        if (remaining <= 0) {
+                            timedOutCount.incrementAndGet();
+                            droppedCount.incrementAndGet();
+                            return false;
+                        }
+                        remaining = notFull.awaitNanos(remaining);
+                    }
+                    enqueue(entry);
+                    return true;
+                case DropOldest:
+                    if (!dropOldest()) {
+                        // no queued event to make room for, the arriving one is the oldest left
+                        droppedCount.incrementAndGet();
+                        return false;
+                    }
+                    enqueue(entry);
+                    return true;
+                case Spill:
+                    if (spill(entry)) {
+                        acceptedCount.incrementAndGet();
+                        return true;
+                    }
+                    droppedCount.incrementAndGet();
+                    return false;
+                default:
+                    droppedCount.incrementAndGet();
+                    return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedCount.incrementAndGet();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs a task on the survey thread, after the events queued before it.
+     * <p>
+     * Tasks are never dropped nor spilled, they ignore the capacity.
+     * While events are spilled a task waits in memory for them to be read back.
+     *
+     * @param task the task
+     * @return if the task was queued, false once the queue is stopped
+     */
+    boolean execute(Runnable task) {
+        lock.lock();
+        try {
+            if (stopped) {
+                return false;
+            }
+            Entry entry = new Entry(task);
+            if (spillDepth > 0) {
+                entry.position = spillWritten;
+                spilledTasks.addLast(entry);
+            } else {
+                queue.addLast(entry);
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the survey thread feeding the analyst.
+     *
+     * @param analyst the analyst
+     */
+    void start(final ActionAnalyst analyst) {
+        Thread thread = analyst.getExecutors().getSurveyThreads().newThread(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry;
+                while ((entry = take()) != null) {
+                    if (entry.task != null) {
+                        try {
+                            entry.task.run();
+                        } catch (RuntimeException e) {
+                            Log.e("ERROR", "Caught error in survey task");
+                            e.printStackTrace();
+                        }
+                    } else {
+                        analyst.survey(entry.event, entry.activity);
+                    }
+                    lock.lock();
+                    try {
+                        busy = false;
+                        if (queue.isEmpty() && spillDepth == 0) {
+                            idle.signalAll();
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Waits until every accepted event has gone through the surveys.
+     *
+     * @param timeout the timeout in milliseconds
+     * @return if the queue became idle in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitIdle(long timeout) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (busy || !queue.isEmpty() || spillDepth > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = idle.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting events, the survey thread ends once the queue is empty.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of accepted events.
+     * <p>
+     * With {@link OverflowPolicy#DropOldest} accepted events may be dropped later on,
+     * the number of surveyed events is always the accepted minus the dropped after acceptance.
+     *
+     * @return the number
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * Gets the number of dropped events, including timed out ones.
+     *
+     * @return the number
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Gets the number of events dropped after blocking for the whole timeout.
+     *
+     * @return the number
+     */
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    /**
+     * Gets the number of events ever spilled to disk.
+     *
+     * @return the number
+     */
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /**
+     * Gets the number of events waiting, in memory and on disk.
+     *
+     * @return the number
+     */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queuedEvents + spillDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        queue.addLast(entry);
+        queuedEvents++;
+        acceptedCount.incrementAndGet();
+        notEmpty.signal();
+    }
+
+    private Entry take() {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (spillDepth > 0) {
+                    unspill(Math.max(1, Math.min(capacity / 2, spillDepth)));
+                    continue;
+                }
+                if (stopped) {
+                    return null;
+                }
+                notEmpty.awaitUninterruptibly();
+            }
+            busy = true;
+            Entry entry = queue.pollFirst();
+            if (entry.task == null) {
+                queuedEvents--;
+                notFull.signal();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean spill(Entry entry) {
+        if (spillDirectory == null) {
+            return false;
+        }
+        try {
+            if (spillOutput == null) {
+                spillFile = new File(spillDirectory, SPILL_FILE);
+                spillOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            }
+            Event event = entry.event;
+            types.put(event.getType().getCode(), event.getType());
+            if (entry.activity != null) {
+                activities.put(entry.activity.getName(), entry.activity);
+            }
+            writeString(spillOutput, entry.activity == null ? null : entry.activity.getName());
+            spillOutput.writeLong(event.getId());
+            spillOutput.writeInt(event.getType().getCode());
+            writeString(spillOutput, event.getTimestamp());
+            spillOutput.writeLong(event.getTime());
+            spillOutput.writeLong(event.getNanoTime());
+            Priority priority = event.getPriorityOverride();
+            spillOutput.writeByte(priority == null ? -1 : priority.ordinal());
+            writeString(spillOutput, event.getData() == null ? null : event.getData().toEncodedString());
+            spillDepth++;
+            spillWritten++;
+            spilledCount.incrementAndGet();
+            notEmpty.signal();
+            return true;
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error spilling event");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void unspill(int count) {
+        try {
+            spillOutput.flush();
+            if (spillInput == null) {
+                spillInput = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            }
+            for (int i = 0; i < count; i++) {
+                Class<?> activity = activities.get(readString(spillInput));
+                long id = spillInput.readLong();
+                int code = spillInput.readInt();
+                EventType type = types.get(code);
+                String timestamp = readString(spillInput);
+                long time = spillInput.readLong();
+                long nanoTime = spillInput.readLong();
+                byte priority = spillInput.readByte();
+                String data = readString(spillInput);
+                Event event = new Event(type != null ? type : new EventType(code), timestamp, DataWrapper.fromEncodedString(data));
+                event.setId(id);
+                event.setTime(time);
+                event.setNanoTime(nanoTime);
+                if (priority >= 0) {
+                    event.setPriority(Priority.values()[priority]);
+                }
+                queue.addLast(new Entry(event, activity));
+                queuedEvents++;
+                spillDepth--;
+                spillRead++;
+                releaseTasks(spillRead);
+            }
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error reading spilled events");
+            e.printStackTrace();
+            droppedCount.addAndGet(spillDepth);
+            spillDepth = 0;
+            releaseTasks(Long.MAX_VALUE);
+        }
+        if (spillDepth == 0) {
+            closeSpill();
+        }
+    }
+
+    private void releaseTasks(long position) {
+        while (!spilledTasks.isEmpty() && spilledTasks.peekFirst().position <= position) {
+            queue.addLast(spilledTasks.pollFirst());
+        }
+    }
+
+    private boolean dropOldest() {
+        // tasks are never dropped, only events
+        Iterator<Entry> entries = queue.iterator();
+        while (entries.hasNext()) {
+            if (entries.next().task == null) {
+                entries.remove();
+                queuedEvents--;
+                droppedCount.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeSpill() {
+        try {
+            if (spillOutput != null) {
+                spillOutput.close();
+            }
+            if (spillInput != null) {
+                spillInput.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spillOutput = null;
+        spillInput = null;
+        spillWritten = 0;
+        spillRead = 0;
+        if (spillFile != null && !spillFile.delete()) {
+            Log.w("Analyst", "Could not delete spill file");
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static class Entry {
+        private final Event event;
+        private final Class<?> activity;
+        private final Runnable task;
+        private long position;
+
+        private Entry(Event event, Class<?> activity) {
+            this.event = event;
+            this.activity = activity;
+            this.task = null;
+        }
+
+        private Entry(Runnable task) {
+            this.event = null;
+            this.activity = null;
+            this.task = task;
+        }
+    }
+
+}
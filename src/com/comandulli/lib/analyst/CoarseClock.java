@@ -0,0 +1,97 @@
+package com.comandulli.lib.analyst;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A clock reading the wall time from a value cached by a ticker thread.
+ * <p>
+ * On hot paths reading the cached value costs a volatile read instead of a system call,
+ * at the price of lagging behind the real time by up to the resolution.
+ * Event timestamps are precise to the second, so a resolution of a few milliseconds is invisible in them.
+ * The monotonic time is read directly, durations keep their precision.
+ * <p>
+ * The ticker is a thread started with the clock, by default a daemon named after its role, {@link #stop()} it when replacing the clock.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class CoarseClock implements EventClock {
+
+    /**
+     * The default resolution in milliseconds.
+     */
+    public static final long DEFAULT_RESOLUTION = 10;
+
+    private final long resolution;
+    private final Thread ticker;
+    private volatile long millis = System.currentTimeMillis();
+    private volatile boolean stopped;
+
+    /**
+     * Instantiates a new Coarse clock with the default resolution.
+     */
+    public CoarseClock() {
+        this(DEFAULT_RESOLUTION);
+    }
+
+    /**
+     * Instantiates a new Coarse clock, starting its ticker.
+     *
+     * @param resolution the interval between updates in milliseconds
+     */
+    public CoarseClock(long resolution) {
+        this(resolution, AnalystExecutors.named("AnalystClock", true));
+    }
+
+    /**
+     * Instantiates a new Coarse clock, starting its ticker on a thread made by a thread factory.
+     *
+     * @param resolution    the interval between updates in milliseconds
+     * @param threadFactory the factory of the ticker thread
+     */
+    public CoarseClock(long resolution, ThreadFactory threadFactory) {
+        this.resolution = resolution;
+        this.ticker = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stopped) {
+                    millis = System.currentTimeMillis();
+                    try {
+                        Thread.sleep(CoarseClock.this.resolution);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        ticker.start();
+    }
+
+    /**
+     * Gets the resolution.
+     *
+     * @return the interval between updates in milliseconds
+     */
+    public long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Stops the ticker, the time stays at its last value.
+     */
+    public void stop() {
+        stopped = true;
+        ticker.interrupt();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return millis;
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+}
@@ -0,0 +1,504 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.Priority;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A list of events kept in parallel primitive arrays instead of event objects, for large backlogs awaiting sync.
+ * <p>
+ * Every event takes its id, code, creation time and flags, plus its data in a shared byte arena,
+ * in its stored form {@link DataWrapper#toEncodedString()} as UTF-8 bytes: data read from the store and never
+ * modified is copied without being decoded, and with a dictionary repeated keys and values are already small ids.
+ * Timestamps are formatted back from the creation time, only those that do not match it are kept.
+ * <p>
+ * Events are materialized on access, so every access returns a new object: events are told apart by id.
+ * Their data is decoded only when read. Ids and codes can be scanned {@link #ids(Priority, int)} without materializing any event.
+ * Events are kept in the order of their ids, without an index taking memory: adding a newer event appends it
+ * without any lookup, removing or searching an event is a binary search over its id. An older event,
+ * such as a pending one moved to sync, is inserted in place, and one whose id is already present replaces it.
+ * <p>
+ * Removed events leave a hole reclaimed lazily. Removing the oldest events, the usual order of sync,
+ * keeps the first event reachable right away, other positional accesses close the holes first.
+ * <p>
+ * The list is synchronized, it is shared by the survey thread and the sync lanes.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class CompactEventBacklog extends AbstractList<Event> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NO_DATA = -1;
+    private static final int FLAG_REMOVED = 1;
+    private static final int FLAG_SYNC = 2;
+    private static final int PRIORITY_SHIFT = 2;
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private int[] codes = new int[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+    private int[] dataOffsets = new int[INITIAL_CAPACITY];
+    private byte[] arena = new byte[INITIAL_CAPACITY * 16];
+    private int arenaSize;
+    private int arenaGarbage;
+    private int count;
+    private int head;
+    private int removed;
+    private final HashMap<Integer, EventType> types = new HashMap<>();
+    private final HashMap<Long, String> timestamps = new HashMap<>();
+    private int cursor;
+
+    /**
+     * Instantiates a new empty Compact event backlog.
+     */
+    public CompactEventBacklog() {
+    }
+
+    /**
+     * Instantiates a new Compact event backlog holding events.
+     *
+     * @param events the events, in order
+     */
+    public CompactEventBacklog(Collection<Event> events) {
+        for (Event event : events) {
+            add(event);
+        }
+    }
+
+    /**
+     * Adds an event in the order of its id, at the end when it is the newest.
+     *
+     * @param event the event, with its id assigned
+     * @return true
+     * @throws IllegalArgumentException if the event has no id
+     */
+    @Override
+    public synchronized boolean add(Event event) {
+        long id = event.getId();
+        if (id == 0) {
+            throw new IllegalArgumentException("Events need an id to be kept compact");
+        }
+        if (count == ids.length) {
+            compact();
+            if (count > ids.length * 3 / 4) {
+                grow(ids.length + (ids.length >> 1));
+            }
+        }
+        // appending may compact, the slot is only known after it
+        int offset = append(event.getData());
+        long time = EventLogger.getTime(event);
+        String timestamp = event.getTimestamp();
+        if (time == 0 || timestamp == null || !timestamp.equals(EventLogger.formatTime(time))) {
+            timestamps.put(id, timestamp);
+        } else if (!timestamps.isEmpty()) {
+            // a replaced event may have kept its timestamp
+            timestamps.remove(id);
+        }
+        int slot = count == head || id > ids[count - 1] ? count++ : place(id);
+        ids[slot] = id;
+        codes[slot] = event.getType().getCode();
+        times[slot] = time;
+        flags[slot] = (byte) ((event.isSync() ? FLAG_SYNC : 0) | (event.getPriority().ordinal() << PRIORITY_SHIFT));
+        dataOffsets[slot] = offset;
+        if (!types.containsKey(codes[slot])) {
+            types.put(codes[slot], event.getType());
+        }
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public synchronized Event get(int position) {
+        return materialize(physical(position));
+    }
+
+    @Override
+    public synchronized int size() {
+        return count - removed;
+    }
+
+    /**
+     * Removes the event of the same id.
+     *
+     * @param object the event
+     * @return if it was present
+     */
+    @Override
+    public synchronized boolean remove(Object object) {
+        if (!(object instanceof Event)) {
+            return false;
+        }
+        int slot = find(((Event) object).getId());
+        if (slot < 0) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    @Override
+    public synchronized Event remove(int position) {
+        int slot = physical(position);
+        Event event = materialize(slot);
+        removeAt(slot);
+        return event;
+    }
+
+    /**
+     * If an event of the same id is present.
+     *
+     * @param object the event
+     * @return if it is present
+     */
+    @Override
+    public synchronized boolean contains(Object object) {
+        return object instanceof Event && find(((Event) object).getId()) >= 0;
+    }
+
+    @Override
+    public synchronized int indexOf(Object object) {
+        if (!(object instanceof Event)) {
+            return -1;
+        }
+        compact();
+        return find(((Event) object).getId());
+    }
+
+    @Override
+    public int lastIndexOf(Object object) {
+        return indexOf(object);
+    }
+
+    @Override
+    public synchronized void clear() {
+        count = 0;
+        head = 0;
+        removed = 0;
+        arenaSize = 0;
+        arenaGarbage = 0;
+        timestamps.clear();
+        modCount++;
+    }
+
+    @Override
+    public synchronized Object[] toArray() {
+        return toArray(new Event[size()]);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T[] toArray(T[] array) {
+        int size = size();
+        if (array.length < size) {
+            array = Arrays.copyOf(array, size);
+        }
+        int position = 0;
+        for (int slot = head; slot < count; slot++) {
+            if ((flags[slot] & FLAG_REMOVED) == 0) {
+                array[position++] = (T) materialize(slot);
+            }
+        }
+        if (array.length > size) {
+            array[size] = null;
+        }
+        return array;
+    }
+
+    /**
+     * Gets the first events of a priority, materializing only those.
+     *
+     * @param priority the priority
+     * @param limit    the maximum number of events
+     * @return the events, in order
+     */
+    public synchronized Event[] select(Priority priority, int limit) {
+        List<Event> selected = new ArrayList<>();
+        for (int slot = head; slot < count && selected.size() < limit; slot++) {
+            if ((flags[slot] & FLAG_REMOVED) == 0 && flags[slot] >>> PRIORITY_SHIFT == priority.ordinal()) {
+                selected.add(materialize(slot));
+            }
+        }
+        return selected.toArray(new Event[selected.size()]);
+    }
+
+    /**
+     * Gets the ids of the events, without materializing them.
+     *
+     * @return the ids, in order
+     */
+    public long[] ids() {
+        return ids(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets the ids of the first events of a priority, without materializing them.
+     *
+     * @param priority the priority, null for every event
+     * @param limit    the maximum number of ids
+     * @return the ids, in order
+     */
+    public synchronized long[] ids(Priority priority, int limit) {
+        long[] selected = new long[Math.min(size(), limit)];
+        int taken = 0;
+        for (int slot = head; slot < count && taken < selected.length; slot++) {
+            if ((flags[slot] & FLAG_REMOVED) == 0 && (priority == null || flags[slot] >>> PRIORITY_SHIFT == priority.ordinal())) {
+                selected[taken++] = ids[slot];
+            }
+        }
+        return taken == selected.length ? selected : Arrays.copyOf(selected, taken);
+    }
+
+    /**
+     * Gets the codes of the events, without materializing them.
+     *
+     * @return the codes, in order
+     */
+    public synchronized int[] codes() {
+        int[] selected = new int[size()];
+        int taken = 0;
+        for (int slot = head; slot < count; slot++) {
+            if ((flags[slot] & FLAG_REMOVED) == 0) {
+                selected[taken++] = codes[slot];
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Gets the events among some ids, materializing only those.
+     *
+     * @param sortedIds the ids, sorted
+     * @return the events present, in order
+     */
+    public synchronized Event[] select(long[] sortedIds) {
+        List<Event> selected = new ArrayList<>();
+        for (long id : sortedIds) {
+            int slot = find(id);
+            if (slot >= 0) {
+                selected.add(materialize(slot));
+            }
+        }
+        return selected.toArray(new Event[selected.size()]);
+    }
+
+    /**
+     * Gets the approximate heap taken by the arrays and the arena.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getFootprint() {
+        return ids.length * (8L + 4 + 8 + 1 + 4) + arena.length;
+    }
+
+    private int physical(int position) {
+        int size = size();
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size);
+        }
+        if (position > 0 && removed > head) {
+            // holes after the first event, close them before counting positions
+            compact();
+        }
+        return head + position;
+    }
+
+    /**
+     * Finds the slot of an id. Removed slots keep their ids, so every slot from the head stays sorted.
+     */
+    private int find(long id) {
+        int slot = Arrays.binarySearch(ids, head, count, id);
+        return slot >= 0 && (flags[slot] & FLAG_REMOVED) == 0 ? slot : -1;
+    }
+
+    /**
+     * Gets the slot for an id older than the newest one: its own slot when present, replacing the event,
+     * otherwise a slot opened at its position by shifting the events before it into a free slot before the head
+     * or those after it toward the end.
+     */
+    private int place(long id) {
+        int slot = Arrays.binarySearch(ids, head, count, id);
+        if (slot >= 0) {
+            if ((flags[slot] & FLAG_REMOVED) != 0) {
+                // a hole, its event was already released
+                removed--;
+            } else {
+                arenaGarbage += sizeOf(dataOffsets[slot]);
+            }
+            return slot;
+        }
+        slot = -slot - 1;
+        if (head > 0) {
+            // the slot before the head is a hole already released
+            shift(head, head - 1, slot - head);
+            head--;
+            removed--;
+            return slot - 1;
+        }
+        shift(slot, slot + 1, count - slot);
+        count++;
+        return slot;
+    }
+
+    private void shift(int from, int to, int length) {
+        System.arraycopy(ids, from, ids, to, length);
+        System.arraycopy(codes, from, codes, to, length);
+        System.arraycopy(times, from, times, to, length);
+        System.arraycopy(flags, from, flags, to, length);
+        System.arraycopy(dataOffsets, from, dataOffsets, to, length);
+    }
+
+    private void removeAt(int slot) {
+        flags[slot] |= FLAG_REMOVED;
+        if (!timestamps.isEmpty()) {
+            timestamps.remove(ids[slot]);
+        }
+        arenaGarbage += sizeOf(dataOffsets[slot]);
+        removed++;
+        while (head < count && (flags[head] & FLAG_REMOVED) != 0) {
+            head++;
+        }
+        if (head == count) {
+            clear();
+        }
+        modCount++;
+    }
+
+    private Event materialize(int slot) {
+        long id = ids[slot];
+        EventType type = types.get(codes[slot]);
+        String timestamp = timestamps.isEmpty() || !timestamps.containsKey(id) ? EventLogger.formatTime(times[slot]) : timestamps.get(id);
+        Event event = new Event(type, timestamp, data(dataOffsets[slot]));
+        event.setId(id);
+        event.setTime(times[slot]);
+        event.setSync((flags[slot] & FLAG_SYNC) != 0);
+        Priority priority = PRIORITIES[flags[slot] >>> PRIORITY_SHIFT];
+        if (priority != type.getPriority()) {
+            event.setPriority(priority);
+        }
+        return event;
+    }
+
+    /**
+     * Appends data to the arena in its stored form, as its length in bytes followed by the UTF-8 bytes.
+     */
+    private int append(DataWrapper data) {
+        if (data == null) {
+            return NO_DATA;
+        }
+        byte[] bytes = data.toEncodedString().getBytes(UTF8);
+        int needed = 5 + bytes.length;
+        if (arenaSize + needed > arena.length) {
+            if (arenaGarbage >= arena.length / 4) {
+                compact();
+            }
+            if (arenaSize + needed > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length + (arena.length >> 1), arenaSize + needed));
+            }
+        }
+        int offset = arenaSize;
+        cursor = offset;
+        putVarint(bytes.length);
+        System.arraycopy(bytes, 0, arena, cursor, bytes.length);
+        arenaSize = cursor + bytes.length;
+        return offset;
+    }
+
+    private DataWrapper data(int offset) {
+        if (offset == NO_DATA) {
+            return null;
+        }
+        cursor = offset;
+        int length = getVarint();
+        // decoded by the wrapper on first access to its entries
+        return DataWrapper.fromEncodedString(new String(arena, cursor, length, UTF8));
+    }
+
+    private int sizeOf(int offset) {
+        if (offset == NO_DATA) {
+            return 0;
+        }
+        cursor = offset;
+        int length = getVarint();
+        return cursor + length - offset;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            arena[cursor++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        arena[cursor++] = (byte) value;
+    }
+
+    private int getVarint() {
+        int value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = arena[cursor++];
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Moves the remaining events to the start of the arrays, and their data to the start of the arena
+     * once a quarter of it is garbage.
+     */
+    private void compact() {
+        if (removed == 0 && arenaGarbage < arena.length / 4) {
+            return;
+        }
+        byte[] target = arenaGarbage >= arena.length / 4 ? new byte[arena.length] : null;
+        int targetSize = 0;
+        int live = 0;
+        for (int slot = head; slot < count; slot++) {
+            if ((flags[slot] & FLAG_REMOVED) != 0) {
+                continue;
+            }
+            ids[live] = ids[slot];
+            codes[live] = codes[slot];
+            times[live] = times[slot];
+            flags[live] = flags[slot];
+            int offset = dataOffsets[slot];
+            if (target != null && offset != NO_DATA) {
+                int size = sizeOf(offset);
+                System.arraycopy(arena, offset, target, targetSize, size);
+                offset = targetSize;
+                targetSize += size;
+            }
+            dataOffsets[live] = offset;
+            live++;
+        }
+        if (target != null) {
+            arena = target;
+            arenaSize = targetSize;
+            arenaGarbage = 0;
+        }
+        count = live;
+        head = 0;
+        removed = 0;
+    }
+
+    private void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        codes = Arrays.copyOf(codes, capacity);
+        times = Arrays.copyOf(times, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        dataOffsets = Arrays.copyOf(dataOffsets, capacity);
+    }
+
+}
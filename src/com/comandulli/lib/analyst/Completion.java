@@ -0,0 +1,204 @@
+package com.comandulli.lib.analyst;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The handle of a flush, drain or shutdown of an analyst {@see ActionAnalyst#flush()}.
+ * <p>
+ * The work runs in the background, the handle tells the stage it reached
+ * for the events logged before the request. A completion is done once its target stage is reached,
+ * or once it gave up on it, and its stage then never changes.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class Completion implements Future<Completion.Stage> {
+
+    /**
+     * How far the events logged before the request went, each stage includes the previous ones.
+     */
+    public enum Stage {
+        /**
+         * Nothing is guaranteed.
+         */
+        None, /**
+         * Every event was surveyed and the events the surveys kept are durable in the store.
+         */
+        Persisted, /**
+         * Besides, every event to sync was acknowledged by the server.
+         */
+        Synced
+    }
+
+    /**
+     * Notified once a completion is done.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the thread completing it, or right away if it is already done.
+         *
+         * @param completion the completion
+         */
+        void onComplete(Completion completion);
+
+    }
+
+    private final Stage target;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Listener> listeners = new ArrayList<>();
+    private volatile Stage stage = Stage.None;
+
+    /**
+     * Instantiates a new Completion.
+     *
+     * @param target the stage aimed at
+     */
+    Completion(Stage target) {
+        this.target = target;
+    }
+
+    /**
+     * Gets the stage aimed at.
+     *
+     * @return the stage
+     */
+    public Stage getTarget() {
+        return target;
+    }
+
+    /**
+     * Gets the stage reached so far.
+     *
+     * @return the stage
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * If a stage was reached.
+     *
+     * @param stage the stage
+     * @return if the stage reached includes it
+     */
+    public boolean hasReached(Stage stage) {
+        return this.stage.compareTo(stage) >= 0;
+    }
+
+    /**
+     * If the target stage was reached.
+     *
+     * @return if it succeeded
+     */
+    public boolean isSucceeded() {
+        return hasReached(target);
+    }
+
+    /**
+     * Adds a listener.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            if (done.getCount() > 0) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        call(listener);
+    }
+
+    /**
+     * Waits for the completion to be done.
+     *
+     * @param timeout the maximum wait in milliseconds
+     * @return if it is done
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean await(long timeout) throws InterruptedException {
+        return done.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Stage get() throws InterruptedException {
+        done.await();
+        return stage;
+    }
+
+    @Override
+    public Stage get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return stage;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * The work cannot be cancelled, it always runs to its end.
+     *
+     * @param mayInterruptIfRunning ignored
+     * @return false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * Records a stage reached, while not done.
+     *
+     * @param stage the stage
+     */
+    void advance(Stage stage) {
+        if (done.getCount() > 0 && stage.compareTo(this.stage) > 0) {
+            this.stage = stage;
+        }
+    }
+
+    /**
+     * Marks it as done and notifies the listeners.
+     */
+    void complete() {
+        List<Listener> notified;
+        synchronized (listeners) {
+            if (done.getCount() == 0) {
+                return;
+            }
+            done.countDown();
+            notified = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Listener listener : notified) {
+            call(listener);
+        }
+    }
+
+    private void call(Listener listener) {
+        try {
+            listener.onComplete(this);
+        } catch (RuntimeException e) {
+            Log.e("ERROR", "Caught error in completion listener");
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * A survey driven by a Survey machine {@see SurveyMachine} instead of hand written handlers.
+ * <p>
+ * The state of every instance lives in primitive arrays, together with the pending events it added,
+ * so resolving them never searches the pending list. Events left pending by a previous run are
+ * searched by code instead, and instances start again from the initial state.
+ * An instance whose pending event expires starts again from the initial state as well,
+ * and pending an event over one still pending expires the older one first {@link #expire(Event)}.
+ * Triggers without a transition from the current state fall back to the Action survey {@see ActionSurvey}.
+ * <p>
+ * Like every survey it is only called on the survey thread.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class DeclarativeSurvey extends ActionSurvey {
+
+    private static final String SINGLE_INSTANCE = "";
+
+    private final SurveyMachine machine;
+    private final HashMap<String, Integer> instances = new HashMap<>();
+    private int[] states = new int[1];
+    private String[] keys = new String[1];
+    private Event[] pendingEvents;
+    private int[] freeInstances = new int[1];
+    private int freeCount;
+    private int instanceCount;
+
+    /**
+     * Instantiates a new Declarative survey.
+     *
+     * @param analyst the analyst
+     * @param machine the compiled definition
+     */
+    public DeclarativeSurvey(ActionAnalyst analyst, SurveyMachine machine) {
+        super(analyst);
+        this.machine = machine;
+        this.pendingEvents = new Event[machine.pendingSlotCount];
+        Collections.addAll(contained, machine.contained);
+    }
+
+    /**
+     * Gets the machine.
+     *
+     * @return the machine
+     */
+    public SurveyMachine getMachine() {
+        return machine;
+    }
+
+    /**
+     * Gets the current state, of the single instance.
+     *
+     * @return the name of the state
+     */
+    public String getState() {
+        return getState(SINGLE_INSTANCE);
+    }
+
+    /**
+     * Gets the current state of an instance.
+     *
+     * @param instance the value of the instance key
+     * @return the name of the state
+     */
+    public String getState(String instance) {
+        Integer index = instances.get(instance);
+        return machine.getStateName(index == null ? 0 : states[index]);
+    }
+
+    @Override
+    public void survey(Event event, Class<?> activity) {
+        if (!fire(machine.eventSlot(event.getType().getCode()), event.getData())) {
+            super.survey(event, activity);
+        }
+    }
+
+    @Override
+    public void open(DataWrapper data) {
+        if (!fire(machine.callbackSlot(SuperType.Open), data)) {
+            super.open(data);
+        }
+    }
+
+    @Override
+    public void close(DataWrapper data) {
+        if (!fire(machine.callbackSlot(SuperType.Close), data)) {
+            super.close(data);
+        }
+    }
+
+    @Override
+    public void terminate(DataWrapper data) {
+        if (!fire(machine.callbackSlot(SuperType.Terminated), data)) {
+            super.terminate(data);
+        }
+    }
+
+    @Override
+    public void pause(DataWrapper data) {
+        if (!fire(machine.callbackSlot(SuperType.Pause), data)) {
+            super.pause(data);
+        }
+    }
+
+    @Override
+    public void resume(DataWrapper data) {
+        if (!fire(machine.callbackSlot(SuperType.Resume), data)) {
+            super.resume(data);
+        }
+    }
+
+    @Override
+    public void expire(Event event) {
+        // forget the expired event, resolving it later would sync it twice,
+        // and restart its instance, no transition can resolve it anymore
+        for (int i = 0; i < pendingEvents.length; i++) {
+            if (pendingEvents[i] == event) {
+                pendingEvents[i] = null;
+                restart(i / machine.pendingSlotCount);
+            }
+        }
+        super.expire(event);
+    }
+
+    private boolean fire(int slot, DataWrapper data) {
+        String key = instanceOf(data);
+        Integer existing = instances.get(key);
+        int instance = existing == null ? -1 : existing;
+        int transition = machine.transition(instance < 0 ? 0 : states[instance], slot, data);
+        if (transition < 0) {
+            return false;
+        }
+        if (instance < 0) {
+            instance = allocate();
+            instances.put(key, instance);
+            keys[instance] = key;
+        }
+        states[instance] = machine.getTarget(transition);
+        int base = instance * machine.pendingSlotCount;
+        for (int a = machine.actionStart[transition]; a < machine.actionStart[transition + 1]; a++) {
+            perform(machine.actionOps[a], machine.actionTypes[a], base, data);
+        }
+        if (states[instance] == 0 && isIdle(base)) {
+            instances.remove(key);
+            release(instance);
+        }
+        return true;
+    }
+
+    private void restart(int instance) {
+        if (keys[instance] == null) {
+            return;
+        }
+        states[instance] = 0;
+        if (isIdle(instance * machine.pendingSlotCount)) {
+            instances.remove(keys[instance]);
+            release(instance);
+        }
+    }
+
+    private void perform(int op, int type, int base, DataWrapper data) {
+        int slot = machine.pendingSlots[type];
+        int code = machine.types[type].getCode();
+        switch (op) {
+            case SurveyDefinition.ACTION_PEND:
+                Event previous = pendingEvents[base + slot];
+                if (previous != null) {
+                    // the slot is cleared first, the instance is not restarted by the expiry
+                    pendingEvents[base + slot] = null;
+                    expire(previous);
+                }
+                Event event = new Event(machine.types[type], analyst.getCurrentTime(), data);
+                pendingEvents[base + slot] = event;
+                analyst.addToPending(event);
+                break;
+            case SurveyDefinition.ACTION_SYNC:
+                analyst.addToSync(new Event(machine.types[type], analyst.getCurrentTime(), data));
+                break;
+            case SurveyDefinition.ACTION_RESOLVE:
+            case SurveyDefinition.ACTION_DISCARD:
+                Event pending = slot < 0 ? null : pendingEvents[base + slot];
+                if (pending != null) {
+                    pendingEvents[base + slot] = null;
+                } else {
+                    pending = analyst.searchPendingEvent(code);
+                }
+                if (pending != null) {
+                    if (op == SurveyDefinition.ACTION_RESOLVE) {
+                        analyst.moveFromPendingToSync(pending);
+                    } else {
+                        analyst.removeFromPending(pending);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private String instanceOf(DataWrapper data) {
+        if (machine.instanceKey == null || data == null) {
+            return SINGLE_INSTANCE;
+        }
+        String value = data.getValue(machine.instanceKey);
+        return value == null ? SINGLE_INSTANCE : value;
+    }
+
+    private boolean isIdle(int base) {
+        for (int i = base; i < base + machine.pendingSlotCount; i++) {
+            if (pendingEvents[i] != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return freeInstances[--freeCount];
+        }
+        int instance = instanceCount++;
+        if (instance == states.length) {
+            states = Arrays.copyOf(states, states.length * 2);
+            keys = Arrays.copyOf(keys, states.length);
+            pendingEvents = Arrays.copyOf(pendingEvents, states.length * machine.pendingSlotCount);
+        }
+        return instance;
+    }
+
+    private void release(int instance) {
+        states[instance] = 0;
+        keys[instance] = null;
+        if (freeCount == freeInstances.length) {
+            freeInstances = Arrays.copyOf(freeInstances, freeInstances.length * 2);
+        }
+        freeInstances[freeCount++] = instance;
+    }
+
+}
@@ -0,0 +1,287 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Aggregates the time users stay on each activity.
+ * <p>
+ * Every view resume is paired with the following view pause of the same activity,
+ * the time in between is added to the activity count, total, maximum
+ * and to a histogram of power of two buckets in seconds.
+ * <p>
+ * Counts and totals {@link #getCount(String)} cover a rolling period, the last period up to now,
+ * kept as {@link #SLICES} slices of the period that expire one at a time.
+ * <p>
+ * Every period the aggregates gathered since the previous ones are added to sync as one
+ * {@link #EVENT_VIEW_DWELL} per activity. The period is timed by the timer wheel of the analyst {@see TimerWheel},
+ * and the aggregates are added on the survey thread, like every other event to sync.
+ * With {@link #setReplaceRawEvents(boolean)} the raw view events are no longer synced.
+ * <p>
+ * Register it with {@link ActionAnalyst#addObserver(EventObserver)}.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class DwellTimeAggregator implements EventObserver {
+
+    /**
+     * The constant EVENT_VIEW_DWELL.
+     * Dwell time aggregates of an activity over a period.
+     */
+    public static final EventType EVENT_VIEW_DWELL = new EventType(399, "ViewDwell", SuperType.Terminated);
+    /**
+     * The number of histogram buckets, the last one holds everything above it.
+     */
+    public static final int BUCKETS = 16;
+    /**
+     * The number of slices of the rolling period.
+     */
+    public static final int SLICES = 8;
+
+    private final ActionAnalyst analyst;
+    private final long period;
+    private final long slice;
+    private final HashMap<String, Slot> slots = new HashMap<>();
+    private String periodStartTimestamp;
+    private TimerWheel.Timeout timeout;
+
+    /**
+     * Instantiates a new Dwell time aggregator.
+     *
+     * @param analyst the analyst receiving the aggregates
+     * @param period  the period of the aggregates in milliseconds
+     */
+    public DwellTimeAggregator(ActionAnalyst analyst, long period) {
+        this.analyst = analyst;
+        this.period = period;
+        this.slice = Math.max(period / SLICES, 1);
+    }
+
+    /**
+     * Sets if the aggregates replace the raw view events in sync.
+     *
+     * @param replace if raw view events are excluded from sync
+     */
+    public void setReplaceRawEvents(boolean replace) {
+        if (replace) {
+            analyst.excludeFromSync(EventLogger.EVENT_VIEW_RESUME.getCode());
+            analyst.excludeFromSync(EventLogger.EVENT_VIEW_PAUSE.getCode());
+        }
+    }
+
+    @Override
+    public synchronized void onEvent(Event event, Class<?> activity) {
+        int code = event.getType().getCode();
+        boolean resume = code == EventLogger.EVENT_VIEW_RESUME.getCode();
+        if (!resume && code != EventLogger.EVENT_VIEW_PAUSE.getCode()) {
+            return;
+        }
+        if (periodStartTimestamp == null) {
+            periodStartTimestamp = event.getTimestamp();
+        }
+        if (timeout == null) {
+            schedule();
+        }
+        String name = event.getData() != null ? event.getData().getValue("activity") : null;
+        if (name == null) {
+            name = activity.getSimpleName();
+        }
+        Slot slot = slots.get(name);
+        if (slot == null) {
+            slot = new Slot();
+            slots.put(name, slot);
+        }
+        long index = EventLogger.getTime(event) / slice;
+        if (resume) {
+            if (slot.opened != null) {
+                slot.addUnpaired(index);
+            }
+            slot.opened = event;
+        } else if (slot.opened != null) {
+            // measured on the monotonic clock, a change of the wall clock in between does not matter
+            slot.add(index, Math.max(EventLogger.getElapsed(slot.opened, event), 0));
+            slot.opened = null;
+        } else {
+            slot.addUnpaired(index);
+        }
+    }
+
+    /**
+     * Adds the aggregates gathered so far to sync and starts a new period.
+     * <p>
+     * They are added on the survey thread, after the events already queued.
+     */
+    public void flush() {
+        analyst.getAnalyzeQueue().execute(new Runnable() {
+            @Override
+            public void run() {
+                emit();
+            }
+        });
+    }
+
+    /**
+     * Gets the number of views of an activity in the rolling period.
+     *
+     * @param activity the activity name
+     * @return the number
+     */
+    public synchronized int getCount(String activity) {
+        Slot slot = slots.get(activity);
+        return slot == null ? 0 : (int) slot.sum(slot.counts, analyst.getClock().currentTimeMillis() / slice);
+    }
+
+    /**
+     * Gets the total dwell time of an activity in the rolling period.
+     *
+     * @param activity the activity name
+     * @return the time in milliseconds
+     */
+    public synchronized long getTotal(String activity) {
+        Slot slot = slots.get(activity);
+        return slot == null ? 0 : slot.sum(slot.totals, analyst.getClock().currentTimeMillis() / slice);
+    }
+
+    private void schedule() {
+        timeout = analyst.scheduleTimeout(new Runnable() {
+            @Override
+            public void run() {
+                // added to sync on the survey thread, never on the thread logging events nor the timer
+                analyst.getAnalyzeQueue().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (DwellTimeAggregator.this) {
+                            timeout = null;
+                            if (emit()) {
+                                schedule();
+                            }
+                        }
+                    }
+                });
+            }
+        }, period);
+    }
+
+    /**
+     * Adds the aggregates gathered since the previous ones to sync.
+     *
+     * @return if any activity is still open or had aggregates, so the next period is timed
+     */
+    private synchronized boolean emit() {
+        String periodEndTimestamp = analyst.getCurrentTime();
+        boolean active = false;
+        Iterator<Map.Entry<String, Slot>> iterator = slots.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Slot> entry = iterator.next();
+            Slot slot = entry.getValue();
+            if (slot.opened != null) {
+                active = true;
+            }
+            if (slot.count == 0 && slot.unpaired == 0) {
+                if (slot.opened == null && slot.sum(slot.counts, analyst.getClock().currentTimeMillis() / slice) == 0) {
+                    iterator.remove();
+                }
+                continue;
+            }
+            active = true;
+            DataWrapper data = new DataWrapper();
+            data.putValue("activity", entry.getKey());
+            data.putValue("count", String.valueOf(slot.count));
+            data.putValue("total", String.valueOf(slot.total));
+            data.putValue("max", String.valueOf(slot.max));
+            data.putValue("unpaired", String.valueOf(slot.unpaired));
+            data.putValue("histogram", slot.encodeHistogram());
+            data.putValue("from", periodStartTimestamp);
+            data.putValue("to", periodEndTimestamp);
+            analyst.addToSync(new Event(EVENT_VIEW_DWELL, periodEndTimestamp, data));
+            slot.reset();
+        }
+        periodStartTimestamp = active ? periodEndTimestamp : null;
+        return active;
+    }
+
+    /**
+     * Aggregates of a single activity: those not synced yet,
+     * and counts and totals per slice of the rolling period. The open view survives across periods.
+     */
+    private static class Slot {
+        private Event opened;
+        private int count;
+        private long total;
+        private long max;
+        private int unpaired;
+        private final int[] histogram = new int[BUCKETS];
+        private final long[] indexes = new long[SLICES];
+        private final long[] counts = new long[SLICES];
+        private final long[] totals = new long[SLICES];
+
+        private void add(long index, long dwell) {
+            count++;
+            total += dwell;
+            max = Math.max(max, dwell);
+            long seconds = dwell / 1000;
+            int bucket = seconds == 0 ? 0 : 64 - Long.numberOfLeadingZeros(seconds);
+            histogram[Math.min(bucket, BUCKETS - 1)]++;
+            int position = roll(index);
+            counts[position]++;
+            totals[position] += dwell;
+        }
+
+        private void addUnpaired(long index) {
+            unpaired++;
+            roll(index);
+        }
+
+        /**
+         * Gets the ring position of a slice, clearing what it held for an older slice.
+         */
+        private int roll(long index) {
+            int position = (int) (index % SLICES);
+            if (indexes[position] != index) {
+                indexes[position] = index;
+                counts[position] = 0;
+                totals[position] = 0;
+            }
+            return position;
+        }
+
+        private long sum(long[] values, long current) {
+            long sum = 0;
+            for (int i = 0; i < SLICES; i++) {
+                if (indexes[i] > current - SLICES && indexes[i] <= current) {
+                    sum += values[i];
+                }
+            }
+            return sum;
+        }
+
+        private String encodeHistogram() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < BUCKETS; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(histogram[i]);
+            }
+            return builder.toString();
+        }
+
+        private void reset() {
+            count = 0;
+            total = 0;
+            max = 0;
+            unpaired = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = 0;
+            }
+        }
+    }
+
+}
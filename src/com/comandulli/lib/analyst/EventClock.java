@@ -0,0 +1,44 @@
+package com.comandulli.lib.analyst;
+
+/**
+ * The source of the time events are stamped with, and of the durations measured between them.
+ * <p>
+ * The Event logger {@see EventLogger} reads the time through a clock,
+ * the system one unless another is set {@link EventLogger#setClock(EventClock)}.
+ * Wall time stamps events, monotonic time measures durations and is not affected by clock changes.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public interface EventClock {
+
+    /**
+     * The system clock.
+     */
+    EventClock SYSTEM = new EventClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Gets the current time.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    long currentTimeMillis();
+
+    /**
+     * Gets the monotonic time, only meaningful as a difference between two readings.
+     *
+     * @return the time in nanoseconds
+     */
+    long nanoTime();
+
+}
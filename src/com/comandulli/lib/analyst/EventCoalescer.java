@@ -0,0 +1,179 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Coalesces repeated events into a single counted event.
+ * <p>
+ * Consecutive events with the same code and the same data arriving within a window are merged,
+ * only the first one is analyzed, carrying the number of occurrences and
+ * the timestamps of the first and the last one.
+ * <p>
+ * Only one run is open at a time, so events reach the analysis in the order they arrived:
+ * any other event ends the open run, which is analyzed before it.
+ * A run also ends once its window runs out, scheduled on the timer wheel of the analyst {@see TimerWheel},
+ * once it holds the maximum number of events, or when {@link #flush(ActionAnalyst)} is called.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class EventCoalescer {
+
+    /**
+     * The data key holding the number of coalesced events.
+     */
+    public static final String KEY_COUNT = "count";
+    /**
+     * The data key holding the timestamp of the first coalesced event.
+     */
+    public static final String KEY_FIRST = "first";
+    /**
+     * The data key holding the timestamp of the last coalesced event.
+     */
+    public static final String KEY_LAST = "last";
+    /**
+     * The default maximum number of events merged into a run.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final long window;
+    private final int capacity;
+    private final Set<Integer> codes = new HashSet<>();
+    private Run open;
+
+    /**
+     * Instantiates a new Event coalescer coalescing the view events.
+     *
+     * @param window the window of a run in milliseconds
+     */
+    public EventCoalescer(long window) {
+        this(window, DEFAULT_CAPACITY);
+        addCode(EventLogger.EVENT_VIEW_RESUME.getCode());
+        addCode(EventLogger.EVENT_VIEW_PAUSE.getCode());
+    }
+
+    /**
+     * Instantiates a new Event coalescer, without any code to coalesce.
+     *
+     * @param window   the window of a run in milliseconds
+     * @param capacity the maximum number of events merged into a run
+     */
+    public EventCoalescer(long window, int capacity) {
+        this.window = window;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a code to be coalesced.
+     *
+     * @param code the code of the event type
+     */
+    public synchronized void addCode(int code) {
+        codes.add(code);
+    }
+
+    /**
+     * Offers an incoming event.
+     * <p>
+     * The event either joins the open run, or ends it and then opens a new one,
+     * or is analyzed right away if its code is not coalesced.
+     *
+     * @param event    the event
+     * @param activity the class
+     * @param analyst  the analyst receiving the coalesced events
+     */
+    public synchronized void offer(Event event, Class<?> activity, ActionAnalyst analyst) {
+        Run run = open;
+        if (run != null) {
+            if (run.joins(event, activity) && EventLogger.getElapsed(run.event, event) < window && run.count < capacity) {
+                run.count++;
+                run.last = event.getTimestamp();
+                return;
+            }
+            close(run, analyst);
+        }
+        if (!codes.contains(event.getType().getCode())) {
+            analyst.dispatch(event, activity);
+            return;
+        }
+        open = new Run(event, activity);
+        schedule(open, analyst);
+    }
+
+    /**
+     * Analyzes the open run right away.
+     *
+     * @param analyst the analyst receiving the coalesced events
+     */
+    public synchronized void flush(ActionAnalyst analyst) {
+        if (open != null) {
+            close(open, analyst);
+        }
+    }
+
+    /**
+     * Gets the number of open runs, one at most.
+     *
+     * @return the number
+     */
+    public synchronized int getOpenRuns() {
+        return open == null ? 0 : 1;
+    }
+
+    private void schedule(final Run run, final ActionAnalyst analyst) {
+        run.timeout = analyst.scheduleTimeout(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (EventCoalescer.this) {
+                    // the run may have ended meanwhile
+                    if (open == run) {
+                        close(run, analyst);
+                    }
+                }
+            }
+        }, window);
+    }
+
+    private void close(Run run, ActionAnalyst analyst) {
+        open = null;
+        if (run.timeout != null) {
+            run.timeout.cancel();
+        }
+        if (run.count > 1) {
+            DataWrapper data = run.event.getData();
+            if (data == null) {
+                data = new DataWrapper();
+                run.event.setData(data);
+            }
+            data.putValue(KEY_COUNT, String.valueOf(run.count));
+            data.putValue(KEY_FIRST, run.event.getTimestamp());
+            data.putValue(KEY_LAST, run.last);
+        }
+        analyst.dispatch(run.event, run.activity);
+    }
+
+    private static class Run {
+        private final Event event;
+        private final Class<?> activity;
+        private int count = 1;
+        private String last;
+        private TimerWheel.Timeout timeout;
+
+        private Run(Event event, Class<?> activity) {
+            this.event = event;
+            this.activity = activity;
+            this.last = event.getTimestamp();
+        }
+
+        private boolean joins(Event other, Class<?> otherActivity) {
+            DataWrapper data = event.getData();
+            return event.getType().getCode() == other.getType().getCode() && activity == otherActivity
+                    && (data == null ? other.getData() == null : data.equals(other.getData()));
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Attributes shared by all events, such as the device or the user, recorded once per change.
+ * <p>
+ * Every change of the attributes stores a snapshot {@link #EVENT_CONTEXT}, whose id becomes the context version.
+ * Stored events only carry that version under {@link #KEY_CONTEXT}, and each sync batch sends
+ * the attributes of every version its events refer to, once, in its header.
+ * <p>
+ * Snapshots are kept by the contractor but never enter the pending or the sync lists.
+ * The analyst counts the stored events referring to each version as they join and leave its lists,
+ * and a snapshot is deleted once it is neither the latest nor referred to.
+ * Removing the last attribute stores a snapshot without data, so the cleared context survives a restart.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class EventContext {
+
+    /**
+     * The constant EVENT_CONTEXT.
+     * A snapshot of the context attributes, never analyzed nor synced as an event.
+     */
+    public static final EventType EVENT_CONTEXT = new EventType(398, "Context", SuperType.Terminated);
+    /**
+     * The data key holding the context version of an event.
+     */
+    public static final String KEY_CONTEXT = "ctx";
+
+    private final EventContractor contractor;
+    private final HashMap<Long, Event> snapshots = new HashMap<>();
+    private final HashMap<Long, Integer> references = new HashMap<>();
+    private HashMap<String, String> attributes = new HashMap<>();
+    private long version;
+    private long latest;
+    private boolean counting;
+
+    /**
+     * Instantiates a new Event context.
+     *
+     * @param contractor the contractor storing the snapshots
+     */
+    public EventContext(EventContractor contractor) {
+        this.contractor = contractor;
+    }
+
+    /**
+     * Sets an attribute, recording a new version if it changed.
+     *
+     * @param key   the key
+     * @param value the value, null removes the attribute
+     */
+    public synchronized void setAttribute(String key, String value) {
+        String old = attributes.get(key);
+        if (value == null ? old == null : value.equals(old)) {
+            return;
+        }
+        HashMap<String, String> changed = new HashMap<>(attributes);
+        if (value == null) {
+            changed.remove(key);
+        } else {
+            changed.put(key, value);
+        }
+        attributes = changed;
+        DataWrapper data = null;
+        if (!changed.isEmpty()) {
+            data = new DataWrapper();
+            for (Map.Entry<String, String> entry : changed.entrySet()) {
+                data.putValue(entry.getKey(), entry.getValue());
+            }
+        }
+        Event snapshot = new Event(EVENT_CONTEXT, EventLogger.getCurrentTime(), data);
+        contractor.insert(snapshot);
+        snapshots.put(snapshot.getId(), snapshot);
+        long previous = latest;
+        latest = snapshot.getId();
+        version = data == null ? 0 : latest;
+        deleteUnreferenced(previous);
+    }
+
+    /**
+     * Gets an attribute of the current version.
+     *
+     * @param key the key
+     * @return the value
+     */
+    public synchronized String getAttribute(String key) {
+        return attributes.get(key);
+    }
+
+    /**
+     * Gets the current version, zero while there are no attributes.
+     *
+     * @return the version
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the attributes of a version.
+     *
+     * @param version the version
+     * @return the attributes, null if the version is unknown
+     */
+    public synchronized DataWrapper getAttributes(long version) {
+        Event snapshot = snapshots.get(version);
+        return snapshot == null ? null : snapshot.getData();
+    }
+
+    /**
+     * Gets the version an event refers to.
+     *
+     * @param event the event
+     * @return the version, zero if none
+     */
+    public static long getVersion(Event event) {
+        String value = event.getData() == null ? null : event.getData().getValue(KEY_CONTEXT);
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    /**
+     * Makes an event refer to the current version, unless it already refers to one.
+     *
+     * @param event the event
+     */
+    public synchronized void tag(Event event) {
+        if (version == 0 || getVersion(event) != 0) {
+            return;
+        }
+        if (event.getData() == null) {
+            event.setData(new DataWrapper());
+        }
+        event.getData().putValue(KEY_CONTEXT, String.valueOf(version));
+    }
+
+    /**
+     * Restores a stored snapshot, the latest one becomes the current version,
+     * none if it was stored without data.
+     *
+     * @param snapshot the snapshot
+     */
+    synchronized void restore(Event snapshot) {
+        snapshots.put(snapshot.getId(), snapshot);
+        if (snapshot.getId() > latest) {
+            latest = snapshot.getId();
+            HashMap<String, String> restored = new HashMap<>();
+            if (snapshot.getData() != null) {
+                for (String key : snapshot.getData().getKeys()) {
+                    restored.put(key, snapshot.getData().getValue(key));
+                }
+            }
+            attributes = restored;
+            version = restored.isEmpty() ? 0 : latest;
+        }
+    }
+
+    /**
+     * Counts a stored event referring to a version.
+     *
+     * @param version the version, zero for none
+     */
+    synchronized void retain(long version) {
+        if (version != 0) {
+            Integer count = references.get(version);
+            references.put(version, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Stops counting a stored event referring to a version, deleting its snapshot once unused.
+     *
+     * @param version the version, zero for none
+     */
+    synchronized void release(long version) {
+        Integer count = references.get(version);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            references.put(version, count - 1);
+        } else {
+            references.remove(version);
+            deleteUnreferenced(version);
+        }
+    }
+
+    /**
+     * Starts deleting unused snapshots, once every stored event is counted,
+     * deleting the ones no restored event refers to.
+     */
+    synchronized void startCounting() {
+        counting = true;
+        for (Long known : new HashSet<>(snapshots.keySet())) {
+            deleteUnreferenced(known);
+        }
+    }
+
+    private void deleteUnreferenced(long version) {
+        if (!counting || version == latest || references.containsKey(version)) {
+            return;
+        }
+        Event snapshot = snapshots.remove(version);
+        if (snapshot != null) {
+            contractor.removeEvent(snapshot);
+        }
+    }
+
+}
@@ -1,41 +1,137 @@
 package com.comandulli.lib.analyst;
 
+import android.util.Log;
+
 import com.comandulli.lib.analyst.entity.Event;
-import com.comandulli.lib.analyst.entity.EventContract;
+import com.comandulli.lib.analyst.store.ContractEventStore;
+import com.comandulli.lib.analyst.store.EventIterator;
+import com.comandulli.lib.analyst.store.EventQuery;
+import com.comandulli.lib.analyst.store.EventStore;
 import com.comandulli.lib.sqlite.ContractDatabase;
-import com.comandulli.lib.sqlite.contract.Query;
-import com.comandulli.lib.sqlite.contract.Query.Selection;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The type Event contractor.
  * Handles Contract {@see com.comandulli.lib.sqlite.contract.Contract} interactions of the Event {@see com.comandulli.lib.analyst.entity.Event} type.
+ * <p>
+ * All operations are delegated to an Event store {@see com.comandulli.lib.analyst.store.EventStore},
+ * by default a SQLite one.
+ * <p>
+ * Ids are generated in memory {@see EventIdGenerator}, so events can be persisted
+ * asynchronously {@link #setAsynchronous(boolean)}, in the order they were submitted.
  *
  * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
  * @since 1.0
  */
 public class EventContractor {
 
-    private final ContractDatabase contractDatabase;
+    private final EventStore store;
+    private final EventIdGenerator idGenerator = new EventIdGenerator();
+    private volatile ExecutorService writer;
+    private ThreadFactory threadFactory = AnalystExecutors.named("AnalystWriter", false);
 
     /**
-     * Instantiates a new Event contractor.
+     * Instantiates a new Event contractor backed by SQLite.
      *
      * @param contractDatabase the contract database
      */
     public EventContractor(ContractDatabase contractDatabase) {
-        this.contractDatabase = contractDatabase;
+        this(new ContractEventStore(contractDatabase));
+    }
+
+    /**
+     * Instantiates a new Event contractor backed by the given store.
+     *
+     * @param store the event store
+     */
+    public EventContractor(EventStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Sets if writes are made by a background thread.
+     * <p>
+     * Writes keep their order and reads wait for the writes submitted before them.
+     * Turning it off waits for the queued writes to finish, operations arriving meanwhile
+     * run on the caller once they are done.
+     *
+     * @param asynchronous if writes are asynchronous
+     */
+    public synchronized void setAsynchronous(boolean asynchronous) {
+        if (asynchronous && writer == null) {
+            writer = Executors.newSingleThreadExecutor(threadFactory);
+        } else if (!asynchronous && writer != null) {
+            ExecutorService current = writer;
+            writer = null;
+            current.shutdown();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    if (current.awaitTermination(1, TimeUnit.SECONDS)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sets the factory of the writer thread, used when writes become asynchronous.
+     *
+     * @param threadFactory the thread factory
+     */
+    public synchronized void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
     }
 
     /**
-     * Insert a new event.
+     * Generates a new event id.
+     *
+     * @param time the creation time of the event in milliseconds since the epoch
+     * @return the id
+     */
+    public long nextId(long time) {
+        return idGenerator.next(time);
+    }
+
+    /**
+     * Gets the id generator, to be advanced past the stored ids on startup.
+     *
+     * @return the id generator
+     */
+    public EventIdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    /**
+     * Insert a new event, generating its id if it has none.
      *
      * @param event the event
      */
-    public void insert(Event event) {
-        int id = (int) contractDatabase.insert(event);
-        event.setId(id);
+    public void insert(final Event event) {
+        if (event.getId() == 0) {
+            event.setId(idGenerator.next());
+        }
+        write(new Runnable() {
+            @Override
+            public void run() {
+                store.insert(event);
+            }
+        });
     }
 
     /**
@@ -54,9 +150,29 @@ public class EventContractor {
      *
      * @param event the event
      */
-    public void removeEvent(Event event) {
-        Selection selection = new Query().column(EventContract.COLUMN_ID).equalsTo(event.getId()).end();
-        contractDatabase.delete(Event.class, selection);
+    public void removeEvent(final Event event) {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                store.remove(event);
+            }
+        });
+    }
+
+    /**
+     * Updates the sync state of an event in place.
+     * <p>
+     * The event keeps its id, unlike removing and inserting it again.
+     *
+     * @param event the event, already holding its new state
+     */
+    public void updateSync(final Event event) {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                store.updateSync(event);
+            }
+        });
     }
 
     /**
@@ -64,9 +180,141 @@ public class EventContractor {
      *
      * @return the list
      */
-    @SuppressWarnings("unchecked")
     public List<Event> getList() {
-        return (List<Event>) contractDatabase.select(Event.class);
+        return read(new Callable<List<Event>>() {
+            @Override
+            public List<Event> call() {
+                return store.getList();
+            }
+        });
+    }
+
+    /**
+     * Gets a list of events in a sync state.
+     *
+     * @param sync the sync state
+     * @return the list
+     */
+    public List<Event> getList(final boolean sync) {
+        return read(new Callable<List<Event>>() {
+            @Override
+            public List<Event> call() {
+                return store.getList(sync);
+            }
+        });
+    }
+
+    /**
+     * Search the first stored event of a code in a sync state.
+     *
+     * @param code the code of the event type
+     * @param sync the sync state
+     * @return the event or null if none is found
+     */
+    public Event searchEvent(final int code, final boolean sync) {
+        return read(new Callable<Event>() {
+            @Override
+            public Event call() {
+                return store.searchEvent(code, sync);
+            }
+        });
+    }
+
+    /**
+     * Runs a query over the stored events {@see EventQuery}.
+     * <p>
+     * Events are read as the iterator advances, it only waits for the writes queued before the query.
+     *
+     * @param query the query
+     * @return the iterator over the matching events
+     */
+    public EventIterator query(final EventQuery query) {
+        return read(new Callable<EventIterator>() {
+            @Override
+            public EventIterator call() {
+                return store.query(query);
+            }
+        });
+    }
+
+    /**
+     * Makes every write submitted so far durable, waiting for the asynchronous ones first.
+     */
+    public void flush() {
+        read(new Callable<Void>() {
+            @Override
+            public Void call() {
+                store.flush();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Gets the event store in use.
+     *
+     * @return the store
+     */
+    public EventStore getStore() {
+        return store;
+    }
+
+    private void write(final Runnable operation) {
+        ExecutorService current = writer;
+        if (current == null) {
+            operation.run();
+            return;
+        }
+        try {
+            current.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        operation.run();
+                    } catch (RuntimeException e) {
+                        Log.e("ERROR", "Caught error persisting event");
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // writes just became synchronous, the lock is free once the queued ones are done
+            synchronized (this) {
+                operation.run();
+            }
+        }
+    }
+
+    private <T> T read(Callable<T> operation) {
+        ExecutorService current = writer;
+        if (current == null) {
+            try {
+                return operation.call();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        Future<T> result;
+        try {
+            result = current.submit(operation);
+        } catch (RejectedExecutionException e) {
+            // writes just became synchronous, the lock is free once the queued ones are done
+            synchronized (this) {
+                try {
+                    return operation.call();
+                } catch (Exception failure) {
+                    throw new IllegalStateException(failure);
+                }
+            }
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading events", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not read events", e.getCause());
+        }
     }
 
 }
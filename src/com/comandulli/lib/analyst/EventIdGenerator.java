@@ -0,0 +1,81 @@
+package com.comandulli.lib.analyst;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates unique, monotonic and time ordered 64-bit event ids in memory.
+ * <p>
+ * The high bits hold the milliseconds since {@link #EPOCH}, the low {@link #SEQUENCE_BITS}
+ * a sequence within the same millisecond. Ids never go backwards, not even when the clock does,
+ * the generator keeps counting from the last id handed out.
+ * <p>
+ * Since the id exists before the event is stored, the server can use it to discard
+ * duplicates of a retried upload.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class EventIdGenerator {
+
+    /**
+     * The epoch of the time bits, 2016-01-01 UTC.
+     */
+    public static final long EPOCH = 1451606400000L;
+    /**
+     * The number of bits of the sequence within a millisecond.
+     */
+    public static final int SEQUENCE_BITS = 20;
+
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * Generates the next id for the current time of the event clock {@link EventLogger#currentTimeMillis()}.
+     *
+     * @return the id
+     */
+    public long next() {
+        return next(EventLogger.currentTimeMillis());
+    }
+
+    /**
+     * Generates the next id for a time.
+     *
+     * @param time the time in milliseconds since the epoch
+     * @return the id
+     */
+    public long next(long time) {
+        long candidate = Math.max(time - EPOCH, 0) << SEQUENCE_BITS;
+        while (true) {
+            long previous = last.get();
+            long id = candidate > previous ? candidate : previous + 1;
+            if (last.compareAndSet(previous, id)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Makes sure every following id is greater than an id already in use, such as a stored one.
+     *
+     * @param id the id
+     */
+    public void advanceTo(long id) {
+        while (true) {
+            long previous = last.get();
+            if (previous >= id || last.compareAndSet(previous, id)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the time encoded in an id.
+     *
+     * @param id the id
+     * @return the time in milliseconds since the epoch
+     */
+    public static long getTime(long id) {
+        return (id >>> SEQUENCE_BITS) + EPOCH;
+    }
+
+}
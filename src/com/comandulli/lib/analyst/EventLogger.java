@@ -6,14 +6,20 @@ import com.comandulli.lib.analyst.entity.DataWrapper;
 import com.comandulli.lib.analyst.entity.Event;
 import com.comandulli.lib.analyst.entity.EventType;
 import com.comandulli.lib.analyst.entity.EventType.SuperType;
+import com.comandulli.lib.analyst.store.EventIterator;
+import com.comandulli.lib.analyst.store.EventQuery;
 import com.comandulli.lib.TimeStringFormatter;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Event logger is a fully static accessible class.
@@ -36,38 +42,105 @@ public class EventLogger {
 
     private static final List<Event> events = new ArrayList<>();
     private static ActionAnalyst currentAnalyst;
+    private static volatile EventClock clock = EventClock.SYSTEM;
     /**
      * The constant dateFormat for event timestamp formatting.
+     * <p>
+     * Formats are not thread safe and this one is shared, it is no longer used by the library.
+     *
+     * @deprecated format with {@link #formatTime(long)} and parse with {@link #getTime(Event)},
+     * every thread uses a format of its own
      */
+    @Deprecated
     public static final SimpleDateFormat dateFormat = new EventDateFormat(TimeStringFormatter.MY_SQL_DATETIME_FORMAT, Locale.UK, TimeStringFormatter.UNIVERSAL_TIME_ZONE);
+    private static final ThreadLocal<TimestampCache> timestampCache = new ThreadLocal<TimestampCache>() {
+        @Override
+        protected TimestampCache initialValue() {
+            return new TimestampCache();
+        }
+    };
 
     /**
      * Init.
      * <p>
      * Initializes the EventLogger context.
      * The analyst is notified by this class whenever an event is logged.
+     * <p>
+     * Only the pending events are read right away, the events to sync stored by a previous run
+     * are restored by a background thread {@link ActionAnalyst#restoreToSync(List)}.
      *
      * @param analyst the analyst
      */
-    public static void init(ActionAnalyst analyst) {
-        EventContractor contractor = analyst.getContractor();
-        List<Event> allEvents = contractor.getList();
-        List<Event> sync = new ArrayList<>();
+    public static void init(final ActionAnalyst analyst) {
+        final EventContractor contractor = analyst.getContractor();
+        final EventIdGenerator idGenerator = contractor.getIdGenerator();
+        // snapshots and views are read by code and the events to sync in the background,
+        // so startup reads the pending events only, whatever the size of the backlog
+        for (Event snapshot : query(contractor, new EventQuery().code(EventContext.EVENT_CONTEXT.getCode()))) {
+            idGenerator.advanceTo(snapshot.getId());
+            analyst.getEventContext().restore(snapshot);
+        }
+        List<Event> views = query(contractor, new EventQuery().code(EVENT_VIEW_RESUME.getCode()));
+        views.addAll(query(contractor, new EventQuery().code(EVENT_VIEW_PAUSE.getCode())));
+        Collections.sort(views, new Comparator<Event>() {
+            @Override
+            public int compare(Event first, Event second) {
+                return Long.compare(first.getId(), second.getId());
+            }
+        });
+        for (Event view : views) {
+            idGenerator.advanceTo(view.getId());
+            events.add(view);
+        }
         List<Event> pending = new ArrayList<>();
-        for (Event event : allEvents) {
-            int eventCode = event.getType().getCode();
-            if (eventCode == EVENT_VIEW_RESUME.getCode() || eventCode == EVENT_VIEW_PAUSE.getCode()) {
-                events.add(event);
-            } else {
-                if (event.isSync()) {
-                    sync.add(event);
-                } else {
-                    pending.add(event);
-                }
+        for (Event event : contractor.getList(false)) {
+            if (!isRestoredApart(event)) {
+                idGenerator.advanceTo(event.getId());
+                pending.add(event);
             }
         }
+        for (Event newest : query(contractor, new EventQuery().sync(true).newestFirst().limit(1))) {
+            idGenerator.advanceTo(newest.getId());
+        }
         currentAnalyst = analyst;
-        analyst.init(pending, sync);
+        analyst.beginRestore();
+        analyst.init(pending, new ArrayList<Event>());
+        analyst.getExecutors().getBackground().execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Event> sync = new ArrayList<>();
+                try {
+                    for (Event event : contractor.getList(true)) {
+                        if (!isRestoredApart(event)) {
+                            idGenerator.advanceTo(event.getId());
+                            sync.add(event);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    Log.e("ERROR", "Caught error restoring events to sync");
+                    e.printStackTrace();
+                }
+                analyst.restoreToSync(sync);
+            }
+        });
+    }
+
+    private static boolean isRestoredApart(Event event) {
+        int eventCode = event.getType().getCode();
+        return eventCode == EventContext.EVENT_CONTEXT.getCode() || eventCode == EVENT_VIEW_RESUME.getCode() || eventCode == EVENT_VIEW_PAUSE.getCode();
+    }
+
+    private static List<Event> query(EventContractor contractor, EventQuery query) {
+        List<Event> result = new ArrayList<>();
+        EventIterator iterator = contractor.query(query);
+        try {
+            while (iterator.hasNext()) {
+                result.add(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+        return result;
     }
 
     /**
@@ -153,9 +226,16 @@ public class EventLogger {
      */
     public static void onEvent(EventType eventType, DataWrapper data, Class<?> activity) {
         if (currentAnalyst != null) {
+            if (!currentAnalyst.admit(eventType)) {
+                return;
+            }
             try {
-                String timestamp = dateFormat.format(new Date());
-                Event event = new Event(eventType, timestamp, data);
+                EventClock current = currentAnalyst.getClock();
+                long now = current.currentTimeMillis();
+                Event event = new Event(eventType, formatTime(now), data);
+                event.setTime(now);
+                event.setNanoTime(current.nanoTime());
+                event.setId(currentAnalyst.getContractor().nextId(now));
                 events.add(event);
                 Log.w(activity.getSimpleName(), event.toString());
                 currentAnalyst.analyze(event, activity);
@@ -177,7 +257,128 @@ public class EventLogger {
      * @return the current time
      */
     public static String getCurrentTime() {
-        return dateFormat.format(new Date());
+        return formatTime(clock.currentTimeMillis());
+    }
+
+    /**
+     * Formats a time as an event timestamp.
+     * <p>
+     * Timestamps are precise to the second, every thread keeps the last one it formatted
+     * and only formats again once the second changes.
+     *
+     * @param millis the time in milliseconds since the epoch
+     * @return the timestamp
+     */
+    public static String formatTime(long millis) {
+        return timestampCache.get().format(millis);
+    }
+
+    /**
+     * Gets the monotonic time of the clock, only meaningful as a difference between two readings.
+     *
+     * @return the time in nanoseconds
+     */
+    public static long nanoTime() {
+        return clock.nanoTime();
+    }
+
+    /**
+     * Gets the time elapsed between two events.
+     * <p>
+     * Events logged by this process are measured on the monotonic clock, unaffected by changes of the wall clock,
+     * others by their creation times.
+     *
+     * @param from the earlier event
+     * @param to   the later event
+     * @return the time in milliseconds
+     */
+    public static long getElapsed(Event from, Event to) {
+        if (from.getNanoTime() != 0 && to.getNanoTime() != 0) {
+            return TimeUnit.NANOSECONDS.toMillis(to.getNanoTime() - from.getNanoTime());
+        }
+        return getTime(to) - getTime(from);
+    }
+
+    /**
+     * Gets the current time of the clock in milliseconds since the epoch.
+     *
+     * @return the current time
+     */
+    public static long currentTimeMillis() {
+        return clock.currentTimeMillis();
+    }
+
+    /**
+     * Sets the clock events are stamped with, null restores the system clock.
+     * Analysts given a clock of their own {@link ActionAnalyst#setClock(EventClock)} stamp their events with it instead.
+     *
+     * @param clock the clock
+     */
+    public static void setClock(EventClock clock) {
+        EventLogger.clock = clock == null ? EventClock.SYSTEM : clock;
+    }
+
+    /**
+     * Gets the clock events are stamped with.
+     *
+     * @return the clock
+     */
+    public static EventClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Gets the creation time of an event in milliseconds since the epoch.
+     * <p>
+     * Events loaded from storage only carry their timestamp string,
+     * it is parsed once and the result kept in the event.
+     *
+     * @param event the event
+     * @return the time, or zero if the timestamp could not be parsed
+     */
+    public static long getTime(Event event) {
+        long time = event.getTime();
+        if (time == 0 && event.getTimestamp() != null) {
+            time = parseTime(event.getTimestamp());
+            event.setTime(time);
+        }
+        return time;
+    }
+
+    /**
+     * Parses an event timestamp.
+     *
+     * @param timestamp the timestamp
+     * @return the time in milliseconds since the epoch, or zero if it could not be parsed
+     */
+    public static long parseTime(String timestamp) {
+        if (timestamp == null) {
+            return 0;
+        }
+        try {
+            return timestampCache.get().dateFormat.parse(timestamp).getTime();
+        } catch (ParseException e) {
+            Log.e("ERROR", "Caught error parsing timestamp " + timestamp);
+            return 0;
+        }
+    }
+
+    /**
+     * A date format of a single thread with the last timestamp it formatted.
+     */
+    private static class TimestampCache {
+        private final SimpleDateFormat dateFormat = new EventDateFormat(TimeStringFormatter.MY_SQL_DATETIME_FORMAT, Locale.UK, TimeStringFormatter.UNIVERSAL_TIME_ZONE);
+        private long second = Long.MIN_VALUE;
+        private String timestamp;
+
+        private String format(long millis) {
+            long current = millis >= 0 ? millis / 1000 : (millis - 999) / 1000;
+            if (current != second) {
+                timestamp = dateFormat.format(new Date(millis));
+                second = current;
+            }
+            return timestamp;
+        }
     }
 
     /**
@@ -0,0 +1,24 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.Event;
+
+/**
+ * An observer of the event stream of an analyst.
+ * <p>
+ * Observers see every event admitted for analysis, before it reaches any survey.
+ * They are called on the logging thread, so they should be quick.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public interface EventObserver {
+
+    /**
+     * Called for every event admitted for analysis.
+     *
+     * @param event    the event
+     * @param activity the class
+     */
+    void onEvent(Event event, Class<?> activity);
+
+}
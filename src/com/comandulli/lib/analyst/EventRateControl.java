@@ -0,0 +1,336 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rate control applied to events before they are analyzed.
+ * <p>
+ * Events can be sampled by code or by super type, and limited by token buckets
+ * per code and globally. Every dropped event is counted, so the server can
+ * re-weight what it receives.
+ * <p>
+ * Settings are meant to be made at startup, they rebuild the internal tables.
+ * Admission decisions only read those tables and update atomic counters,
+ * they never lock nor allocate.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class EventRateControl {
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final int SUPER_TYPES = SuperType.values().length;
+
+    private volatile Table table = new Table(new int[0], null);
+    private final double[] superTypeRates = new double[SUPER_TYPES];
+    private final AtomicLongArray superTypeSeen = new AtomicLongArray(SUPER_TYPES);
+    private final AtomicLongArray superTypeDropped = new AtomicLongArray(SUPER_TYPES);
+    private final AtomicLongArray global = new AtomicLongArray(2);
+    private volatile long globalInterval;
+    private volatile long globalTolerance;
+    private final long since = System.currentTimeMillis();
+
+    /**
+     * Instantiates a new Event rate control, admitting everything until configured.
+     */
+    public EventRateControl() {
+        for (int i = 0; i < SUPER_TYPES; i++) {
+            superTypeRates[i] = 1;
+        }
+    }
+
+    /**
+     * Sets the sampling rate of a code.
+     *
+     * @param code the code of the event type
+     * @param rate the fraction of events kept, between zero and one
+     */
+    public synchronized void setSampleRate(int code, double rate) {
+        Table next = table.with(code);
+        next.sampleRates[next.slot(code)] = rate;
+        table = next;
+    }
+
+    /**
+     * Sets the sampling rate of all codes of a super type without their own rate.
+     *
+     * @param superType the super type
+     * @param rate      the fraction of events kept, between zero and one
+     */
+    public synchronized void setSampleRate(SuperType superType, double rate) {
+        superTypeRates[superType.ordinal()] = rate;
+    }
+
+    /**
+     * Limits a code with a token bucket.
+     *
+     * @param code      the code of the event type
+     * @param perSecond the sustained number of events per second, greater than zero
+     * @param burst     the number of events admitted at once
+     * @throws IllegalArgumentException if the rate is not greater than zero
+     */
+    public synchronized void setRateLimit(int code, double perSecond, int burst) {
+        checkRate(perSecond);
+        Table next = table.with(code);
+        int slot = next.slot(code);
+        next.intervals[slot] = (long) (NANOS_PER_SECOND / perSecond);
+        next.tolerances[slot] = next.intervals[slot] * Math.max(burst - 1, 0);
+        table = next;
+    }
+
+    /**
+     * Limits all events with a token bucket.
+     *
+     * @param perSecond the sustained number of events per second, greater than zero
+     * @param burst     the number of events admitted at once
+     * @throws IllegalArgumentException if the rate is not greater than zero
+     */
+    public synchronized void setGlobalRateLimit(double perSecond, int burst) {
+        checkRate(perSecond);
+        globalInterval = (long) (NANOS_PER_SECOND / perSecond);
+        globalTolerance = globalInterval * Math.max(burst - 1, 0);
+    }
+
+    /**
+     * Decides if an event of a type is admitted, counting it as dropped otherwise.
+     *
+     * @param type the event type
+     * @return if admitted
+     */
+    public boolean admit(EventType type) {
+        Table current = table;
+        int code = type.getCode();
+        int slot = current.slot(code);
+        int superType = type.getSuperType().ordinal();
+        // sampling
+        if (slot >= 0 && current.sampleRates[slot] < 1) {
+            if (!sample(current.seen, slot, current.sampleRates[slot])) {
+                return drop(current, slot, superType);
+            }
+        } else if (superTypeRates[superType] < 1) {
+            if (!sample(superTypeSeen, superType, superTypeRates[superType])) {
+                // dropped by the super type, even if the code has a rate limit of its own
+                return drop(current, -1, superType);
+            }
+        }
+        long now = EventLogger.nanoTime();
+        // token buckets
+        if (slot >= 0 && current.intervals[slot] > 0) {
+            if (!take(current.buckets, slot, now, current.intervals[slot], current.tolerances[slot])) {
+                return drop(current, slot, superType);
+            }
+        }
+        long interval = globalInterval;
+        if (interval > 0 && !take(global, 0, now, interval, globalTolerance)) {
+            return drop(current, slot, superType);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of events of a code with its own settings dropped by those settings.
+     *
+     * @param code the code of the event type
+     * @return the number
+     */
+    public long getDroppedCount(int code) {
+        Table current = table;
+        int slot = current.slot(code);
+        return slot < 0 ? 0 : current.dropped.get(slot);
+    }
+
+    /**
+     * Gets the number of events of a super type dropped by its sampling rate,
+     * or by the global limit when their code has no settings of its own.
+     *
+     * @param superType the super type
+     * @return the number
+     */
+    public long getDroppedCount(SuperType superType) {
+        return superTypeDropped.get(superType.ordinal());
+    }
+
+    /**
+     * Gets the total number of dropped events.
+     *
+     * @return the number
+     */
+    public long getDroppedTotal() {
+        return global.get(1);
+    }
+
+    /**
+     * Gets the dropped counters of every code with its own settings.
+     * <p>
+     * Counters are cumulative since {@link #getSince()}.
+     *
+     * @return the counters by code
+     */
+    public Map<Integer, Long> getDroppedByCode() {
+        Table current = table;
+        Map<Integer, Long> counters = new HashMap<>();
+        for (int i = 0; i < current.keys.length; i++) {
+            if (current.keys[i] != EMPTY) {
+                counters.put(current.keys[i], current.dropped.get(i));
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Gets the sampling rate applied to a type.
+     *
+     * @param type the event type
+     * @return the fraction of events kept
+     */
+    public double getSampleRate(EventType type) {
+        Table current = table;
+        int slot = current.slot(type.getCode());
+        if (slot >= 0 && current.sampleRates[slot] < 1) {
+            return current.sampleRates[slot];
+        }
+        return superTypeRates[type.getSuperType().ordinal()];
+    }
+
+    /**
+     * Gets the time the counters started, in milliseconds since the epoch.
+     *
+     * @return the time
+     */
+    public long getSince() {
+        return since;
+    }
+
+    private static void checkRate(double perSecond) {
+        if (!(perSecond > 0)) {
+            throw new IllegalArgumentException("Rate must be greater than zero: " + perSecond);
+        }
+    }
+
+    private boolean drop(Table current, int slot, int superType) {
+        if (slot >= 0) {
+            current.dropped.incrementAndGet(slot);
+        } else {
+            superTypeDropped.incrementAndGet(superType);
+        }
+        global.incrementAndGet(1);
+        return false;
+    }
+
+    /**
+     * Keeps an even spread of events, the n-th event is kept when n * rate crosses an integer.
+     */
+    private static boolean sample(AtomicLongArray seen, int slot, double rate) {
+        long n = seen.getAndIncrement(slot);
+        return (long) ((n + 1) * rate) > (long) (n * rate);
+    }
+
+    /**
+     * Generic cell rate token bucket, a single theoretical arrival time per bucket.
+     */
+    private static boolean take(AtomicLongArray buckets, int slot, long now, long interval, long tolerance) {
+        while (true) {
+            long arrival = buckets.get(slot);
+            long base = arrival - now > 0 ? arrival : now;
+            if (base - now > tolerance) {
+                return false;
+            }
+            if (buckets.compareAndSet(slot, arrival, base + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Open addressing table of per code settings and counters.
+     */
+    private static class Table {
+        private final int[] keys;
+        private final double[] sampleRates;
+        private final long[] intervals;
+        private final long[] tolerances;
+        private final AtomicLongArray seen;
+        private final AtomicLongArray buckets;
+        private final AtomicLongArray dropped;
+
+        private Table(int[] codes, Table previous) {
+            int capacity = 4;
+            while (capacity < codes.length * 2) {
+                capacity <<= 1;
+            }
+            keys = new int[capacity];
+            sampleRates = new double[capacity];
+            intervals = new long[capacity];
+            tolerances = new long[capacity];
+            seen = new AtomicLongArray(capacity);
+            buckets = new AtomicLongArray(capacity);
+            dropped = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                keys[i] = EMPTY;
+                sampleRates[i] = 1;
+            }
+            for (int code : codes) {
+                int slot = probe(code);
+                keys[slot] = code;
+                int old = previous == null ? -1 : previous.slot(code);
+                if (old >= 0) {
+                    sampleRates[slot] = previous.sampleRates[old];
+                    intervals[slot] = previous.intervals[old];
+                    tolerances[slot] = previous.tolerances[old];
+                    seen.set(slot, previous.seen.get(old));
+                    buckets.set(slot, previous.buckets.get(old));
+                    dropped.set(slot, previous.dropped.get(old));
+                }
+            }
+        }
+
+        private Table with(int code) {
+            if (slot(code) >= 0) {
+                return new Table(codes(), this);
+            }
+            int[] codes = codes();
+            int[] grown = new int[codes.length + 1];
+            System.arraycopy(codes, 0, grown, 0, codes.length);
+            grown[codes.length] = code;
+            return new Table(grown, this);
+        }
+
+        private int[] codes() {
+            int count = 0;
+            for (int key : keys) {
+                if (key != EMPTY) {
+                    count++;
+                }
+            }
+            int[] codes = new int[count];
+            int index = 0;
+            for (int key : keys) {
+                if (key != EMPTY) {
+                    codes[index++] = key;
+                }
+            }
+            return codes;
+        }
+
+        private int probe(int code) {
+            int mask = keys.length - 1;
+            int slot = (code * 0x9E3779B9) >>> 16 & mask;
+            while (keys[slot] != EMPTY && keys[slot] != code) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private int slot(int code) {
+            int slot = probe(code);
+            return keys[slot] == code ? slot : -1;
+        }
+    }
+
+}
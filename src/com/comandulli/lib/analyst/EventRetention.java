@@ -0,0 +1,256 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Retention caps for the events awaiting sync.
+ * <p>
+ * Caps can be set on the number of stored events, on their estimated size in bytes
+ * and on their age. When a cap is exceeded the analyst evicts events awaiting sync
+ * in small batches, choosing them with the eviction policy.
+ * Events older than the maximum age are always evicted first.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class EventRetention {
+
+    /**
+     * How events are chosen for eviction once a cap is exceeded.
+     */
+    public enum EvictionPolicy {
+        /**
+         * Drop the oldest events awaiting sync.
+         */
+        DropOldest, /**
+         * Drop the oldest events of the lowest priority codes first.
+         */
+        DropLowPriority, /**
+         * Thin out the oldest events, dropping every other one.
+         */
+        Downsample
+    }
+
+    /**
+     * The default number of events evicted per batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    /**
+     * Estimated overhead in bytes of a stored event besides its timestamp and data.
+     */
+    private static final int EVENT_OVERHEAD = 16;
+
+    private final int maxRows;
+    private final long maxBytes;
+    private final long maxAge;
+    private final EvictionPolicy policy;
+    private final HashMap<Integer, Integer> priorities = new HashMap<>();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Instantiates a new Event retention.
+     *
+     * @param maxRows  the maximum number of stored events, zero for no cap
+     * @param maxBytes the maximum estimated size of stored events in bytes, zero for no cap
+     * @param maxAge   the maximum age of an event awaiting sync in milliseconds, zero for no cap
+     * @param policy   the eviction policy
+     */
+    public EventRetention(int maxRows, long maxBytes, long maxAge, EvictionPolicy policy) {
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        this.policy = policy;
+    }
+
+    /**
+     * Sets the priority of a code, lower priorities are evicted first by {@link EvictionPolicy#DropLowPriority}.
+     * Codes default to priority zero.
+     *
+     * @param code     the code of the event type
+     * @param priority the priority
+     */
+    public void setPriority(int code, int priority) {
+        priorities.put(code, priority);
+    }
+
+    /**
+     * Gets the priority of a code.
+     *
+     * @param code the code of the event type
+     * @return the priority
+     */
+    public int getPriority(int code) {
+        Integer priority = priorities.get(code);
+        return priority == null ? 0 : priority;
+    }
+
+    /**
+     * Sets the maximum number of events evicted per batch.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Gets how many of the oldest events awaiting sync a batch is chosen from.
+     * Only {@link EvictionPolicy#DropLowPriority} looks at every event.
+     *
+     * @return the number of candidates, {@link Integer#MAX_VALUE} for all
+     */
+    public int getCandidateCount() {
+        // expired events come first, downsampling then takes every other one after them
+        return policy == EvictionPolicy.DropLowPriority ? Integer.MAX_VALUE : 3 * batchSize;
+    }
+
+    /**
+     * Chooses by their codes the events a batch can be selected from when every event is a candidate:
+     * the oldest ones, which come first when expired, and the oldest ones of every priority.
+     * Selecting the victims among them gives the same batch as among every event.
+     *
+     * @param codes the codes of the events awaiting sync, oldest first
+     * @return the positions of the candidates, in order
+     */
+    public int[] selectCandidates(int[] codes) {
+        int[] positions = new int[codes.length];
+        int taken = 0;
+        HashMap<Integer, Integer> perPriority = new HashMap<>();
+        for (int i = 0; i < codes.length; i++) {
+            int priority = getPriority(codes[i]);
+            Integer previous = perPriority.get(priority);
+            int count = previous == null ? 0 : previous;
+            if (i < batchSize || count < batchSize) {
+                positions[taken++] = i;
+                perPriority.put(priority, count + 1);
+            }
+        }
+        return Arrays.copyOf(positions, taken);
+    }
+
+    /**
+     * Gets the eviction policy.
+     *
+     * @return the policy
+     */
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * If the row or byte cap is exceeded.
+     *
+     * @param rows  the number of stored events
+     * @param bytes the estimated size of stored events
+     * @return if exceeded
+     */
+    public boolean isExceeded(int rows, long bytes) {
+        return (maxRows > 0 && rows > maxRows) || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    /**
+     * If an event is older than the maximum age.
+     *
+     * @param event the event
+     * @param now   the current time in milliseconds
+     * @return if expired
+     */
+    public boolean isExpired(Event event, long now) {
+        if (maxAge <= 0) {
+            return false;
+        }
+        long time = EventLogger.getTime(event);
+        return time > 0 && now - time > maxAge;
+    }
+
+    /**
+     * Estimates the stored size of an event.
+     *
+     * @param event the event
+     * @return the size in bytes
+     */
+    public static int sizeOf(Event event) {
+        int size = EVENT_OVERHEAD;
+        if (event.getTimestamp() != null) {
+            size += event.getTimestamp().length();
+        }
+        if (event.getData() != null) {
+            size += event.getData().toEncodedString().length();
+        }
+        return size;
+    }
+
+    /**
+     * Selects the next batch of events to evict.
+     *
+     * @param candidates the events awaiting sync, oldest first
+     * @param rows       the number of stored events
+     * @param bytes      the estimated size of stored events
+     * @param now        the current time in milliseconds
+     * @return the events to evict, at most one batch
+     */
+    public List<Event> selectVictims(Event[] candidates, int rows, long bytes, long now) {
+        List<Event> victims = new ArrayList<>();
+        boolean[] selected = new boolean[candidates.length];
+        int excessRows = maxRows > 0 ? rows - maxRows : 0;
+        long excessBytes = maxBytes > 0 ? bytes - maxBytes : 0;
+        for (int i = 0; i < candidates.length && victims.size() < batchSize; i++) {
+            if (!isExpired(candidates[i], now)) {
+                break;
+            }
+            selected[i] = true;
+            victims.add(candidates[i]);
+            excessRows--;
+            excessBytes -= sizeOf(candidates[i]);
+        }
+        if (excessRows <= 0 && excessBytes <= 0) {
+            return victims;
+        }
+        switch (policy) {
+            case DropLowPriority:
+                TreeSet<Integer> levels = new TreeSet<>();
+                for (Event candidate : candidates) {
+                    levels.add(getPriority(candidate.getType().getCode()));
+                }
+                for (int level : levels) {
+                    for (int i = 0; i < candidates.length && victims.size() < batchSize && (excessRows > 0 || excessBytes > 0); i++) {
+                        if (!selected[i] && getPriority(candidates[i].getType().getCode()) == level) {
+                            selected[i] = true;
+                            victims.add(candidates[i]);
+                            excessRows--;
+                            excessBytes -= sizeOf(candidates[i]);
+                        }
+                    }
+                }
+                break;
+            case Downsample:
+                for (int i = 1; i < candidates.length && victims.size() < batchSize && (excessRows > 0 || excessBytes > 0); i += 2) {
+                    if (!selected[i]) {
+                        selected[i] = true;
+                        victims.add(candidates[i]);
+                        excessRows--;
+                        excessBytes -= sizeOf(candidates[i]);
+                    }
+                }
+                break;
+            default:
+                for (int i = 0; i < candidates.length && victims.size() < batchSize && (excessRows > 0 || excessBytes > 0); i++) {
+                    if (!selected[i]) {
+                        selected[i] = true;
+                        victims.add(candidates[i]);
+                        excessRows--;
+                        excessBytes -= sizeOf(candidates[i]);
+                    }
+                }
+                break;
+        }
+        return victims;
+    }
+
+}
@@ -0,0 +1,525 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Counts the conversion of users along funnels, ordered steps of event codes.
+ * <p>
+ * A user enters a funnel with its first step and moves one step forward with each following step in order,
+ * as long as it arrives within the window since entering. The number of users reaching each step
+ * is counted, and the progress of every user is kept in a compact table of primitive arrays
+ * with a fixed capacity per funnel: expired progress is swept when full, and users that still do not fit are dropped.
+ * <p>
+ * Every step is counted in the period the user entered the funnel, so no step count exceeds the entries of its period.
+ * The counts of a period are added to sync as one {@link #EVENT_FUNNEL} per funnel once the window has passed
+ * since the period ended and none of its users can move forward anymore, those still in progress count as expired.
+ * With {@link #setReplaceRawEvents(boolean)} the step events themselves are no longer synced.
+ * <p>
+ * Users are told apart by a data key, looked up in the context attributes {@see EventContext} as well,
+ * events without it count as a single user.
+ * Register it with {@link ActionAnalyst#addRecordObserver(EventObserver)} to follow the events recorded by surveys,
+ * or with {@link ActionAnalyst#addObserver(EventObserver)} to follow the events logged.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class FunnelAggregator implements EventObserver {
+
+    /**
+     * The constant EVENT_FUNNEL.
+     * Step counts of a funnel over a period.
+     */
+    public static final EventType EVENT_FUNNEL = new EventType(397, "Funnel", SuperType.Terminated);
+    /**
+     * The default maximum number of users in progress per funnel.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final String SINGLE_USER = "";
+
+    private final ActionAnalyst analyst;
+    private final long period;
+    private final LinkedHashMap<String, Funnel> funnels = new LinkedHashMap<>();
+    private String userKey = "user";
+    private int capacity = DEFAULT_CAPACITY;
+    private int[] stepCodes = new int[0];
+    private int[][] stepTargets = new int[0][];
+    private Funnel[] funnelList = new Funnel[0];
+    private boolean replaceRawEvents;
+    private long periodStart;
+    private String periodStartTimestamp;
+    private long periodSequence;
+
+    /**
+     * Instantiates a new Funnel aggregator.
+     *
+     * @param analyst the analyst receiving the counts
+     * @param period  the period of the counts in milliseconds
+     */
+    public FunnelAggregator(ActionAnalyst analyst, long period) {
+        this.analyst = analyst;
+        this.period = period;
+    }
+
+    /**
+     * Sets the data key telling users apart, "user" by default.
+     *
+     * @param userKey the data key
+     */
+    public synchronized void setUserKey(String userKey) {
+        this.userKey = userKey;
+    }
+
+    /**
+     * Sets the maximum number of users in progress per funnel, for funnels added afterwards.
+     *
+     * @param capacity the capacity
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a funnel.
+     *
+     * @param name   the name
+     * @param window the time a user has to go from the first to the last step in milliseconds
+     * @param steps  the steps, in order
+     */
+    public synchronized void addFunnel(String name, long window, EventType... steps) {
+        int[] codes = new int[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            codes[i] = steps[i].getCode();
+        }
+        Funnel funnel = new Funnel(name, codes, window, capacity);
+        if (periodStart != 0) {
+            funnel.open(periodSequence, periodStartTimestamp);
+        }
+        funnels.put(name, funnel);
+        funnelList = funnels.values().toArray(new Funnel[funnels.size()]);
+        // index every step code to the funnels and steps it stands for
+        List<Integer> distinct = new ArrayList<>();
+        for (Funnel each : funnelList) {
+            for (int code : each.codes) {
+                if (!distinct.contains(code)) {
+                    distinct.add(code);
+                }
+            }
+        }
+        int[] sorted = new int[distinct.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = distinct.get(i);
+        }
+        Arrays.sort(sorted);
+        int[][] targets = new int[sorted.length][];
+        for (int c = 0; c < sorted.length; c++) {
+            int[] pairs = new int[0];
+            for (int f = 0; f < funnelList.length; f++) {
+                for (int s = 0; s < funnelList[f].codes.length; s++) {
+                    if (funnelList[f].codes[s] == sorted[c]) {
+                        pairs = Arrays.copyOf(pairs, pairs.length + 2);
+                        pairs[pairs.length - 2] = f;
+                        pairs[pairs.length - 1] = s;
+                    }
+                }
+            }
+            targets[c] = pairs;
+        }
+        stepCodes = sorted;
+        stepTargets = targets;
+        if (replaceRawEvents) {
+            excludeSteps(funnel);
+        }
+    }
+
+    /**
+     * Sets if the counts replace the step events in sync.
+     *
+     * @param replace if step events are excluded from sync
+     */
+    public synchronized void setReplaceRawEvents(boolean replace) {
+        this.replaceRawEvents = replace;
+        if (replace) {
+            for (Funnel funnel : funnelList) {
+                excludeSteps(funnel);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onEvent(Event event, Class<?> activity) {
+        int index = Arrays.binarySearch(stepCodes, event.getType().getCode());
+        if (index < 0) {
+            return;
+        }
+        long time = EventLogger.getTime(event);
+        if (periodStart == 0) {
+            startPeriod(time, event.getTimestamp());
+        } else if (time - periodStart >= period) {
+            endPeriod(time, event.getTimestamp());
+            startPeriod(time, event.getTimestamp());
+        }
+        emitEnded(time, event.getTimestamp());
+        long user = hash(userOf(event));
+        int[] targets = stepTargets[index];
+        for (int i = 0; i < targets.length; i += 2) {
+            funnelList[targets[i]].step(user, targets[i + 1], time);
+        }
+    }
+
+    /**
+     * Adds the counts of every period to sync right away, even those whose users may still move forward,
+     * and starts a new period. Users in progress are forgotten and their number is synced with the counts.
+     */
+    public synchronized void flush() {
+        if (periodStart != 0) {
+            long nowMillis = analyst.getClock().currentTimeMillis();
+            String now = EventLogger.formatTime(nowMillis);
+            endPeriod(nowMillis, now);
+            for (Funnel funnel : funnelList) {
+                while (!funnel.cohorts.isEmpty()) {
+                    emit(funnel, funnel.cohorts.poll(), now, false);
+                }
+            }
+            startPeriod(nowMillis, now);
+        }
+    }
+
+    /**
+     * Gets the number of users entering a funnel in the current period that reached each step so far.
+     *
+     * @param name the name of the funnel
+     * @return the counts by step, null if the funnel is unknown
+     */
+    public synchronized int[] getStepCounts(String name) {
+        Funnel funnel = funnels.get(name);
+        if (funnel == null) {
+            return null;
+        }
+        return funnel.current == null ? new int[funnel.codes.length] : funnel.current.counts.clone();
+    }
+
+    /**
+     * Gets the fraction of the users entering a funnel in the current period that reached its last step so far.
+     *
+     * @param name the name of the funnel
+     * @return the conversion rate, zero if nobody entered
+     */
+    public synchronized double getConversionRate(String name) {
+        Funnel funnel = funnels.get(name);
+        if (funnel == null || funnel.current == null || funnel.current.counts[0] == 0) {
+            return 0;
+        }
+        int[] counts = funnel.current.counts;
+        return (double) counts[counts.length - 1] / counts[0];
+    }
+
+    /**
+     * Gets the number of users in progress along a funnel.
+     *
+     * @param name the name of the funnel
+     * @return the number
+     */
+    public synchronized int getInProgress(String name) {
+        Funnel funnel = funnels.get(name);
+        return funnel == null ? 0 : funnel.progress.size;
+    }
+
+    private void excludeSteps(Funnel funnel) {
+        for (int code : funnel.codes) {
+            analyst.excludeFromSync(code);
+        }
+    }
+
+    private String userOf(Event event) {
+        DataWrapper data = event.getData();
+        String user = data == null ? null : data.getValue(userKey);
+        if (user == null) {
+            EventContext context = analyst.getEventContext();
+            long version = EventContext.getVersion(event);
+            DataWrapper attributes = context.getAttributes(version != 0 ? version : context.getVersion());
+            user = attributes == null ? null : attributes.getValue(userKey);
+        }
+        return user == null ? SINGLE_USER : user;
+    }
+
+    private static long hash(String user) {
+        // 64-bit FNV-1a, collisions between users are negligible for the counts
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < user.length(); i++) {
+            hash ^= user.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private void startPeriod(long time, String timestamp) {
+        periodStart = time;
+        periodStartTimestamp = timestamp;
+        periodSequence++;
+        for (Funnel funnel : funnelList) {
+            funnel.open(periodSequence, timestamp);
+        }
+    }
+
+    private void endPeriod(long time, String timestamp) {
+        for (Funnel funnel : funnelList) {
+            if (funnel.current != null) {
+                funnel.current.end = time;
+                funnel.current.to = timestamp;
+                funnel.current = null;
+            }
+        }
+    }
+
+    /**
+     * Emits the periods that ended at least a window ago, whose users can no longer move forward.
+     */
+    private void emitEnded(long time, String timestamp) {
+        for (Funnel funnel : funnelList) {
+            Cohort oldest;
+            while ((oldest = funnel.cohorts.peek()) != null && oldest != funnel.current && time - oldest.end >= funnel.window) {
+                emit(funnel, funnel.cohorts.poll(), timestamp, true);
+            }
+        }
+    }
+
+    private void emit(Funnel funnel, Cohort cohort, String timestamp, boolean ended) {
+        int remaining = funnel.progress.removeCohort(cohort.sequence);
+        if (ended) {
+            cohort.expired += remaining;
+            remaining = 0;
+        }
+        if (cohort.counts[0] == 0 && cohort.expired == 0 && cohort.dropped == 0) {
+            return;
+        }
+        DataWrapper data = new DataWrapper();
+        data.putValue("funnel", funnel.name);
+        data.putValue("steps", join(funnel.codes));
+        data.putValue("counts", join(cohort.counts));
+        data.putValue("time", String.valueOf(cohort.completionTime));
+        data.putValue("expired", String.valueOf(cohort.expired));
+        data.putValue("dropped", String.valueOf(cohort.dropped));
+        data.putValue("progress", String.valueOf(remaining));
+        data.putValue("from", cohort.from);
+        data.putValue("to", cohort.to != null ? cohort.to : timestamp);
+        analyst.addToSync(new Event(EVENT_FUNNEL, timestamp, data));
+    }
+
+    private static String join(int[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A funnel with the counts of the periods whose users may still move forward, the users in progress survive across periods.
+     */
+    private static class Funnel {
+        private final String name;
+        private final int[] codes;
+        private final long window;
+        private final ProgressTable progress;
+        private final ArrayDeque<Cohort> cohorts = new ArrayDeque<>();
+        private Cohort current;
+
+        private Funnel(String name, int[] codes, long window, int capacity) {
+            this.name = name;
+            this.codes = codes;
+            this.window = window;
+            this.progress = new ProgressTable(capacity);
+        }
+
+        private void open(long sequence, String timestamp) {
+            current = new Cohort(sequence, codes.length, timestamp);
+            cohorts.add(current);
+        }
+
+        private Cohort cohortOf(long sequence) {
+            Iterator<Cohort> iterator = cohorts.descendingIterator();
+            while (iterator.hasNext()) {
+                Cohort cohort = iterator.next();
+                if (cohort.sequence == sequence) {
+                    return cohort;
+                }
+            }
+            return null;
+        }
+
+        private void step(long user, int step, long time) {
+            int slot = progress.find(user);
+            if (slot >= 0 && time - progress.starts[slot] > window) {
+                expire(slot);
+                slot = -1;
+            }
+            if (step == 0) {
+                // entering again restarts the progress, in the current period
+                if (slot < 0) {
+                    if (progress.size == progress.capacity) {
+                        sweep(time);
+                    }
+                    slot = progress.size < progress.capacity ? progress.insert(user) : -1;
+                    if (slot < 0) {
+                        current.dropped++;
+                        return;
+                    }
+                }
+                progress.steps[slot] = 1;
+                progress.starts[slot] = time;
+                progress.cohorts[slot] = current.sequence;
+                current.counts[0]++;
+            } else if (slot >= 0 && progress.steps[slot] == step) {
+                // users of emitted periods are removed, the period of a user in progress is always kept
+                Cohort cohort = cohortOf(progress.cohorts[slot]);
+                cohort.counts[step]++;
+                if (step == codes.length - 1) {
+                    cohort.completionTime += time - progress.starts[slot];
+                    progress.remove(slot);
+                } else {
+                    progress.steps[slot] = step + 1;
+                }
+            }
+        }
+
+        private void expire(int slot) {
+            Cohort cohort = cohortOf(progress.cohorts[slot]);
+            if (cohort != null) {
+                cohort.expired++;
+            }
+            progress.remove(slot);
+        }
+
+        private void sweep(long time) {
+            int slot = 0;
+            while (slot < progress.keys.length) {
+                if (progress.keys[slot] != 0 && time - progress.starts[slot] > window) {
+                    expire(slot);
+                } else {
+                    slot++;
+                }
+            }
+        }
+    }
+
+    /**
+     * The counts of the users entering a funnel in a period.
+     */
+    private static class Cohort {
+        private final long sequence;
+        private final int[] counts;
+        private final String from;
+        private String to;
+        private long end;
+        private long completionTime;
+        private int expired;
+        private int dropped;
+
+        private Cohort(long sequence, int steps, String from) {
+            this.sequence = sequence;
+            this.counts = new int[steps];
+            this.from = from;
+        }
+    }
+
+    /**
+     * Open addressing table from user hashes to their progress, with linear probing in parallel arrays.
+     * A zero key marks a free slot, removals shift the following entries back instead of leaving tombstones.
+     */
+    private static class ProgressTable {
+        private final int capacity;
+        private final long[] keys;
+        private final int[] steps;
+        private final long[] starts;
+        private final long[] cohorts;
+        private final int mask;
+        private int size;
+
+        private ProgressTable(int capacity) {
+            this.capacity = capacity;
+            int length = 2;
+            while (length < capacity * 2) {
+                length <<= 1;
+            }
+            keys = new long[length];
+            steps = new int[length];
+            starts = new long[length];
+            cohorts = new long[length];
+            mask = length - 1;
+        }
+
+        private int find(long key) {
+            int slot = slotOf(key);
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int insert(long key) {
+            int slot = slotOf(key);
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            size++;
+            return slot;
+        }
+
+        private void remove(int slot) {
+            int hole = slot;
+            int next = (slot + 1) & mask;
+            while (keys[next] != 0) {
+                int home = slotOf(keys[next]);
+                // move the entry back if the hole lies between its home and its current slot
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    steps[hole] = steps[next];
+                    starts[hole] = starts[next];
+                    cohorts[hole] = cohorts[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            keys[hole] = 0;
+            size--;
+        }
+
+        private int removeCohort(long cohort) {
+            int removed = 0;
+            int slot = 0;
+            while (slot < keys.length) {
+                if (keys[slot] != 0 && cohorts[slot] == cohort) {
+                    remove(slot);
+                    removed++;
+                } else {
+                    slot++;
+                }
+            }
+            return removed;
+        }
+
+        private int slotOf(long key) {
+            int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+
+}
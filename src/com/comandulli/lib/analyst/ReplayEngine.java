@@ -0,0 +1,252 @@
+package com.comandulli.lib.analyst;
+
+import android.util.Log;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.store.EventExport;
+import com.comandulli.lib.analyst.store.MemoryEventStore;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays recorded events through surveys in batch, to backfill or to compare survey versions.
+ * <p>
+ * Events are sorted by time and split into partitions by the value of a data key, such as a session id.
+ * Each partition runs on its own analyst, set up like the live one {@link SurveySetup},
+ * with an in-memory store and no queue nor thread of its own: events go straight to
+ * {@link ActionSurvey#survey(Event, Class)} while a Virtual clock {@see VirtualClock}, the clock of that analyst only,
+ * holds the time of the event being replayed. Partitions run in parallel,
+ * the outcome only depends on the events and the surveys, as long as surveys stamp their events
+ * with {@link ActionAnalyst#getCurrentTime()}. Live logging keeps its own clock meanwhile.
+ * <p>
+ * Pending timeouts {@link ActionAnalyst#setPendingTimeout(int, long, ActionSurvey)} run on real time
+ * and should not be set up for a replay.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class ReplayEngine {
+
+    /**
+     * Sets up the surveys of the analyst of every partition.
+     */
+    public interface SurveySetup {
+
+        /**
+         * Sets up an analyst, as done for the live one.
+         *
+         * @param analyst the analyst of a partition
+         */
+        void setup(ActionAnalyst analyst);
+
+    }
+
+    private static final String SINGLE_PARTITION = "";
+
+    private final SurveySetup setup;
+    private final HashMap<String, Class<?>> activities = new HashMap<>();
+    private String partitionKey;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Instantiates a new Replay engine.
+     *
+     * @param setup the setup of the surveys
+     */
+    public ReplayEngine(SurveySetup setup) {
+        this.setup = setup;
+    }
+
+    /**
+     * Adds activities, recorded events name their activity and are surveyed with its class.
+     * Events of unknown activities are surveyed with a null class.
+     *
+     * @param activities the activities
+     */
+    public void addActivity(Class<?>... activities) {
+        for (Class<?> activity : activities) {
+            this.activities.put(activity.getSimpleName(), activity);
+        }
+    }
+
+    /**
+     * Sets the data key splitting events into partitions, null replays everything as one.
+     *
+     * @param partitionKey the data key
+     */
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    /**
+     * Sets how many partitions are replayed at once, by default one per core.
+     *
+     * @param parallelism the number of threads
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Loads the events stored by a contractor, leaving out context snapshots.
+     *
+     * @param contractor the contractor
+     * @return the events
+     */
+    public static List<Event> load(EventContractor contractor) {
+        List<Event> events = new ArrayList<>();
+        for (Event event : contractor.getList()) {
+            if (event.getType().getCode() != EventContext.EVENT_CONTEXT.getCode()) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Loads the events of an export file {@see EventExport}.
+     *
+     * @param export the export file
+     * @return the events
+     * @throws IOException if the file could not be read
+     */
+    public static List<Event> load(File export) throws IOException {
+        try (InputStream input = new BufferedInputStream(new FileInputStream(export))) {
+            return EventExport.read(input);
+        }
+    }
+
+    /**
+     * Replays events.
+     *
+     * @param events the recorded events, in any order
+     * @return the result
+     * @throws InterruptedException if interrupted while waiting for the partitions
+     */
+    public ReplayResult replay(List<Event> events) throws InterruptedException {
+        long start = System.nanoTime();
+        final List<Event> sorted = new ArrayList<>(events);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, AnalystExecutors.named("AnalystReplay", true));
+        try {
+            parseTimes(sorted, executor);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw e;
+        }
+        Collections.sort(sorted, new Comparator<Event>() {
+            @Override
+            public int compare(Event first, Event second) {
+                int byTime = Long.compare(first.getTime(), second.getTime());
+                return byTime != 0 ? byTime : Long.compare(first.getId(), second.getId());
+            }
+        });
+        TreeMap<String, List<Event>> partitions = new TreeMap<>();
+        for (Event event : sorted) {
+            String partition = partitionOf(event);
+            List<Event> partitionEvents = partitions.get(partition);
+            if (partitionEvents == null) {
+                partitionEvents = new ArrayList<>();
+                partitions.put(partition, partitionEvents);
+            }
+            partitionEvents.add(event);
+        }
+
+        try {
+            List<Future<ReplayResult.Partition>> futures = new ArrayList<>();
+            for (final Map.Entry<String, List<Event>> entry : partitions.entrySet()) {
+                futures.add(executor.submit(new Callable<ReplayResult.Partition>() {
+                    @Override
+                    public ReplayResult.Partition call() {
+                        return replayPartition(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+            List<ReplayResult.Partition> results = new ArrayList<>();
+            for (Future<ReplayResult.Partition> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Replay failed", e.getCause());
+                }
+            }
+            return new ReplayResult(results, sorted.size(), System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Parses the timestamps of events loaded from storage or exports, in parallel chunks.
+     */
+    private void parseTimes(final List<Event> events, ExecutorService executor) throws InterruptedException {
+        int chunk = Math.max(1, (events.size() + parallelism - 1) / parallelism);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < events.size(); from += chunk) {
+            final List<Event> part = events.subList(from, Math.min(events.size(), from + chunk));
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (Event event : part) {
+                        EventLogger.getTime(event);
+                    }
+                    return null;
+                }
+            });
+        }
+        executor.invokeAll(tasks);
+    }
+
+    private ReplayResult.Partition replayPartition(String name, List<Event> events) {
+        // partitions run concurrently, none of them replaces the current analyst nor the clock of the Event logger
+        ActionAnalyst analyst = new ActionAnalyst(null, new EventContractor(new MemoryEventStore()), false);
+        VirtualClock clock = new VirtualClock();
+        analyst.setClock(clock);
+        if (!events.isEmpty()) {
+            clock.set(events.get(0).getTime());
+        }
+        setup.setup(analyst);
+        analyst.init(new ArrayList<Event>(), new ArrayList<Event>());
+        int errors = 0;
+        for (Event event : events) {
+            clock.set(event.getTime());
+            DataWrapper data = event.getData();
+            String activityName = data == null ? null : data.getValue("activity");
+            Class<?> activity = activityName == null ? null : activities.get(activityName);
+            try {
+                ActionSurvey survey = activity != null ? analyst.getSurvey(activity) : activityName != null ? analyst.getSurvey(activityName) : analyst.getDefaultSurvey();
+                survey.survey(event, activity);
+            } catch (RuntimeException e) {
+                errors++;
+                Log.e("ERROR", "Caught error replaying " + event);
+                e.printStackTrace();
+            }
+        }
+        return new ReplayResult.Partition(name, analyst.getToSyncAsArray(), analyst.getPendingAsArray(), events.size(), errors);
+    }
+
+    private String partitionOf(Event event) {
+        if (partitionKey == null || event.getData() == null) {
+            return SINGLE_PARTITION;
+        }
+        String value = event.getData().getValue(partitionKey);
+        return value == null ? SINGLE_PARTITION : value;
+    }
+
+}
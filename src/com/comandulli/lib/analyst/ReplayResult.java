@@ -0,0 +1,176 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The outcome of a replay {@see ReplayEngine}, the events left by the surveys of every partition.
+ * <p>
+ * The description lists the outcome without ids, which depend on the moment of the replay,
+ * so the results of two survey versions over the same events can be compared line by line.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class ReplayResult {
+
+    private final List<Partition> partitions;
+    private final long eventCount;
+    private final long elapsedNanos;
+
+    ReplayResult(List<Partition> partitions, long eventCount, long elapsedNanos) {
+        this.partitions = Collections.unmodifiableList(partitions);
+        this.eventCount = eventCount;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Gets the partitions, sorted by name.
+     *
+     * @return the partitions
+     */
+    public List<Partition> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Gets the number of events replayed.
+     *
+     * @return the number
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Gets the number of events whose survey failed.
+     *
+     * @return the number
+     */
+    public long getErrorCount() {
+        long errors = 0;
+        for (Partition partition : partitions) {
+            errors += partition.errorCount;
+        }
+        return errors;
+    }
+
+    /**
+     * Gets the time the replay took.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Describes the outcome, one line per event left: partition, state, code, timestamp and data by sorted keys.
+     *
+     * @return the lines
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Partition partition : partitions) {
+            for (Event event : partition.synced) {
+                lines.add(describe(partition.name, "sync", event));
+            }
+            for (Event event : partition.pending) {
+                lines.add(describe(partition.name, "pending", event));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * If another result left the same events.
+     *
+     * @param other the other result
+     * @return if the descriptions match
+     */
+    public boolean matches(ReplayResult other) {
+        return describe().equals(other.describe());
+    }
+
+    private static String describe(String partition, String state, Event event) {
+        StringBuilder line = new StringBuilder();
+        line.append(partition).append('\t').append(state).append('\t').append(event.getType().getCode()).append('\t').append(event.getTimestamp()).append('\t');
+        DataWrapper data = event.getData();
+        if (data != null) {
+            for (String key : new TreeSet<>(data.getKeys())) {
+                line.append(key).append(":=").append(data.getValue(key)).append('|');
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * The outcome of a single partition.
+     */
+    public static class Partition {
+        private final String name;
+        private final Event[] synced;
+        private final Event[] pending;
+        private final int eventCount;
+        private final int errorCount;
+
+        Partition(String name, Event[] synced, Event[] pending, int eventCount, int errorCount) {
+            this.name = name;
+            this.synced = synced;
+            this.pending = pending;
+            this.eventCount = eventCount;
+            this.errorCount = errorCount;
+        }
+
+        /**
+         * Gets the name, the value of the partition key.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the events the surveys added to sync.
+         *
+         * @return the events, in order
+         */
+        public Event[] getSynced() {
+            return synced;
+        }
+
+        /**
+         * Gets the events left pending.
+         *
+         * @return the events, in order
+         */
+        public Event[] getPending() {
+            return pending;
+        }
+
+        /**
+         * Gets the number of events replayed.
+         *
+         * @return the number
+         */
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        /**
+         * Gets the number of events whose survey failed.
+         *
+         * @return the number
+         */
+        public int getErrorCount() {
+            return errorCount;
+        }
+    }
+
+}
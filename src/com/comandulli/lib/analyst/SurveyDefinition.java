@@ -0,0 +1,210 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A declarative definition of a survey as a state machine.
+ * <p>
+ * Transitions go from a state to another on a trigger, either a super type handled by the survey
+ * ({@link ActionSurvey#open(com.comandulli.lib.analyst.entity.DataWrapper)} and its siblings)
+ * or the code of an event surveyed {@link ActionSurvey#survey(com.comandulli.lib.analyst.entity.Event, Class)}.
+ * Actions and guards added after a transition belong to it,
+ * when several transitions share a state and a trigger the first one whose guard holds is taken.
+ * The first state named is the initial one.
+ * <p>
+ * <pre>
+ * new SurveyDefinition()
+ *         .contain(RegisterFormActivity.class)
+ *         .on("Idle", SuperType.Open, "Filling").pend(EVENT_REGISTER_STARTED)
+ *         .on("Filling", SuperType.Close, "Idle").with("finished").resolve(EVENT_REGISTER_STARTED).sync(EVENT_REGISTER_ENDED)
+ *         .on("Filling", SuperType.Close, "Idle").resolve(EVENT_REGISTER_STARTED).sync(EVENT_REGISTER_CANCELLED)
+ *         .compile();
+ * </pre>
+ * The definition is compiled once into a Survey machine {@see SurveyMachine}, shared by every survey using it.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class SurveyDefinition {
+
+    /**
+     * Adds an event of the type as pending.
+     */
+    static final int ACTION_PEND = 1;
+    /**
+     * Adds an event of the type to sync.
+     */
+    static final int ACTION_SYNC = 2;
+    /**
+     * Moves the pending event of the type to sync.
+     */
+    static final int ACTION_RESOLVE = 3;
+    /**
+     * Removes the pending event of the type.
+     */
+    static final int ACTION_DISCARD = 4;
+
+    final List<String> states = new ArrayList<>();
+    final List<String> contained = new ArrayList<>();
+    final List<Transition> transitions = new ArrayList<>();
+    String instanceKey;
+
+    /**
+     * Adds activities handled by the survey.
+     *
+     * @param activities the activities
+     * @return this definition
+     */
+    public SurveyDefinition contain(Class<?>... activities) {
+        for (Class<?> activity : activities) {
+            contained.add(activity.getSimpleName());
+        }
+        return this;
+    }
+
+    /**
+     * Keeps one state per value of a data key, such as the id of a form, instead of a single one.
+     *
+     * @param key the data key
+     * @return this definition
+     */
+    public SurveyDefinition instancesBy(String key) {
+        this.instanceKey = key;
+        return this;
+    }
+
+    /**
+     * Adds a transition on a super type handled by the survey.
+     *
+     * @param from    the state
+     * @param trigger the super type
+     * @param to      the next state
+     * @return this definition
+     */
+    public SurveyDefinition on(String from, SuperType trigger, String to) {
+        transitions.add(new Transition(state(from), -1 - trigger.ordinal(), state(to)));
+        return this;
+    }
+
+    /**
+     * Adds a transition on an event surveyed.
+     *
+     * @param from    the state
+     * @param trigger the type of the event
+     * @param to      the next state
+     * @return this definition
+     */
+    public SurveyDefinition on(String from, EventType trigger, String to) {
+        transitions.add(new Transition(state(from), trigger.getCode(), state(to)));
+        return this;
+    }
+
+    /**
+     * Only takes the last transition when the data holds a key.
+     *
+     * @param key the data key
+     * @return this definition
+     */
+    public SurveyDefinition with(String key) {
+        last().guard = key;
+        return this;
+    }
+
+    /**
+     * Adds an event of the type as pending on the last transition.
+     *
+     * @param type the event type
+     * @return this definition
+     */
+    public SurveyDefinition pend(EventType type) {
+        return action(ACTION_PEND, type);
+    }
+
+    /**
+     * Adds an event of the type to sync on the last transition.
+     *
+     * @param type the event type
+     * @return this definition
+     */
+    public SurveyDefinition sync(EventType type) {
+        return action(ACTION_SYNC, type);
+    }
+
+    /**
+     * Moves the pending event of the type to sync on the last transition.
+     *
+     * @param type the event type
+     * @return this definition
+     */
+    public SurveyDefinition resolve(EventType type) {
+        return action(ACTION_RESOLVE, type);
+    }
+
+    /**
+     * Removes the pending event of the type on the last transition.
+     *
+     * @param type the event type
+     * @return this definition
+     */
+    public SurveyDefinition discard(EventType type) {
+        return action(ACTION_DISCARD, type);
+    }
+
+    /**
+     * Compiles the definition into a transition table.
+     *
+     * @return the survey machine
+     */
+    public SurveyMachine compile() {
+        if (states.isEmpty()) {
+            throw new IllegalStateException("Survey without transitions");
+        }
+        return new SurveyMachine(this);
+    }
+
+    private SurveyDefinition action(int action, EventType type) {
+        Transition transition = last();
+        transition.actions.add(action);
+        transition.types.add(type);
+        return this;
+    }
+
+    private Transition last() {
+        if (transitions.isEmpty()) {
+            throw new IllegalStateException("No transition defined yet");
+        }
+        return transitions.get(transitions.size() - 1);
+    }
+
+    private int state(String name) {
+        int index = states.indexOf(name);
+        if (index < 0) {
+            index = states.size();
+            states.add(name);
+        }
+        return index;
+    }
+
+    /**
+     * A transition as defined, before compiling.
+     */
+    static class Transition {
+        final int from;
+        final int trigger;
+        final int to;
+        final List<Integer> actions = new ArrayList<>();
+        final List<EventType> types = new ArrayList<>();
+        String guard;
+
+        Transition(int from, int trigger, int to) {
+            this.from = from;
+            this.trigger = trigger;
+            this.to = to;
+        }
+    }
+
+}
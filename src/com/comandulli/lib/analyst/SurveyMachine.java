@@ -0,0 +1,201 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A compiled Survey definition {@see SurveyDefinition}, immutable and shared by the surveys using it.
+ * <p>
+ * Triggers are numbered into slots, one per super type followed by one per event code,
+ * and the transitions live in a dense table indexed by state and slot.
+ * Dispatching a trigger costs a table lookup, then one guard check per alternative transition.
+ * <p>
+ * It holds no state of its own, so it can be driven directly on the JVM to check a definition.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public final class SurveyMachine {
+
+    private static final int CALLBACK_SLOTS = SuperType.values().length;
+
+    private final String[] stateNames;
+    private final int[] codes;
+    private final int slotCount;
+    private final int[] table;
+    private final int[] alternatives;
+    private final int[] targets;
+    private final String[] guards;
+    final int[] actionStart;
+    final int[] actionOps;
+    final int[] actionTypes;
+    final EventType[] types;
+    final int[] pendingSlots;
+    final int pendingSlotCount;
+    final String[] contained;
+    final String instanceKey;
+
+    SurveyMachine(SurveyDefinition definition) {
+        List<SurveyDefinition.Transition> transitions = definition.transitions;
+        stateNames = definition.states.toArray(new String[definition.states.size()]);
+        contained = definition.contained.toArray(new String[definition.contained.size()]);
+        instanceKey = definition.instanceKey;
+        TreeSet<Integer> eventCodes = new TreeSet<>();
+        List<EventType> typeList = new ArrayList<>();
+        int actionCount = 0;
+        for (SurveyDefinition.Transition transition : transitions) {
+            if (transition.trigger >= 0) {
+                eventCodes.add(transition.trigger);
+            }
+            for (EventType type : transition.types) {
+                if (indexOf(typeList, type.getCode()) < 0) {
+                    typeList.add(type);
+                }
+            }
+            actionCount += transition.actions.size();
+        }
+        codes = new int[eventCodes.size()];
+        int c = 0;
+        for (int code : eventCodes) {
+            codes[c++] = code;
+        }
+        types = typeList.toArray(new EventType[typeList.size()]);
+        slotCount = CALLBACK_SLOTS + codes.length;
+        table = new int[stateNames.length * slotCount];
+        Arrays.fill(table, -1);
+        alternatives = new int[transitions.size()];
+        targets = new int[transitions.size()];
+        guards = new String[transitions.size()];
+        actionStart = new int[transitions.size() + 1];
+        actionOps = new int[actionCount];
+        actionTypes = new int[actionCount];
+        int[] lastOfCell = new int[table.length];
+        int action = 0;
+        for (int t = 0; t < transitions.size(); t++) {
+            SurveyDefinition.Transition transition = transitions.get(t);
+            int slot = transition.trigger >= 0 ? eventSlot(transition.trigger) : -1 - transition.trigger;
+            int cell = transition.from * slotCount + slot;
+            alternatives[t] = -1;
+            if (table[cell] < 0) {
+                table[cell] = t;
+            } else {
+                alternatives[lastOfCell[cell]] = t;
+            }
+            lastOfCell[cell] = t;
+            targets[t] = transition.to;
+            guards[t] = transition.guard;
+            actionStart[t] = action;
+            for (int a = 0; a < transition.actions.size(); a++) {
+                actionOps[action] = transition.actions.get(a);
+                actionTypes[action] = indexOf(typeList, transition.types.get(a).getCode());
+                action++;
+            }
+        }
+        actionStart[transitions.size()] = action;
+        // only pended types get a slot to remember their event by
+        pendingSlots = new int[types.length];
+        Arrays.fill(pendingSlots, -1);
+        int slots = 0;
+        for (int a = 0; a < actionOps.length; a++) {
+            if (actionOps[a] == SurveyDefinition.ACTION_PEND && pendingSlots[actionTypes[a]] < 0) {
+                pendingSlots[actionTypes[a]] = slots++;
+            }
+        }
+        pendingSlotCount = slots;
+    }
+
+    /**
+     * Gets the number of states.
+     *
+     * @return the number
+     */
+    public int getStateCount() {
+        return stateNames.length;
+    }
+
+    /**
+     * Gets the name of a state.
+     *
+     * @param state the state
+     * @return the name
+     */
+    public String getStateName(int state) {
+        return stateNames[state];
+    }
+
+    /**
+     * Gets a state by its name.
+     *
+     * @param name the name
+     * @return the state, -1 if unknown
+     */
+    public int getState(String name) {
+        return Arrays.asList(stateNames).indexOf(name);
+    }
+
+    /**
+     * Gets the slot of a super type handled by the survey.
+     *
+     * @param trigger the super type
+     * @return the slot
+     */
+    public int callbackSlot(SuperType trigger) {
+        return trigger.ordinal();
+    }
+
+    /**
+     * Gets the slot of an event code.
+     *
+     * @param code the code
+     * @return the slot, -1 if no transition is triggered by the code
+     */
+    public int eventSlot(int code) {
+        int index = Arrays.binarySearch(codes, code);
+        return index < 0 ? -1 : CALLBACK_SLOTS + index;
+    }
+
+    /**
+     * Finds the transition taken from a state on a trigger.
+     *
+     * @param state the state
+     * @param slot  the slot of the trigger
+     * @param data  the data of the trigger, checked by guards
+     * @return the transition, -1 if none
+     */
+    public int transition(int state, int slot, DataWrapper data) {
+        if (slot < 0) {
+            return -1;
+        }
+        int transition = table[state * slotCount + slot];
+        while (transition >= 0 && guards[transition] != null && (data == null || data.getValue(guards[transition]) == null)) {
+            transition = alternatives[transition];
+        }
+        return transition;
+    }
+
+    /**
+     * Gets the state a transition leads to.
+     *
+     * @param transition the transition
+     * @return the state
+     */
+    public int getTarget(int transition) {
+        return targets[transition];
+    }
+
+    private static int indexOf(List<EventType> types, int code) {
+        for (int i = 0; i < types.size(); i++) {
+            if (types.get(i).getCode() == code) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -6,22 +6,47 @@ import android.provider.Settings.Secure;
 import android.util.Log;
 
 import com.comandulli.lib.MD5;
-import com.comandulli.lib.PendingValue;
+import com.comandulli.lib.analyst.entity.DataWrapper;
 import com.comandulli.lib.analyst.entity.Event;
-import com.comandulli.lib.rest.RequestCallback;
-import com.comandulli.lib.rest.RequestParams;
-import com.comandulli.lib.rest.RequestResponse;
-import com.comandulli.lib.rest.RestRequest;
-import com.comandulli.lib.rest.RestRequest.RequestMethod;
+import com.comandulli.lib.analyst.entity.EventType.Priority;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+import com.comandulli.lib.analyst.entity.StringDictionary;
+import com.comandulli.lib.analyst.store.WireSpool;
+import com.comandulli.lib.analyst.transport.ContentEncoder;
+import com.comandulli.lib.analyst.transport.Enigma;
+import com.comandulli.lib.analyst.transport.RestSyncTransport;
+import com.comandulli.lib.analyst.transport.StreamingSyncTransport;
+import com.comandulli.lib.analyst.transport.SyncTransport;
+import com.comandulli.lib.analyst.transport.WireBody;
 import com.comandulli.lib.sqlite.ContractDatabase;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * The Synchronized Analyst not only acts as an ActionAnalyst {@see com.comandulli.lib.analyst.ActionAnalyst},
@@ -60,8 +85,38 @@ public class SynchronizedActionAnalyst extends ActionAnalyst {
      */
     private String solutionSalt = "defaultsolution";
 
-    private boolean syncing;
-    private boolean resync;
+    /**
+     * The default maximum number of events per critical request.
+     */
+    public static final int DEFAULT_CRITICAL_BATCH = 20;
+    /**
+     * The default number of bulk events that triggers a bulk sync, also the maximum per request.
+     */
+    public static final int DEFAULT_BULK_BATCH = 500;
+    /**
+     * The default maximum time bulk events wait for a batch to fill, in milliseconds, none so they are synced right away.
+     */
+    public static final long DEFAULT_BULK_DELAY = 0;
+    /**
+     * The delay between upload attempts of a drain, in milliseconds.
+     */
+    public static final long DRAIN_RETRY_DELAY = 1000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SyncLane criticalLane = new SyncLane(Priority.Critical, DEFAULT_CRITICAL_BATCH, false);
+    private final SyncLane bulkLane = new SyncLane(Priority.Bulk, DEFAULT_BULK_BATCH, false);
+    private long bulkDelay = DEFAULT_BULK_DELAY;
+    private volatile long lastBulkSync;
+    private final AtomicBoolean bulkScheduled = new AtomicBoolean();
+    private int drainConnections;
+    private int drainBatchSize;
+    private int drainThreshold;
+    private SyncTransport transport = new RestSyncTransport();
+    private ContentEncoder contentEncoder = ContentEncoder.ANDROID;
+    private volatile String identifier;
+    private final List<DrainWait> drainWaits = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Boolean> acknowledging = new ThreadLocal<>();
 
     /**
      * Instantiates a new Synchronized action analyst.
@@ -73,6 +128,16 @@ public class SynchronizedActionAnalyst extends ActionAnalyst {
         super(context, contractDatabase);
     }
 
+    /**
+     * Instantiates a new Synchronized action analyst with a custom contractor.
+     *
+     * @param context    the context
+     * @param contractor the contractor
+     */
+    public SynchronizedActionAnalyst(Context context, EventContractor contractor) {
+        super(context, contractor);
+    }
+
     /**
      * Sets the salts for the enigma authentication.
      *
@@ -84,6 +149,107 @@ public class SynchronizedActionAnalyst extends ActionAnalyst {
         this.solutionSalt = solution;
     }
 
+    /**
+     * Sets how bulk events are batched.
+     * <p>
+     * Bulk events are synced once a batch is full or once the delay has passed since the last bulk sync,
+     * a timer starts the sync when no event arrives to trigger it.
+     *
+     * @param batchSize the number of events of a batch
+     * @param delay     the maximum delay in milliseconds
+     */
+    public void setBulkBatching(int batchSize, long delay) {
+        bulkLane.maxBatch = batchSize;
+        this.bulkDelay = delay;
+    }
+
+    /**
+     * Sets if bulk batches are sent gzip compressed, encoded by the content encoder {@link #setContentEncoder(ContentEncoder)}.
+     * By default no batch is compressed.
+     *
+     * @param compressed if bulk batches are compressed
+     */
+    public void setBulkCompression(boolean compressed) {
+        bulkLane.compressed = compressed;
+    }
+
+    /**
+     * Sets the transport used to talk to the server, by default the REST library.
+     *
+     * @param transport the transport
+     */
+    public void setTransport(SyncTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Sets the encoder of compressed content, by default the Base64 encoder of android.
+     *
+     * @param contentEncoder the encoder
+     */
+    public void setContentEncoder(ContentEncoder contentEncoder) {
+        this.contentEncoder = contentEncoder;
+    }
+
+    /**
+     * Sets the identifier of this device sent to the server,
+     * by default the android id, or the serial of the device when there is none.
+     *
+     * @param identifier the identifier
+     */
+    public void setIdentifier(String identifier) {
+        this.identifier = identifier;
+    }
+
+    /**
+     * Enables draining large bulk backlogs over concurrent connections.
+     * <p>
+     * Once the bulk backlog reaches the threshold it is split by id into disjoint batches,
+     * uploaded by connections running on the sync executor. Each batch is removed from the backlog
+     * as soon as it is acknowledged, whatever the order, so no event is uploaded twice.
+     * A failed batch stops the drain, it and the batches not submitted yet are kept for the next sync.
+     * The uploads already in flight are still awaited, the next sync only starts once every one has answered.
+     *
+     * @param connections the maximum number of concurrent uploads, one or less disables it
+     * @param batchSize   the number of events of each batch
+     * @param threshold   the bulk backlog size that switches to a parallel drain
+     */
+    public void setParallelDrain(int connections, int batchSize, int threshold) {
+        this.drainConnections = connections;
+        this.drainBatchSize = batchSize;
+        this.drainThreshold = threshold;
+    }
+
+    /**
+     * Spools the events to sync in their wire form {@see WireSpool}, one file per lane, to upload them
+     * without building any event or JSON object. Only used with a streaming transport {@see StreamingSyncTransport}.
+     * <p>
+     * Events are encoded once, as they join the events to sync, and batches are streamed from the files.
+     * Spooled batches are never compressed, and parallel drains still build their content.
+     * A lane streams a batch only when the spool holds as many events as the lane and the batch is its first events, in order.
+     * Otherwise, if an append failed or the stored backlog was restored after newer events joined,
+     * it builds its batches until the two agree again.
+     * <p>
+     * Every event joining the events to sync costs one more write to a file, not forced to disk, on the thread adding it.
+     * The spools are not kept across runs: every stored event is encoded again on each start.
+     * <p>
+     * Meant to be set before the analyst is initialized, the spools then start with the stored backlog.
+     *
+     * @param directory the directory holding the spool files
+     * @throws IOException if a spool file could not be opened
+     */
+    public void setWireSpool(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+        for (SyncLane lane : new SyncLane[]{criticalLane, bulkLane}) {
+            lane.spool = new WireSpool(new File(directory, lane.priority.name().toLowerCase(Locale.US) + ".spool"));
+        }
+        for (Event event : getToSyncAsArray()) {
+            syncAdded(event);
+        }
+    }
+
     /**
      * Method for the event logger to initialize this analyst.
      *
@@ -93,17 +259,32 @@ public class SynchronizedActionAnalyst extends ActionAnalyst {
     @Override
     public void init(List<Event> pending, List<Event> toSync) {
         super.init(pending, toSync);
+        for (Event event : toSync) {
+            syncAdded(event);
+        }
         if (!toSync.isEmpty()) {
             synchronize();
         }
     }
 
+    /**
+     * Method for the event logger to restore the events to sync stored by a previous run.
+     *
+     * @param stored the stored events to sync, in order
+     */
+    @Override
+    public void restoreToSync(List<Event> stored) {
+        super.restoreToSync(stored);
+        if (!stored.isEmpty()) {
+            synchronize();
+        }
+    }
+
     /**
      * Analyze an event.
      * <p>
-     * It starts a new thread to handle an incoming event.
-     * Only one analyze thread is able to run at a time.
-     * All other analyze calls are queued.
+     * The event is queued to a single survey thread,
+     * the analyze queue decides what happens when it is full.
      * <p>
      * On analysis it sends the event to the proper survey.
      * <p>
@@ -115,18 +296,41 @@ public class SynchronizedActionAnalyst extends ActionAnalyst {
     @Override
     public void analyze(Event event, Class<?> activity) {
         super.analyze(event, activity);
-        if (getSyncSize() > 0) {
-            synchronize();
+        if (getSyncSize(Priority.Critical) > 0) {
+            criticalLane.start();
+        }
+        if (isBulkDue()) {
+            bulkLane.start();
+        }
+    }
+
+    /**
+     * Add to sync, critical events are synchronized right away, also when moved from pending.
+     * Bulk events wait for a full batch or for the bulk delay {@link #setBulkBatching(int, long)}.
+     *
+     * @param event the event
+     */
+    @Override
+    public void addToSync(Event event) {
+        super.addToSync(event);
+        if (event.getPriority() == Priority.Critical) {
+            criticalLane.start();
+        } else if (isBulkDue()) {
+            bulkLane.start();
+        } else {
+            scheduleBulkSync();
         }
     }
 
     /**
      * Synchronizes all events to sync.
      * <p>
-     * It starts a new thread to handle a synchronization.
-     * Only one synchronize thread is able to run at a time.
+     * It runs each sync lane on the sync executor {@see AnalystExecutors}, one for critical and one for bulk events.
+     * Only one synchronize task is able to run at a time in each lane.
      * All other synchronize calls are queued.
      * <p>
+     * Critical events are sent in small requests, bulk events in larger ones, compressed when {@link #setBulkCompression(boolean)} is set.
+     * <p>
      * Synchronization uses enigma authentication.
      * <p>
      * A unique identificator of this device is sent to server.
@@ -143,155 +347,648 @@ public class SynchronizedActionAnalyst extends ActionAnalyst {
      * if so the event is marked as synced.
      */
     public void synchronize() {
-        Runnable synchronization = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    syncing = true;
-                    Event[] syncThis = getToSyncAsArray();
-                    // request enigma from server
-                    String serial = generateIdentifier();
-                    Enigma enigma = requestEnigma(serial);
-                    if (enigma != null && enigma.value != null) {
-                        // check server integrity
-                        String receivedEnigma = enigma.value;
-                        String expectedEnigma = MD5.encode(serial + ":" + enigmaSalt + ":" + enigma.id);
-                        if (receivedEnigma.equals(expectedEnigma)) {
-                            // solve
-                            String solution = MD5.encode(receivedEnigma + ":" + solutionSalt);
-                            boolean success = submitSolution(syncThis, solution, enigma.id, serial);
-                            if (success) {
-                                // success, remove all from database
-                                for (Event event : syncThis) {
-                                    removeFromSync(event);
-                                }
-                            }
-                        }
+        criticalLane.start();
+        bulkLane.start();
+    }
+
+    /**
+     * Spools an event joining the events to sync, in the spool of its lane.
+     *
+     * @param event the event
+     */
+    @Override
+    protected void syncAdded(Event event) {
+        WireSpool spool = laneOf(event).spool;
+        if (spool != null) {
+            try {
+                spool.append(event, EventContext.getVersion(event));
+            } catch (IOException e) {
+                Log.e("ERROR", "Caught error spooling event " + event.getId());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Removes an event leaving the events to sync from the spool of its lane.
+     *
+     * @param event the event
+     */
+    @Override
+    protected void syncRemoved(Event event) {
+        WireSpool spool = laneOf(event).spool;
+        if (spool != null) {
+            spool.remove(event.getId());
+        }
+        if (!drainWaits.isEmpty()) {
+            boolean acknowledged = acknowledging.get() != null;
+            for (DrainWait wait : drainWaits) {
+                wait.left(event.getId(), acknowledged);
+            }
+        }
+    }
+
+    /**
+     * Removes events the server acknowledged from the events to sync.
+     *
+     * @param events the events
+     */
+    private void acknowledge(Event[] events) {
+        acknowledging.set(Boolean.TRUE);
+        try {
+            for (Event event : events) {
+                removeFromSync(event);
+            }
+        } finally {
+            acknowledging.remove();
+        }
+    }
+
+    private SyncLane laneOf(Event event) {
+        return event.getPriority() == Priority.Critical ? criticalLane : bulkLane;
+    }
+
+    @Override
+    protected Completion.Stage getFinalStage() {
+        return Completion.Stage.Synced;
+    }
+
+    @Override
+    protected SyncAwait startSyncAwait() {
+        DrainWait wait = new DrainWait();
+        drainWaits.add(wait);
+        return wait;
+    }
+
+    /**
+     * Stops both lanes, once the last upload of a shutdown is done.
+     */
+    @Override
+    protected void release() {
+        super.release();
+        criticalLane.close();
+        bulkLane.close();
+        for (SyncLane lane : new SyncLane[]{criticalLane, bulkLane}) {
+            if (lane.spool != null) {
+                lane.spool.close();
+            }
+        }
+    }
+
+    /**
+     * Schedules a bulk sync for when the bulk delay ends, unless one is scheduled already.
+     */
+    private void scheduleBulkSync() {
+        if (getSyncSize(Priority.Bulk) == 0 || !bulkScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long last = lastBulkSync;
+        long delay = last == 0 ? 0 : Math.max(0, bulkDelay - TimeUnit.NANOSECONDS.toMillis(getClock().nanoTime() - last));
+        try {
+            scheduleTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    bulkScheduled.set(false);
+                    if (isBulkDue()) {
+                        bulkLane.start();
+                    } else {
+                        // a bulk sync ran meanwhile, the delay starts over from it
+                        scheduleBulkSync();
                     }
-                    if (resync) {
+                }
+            }, delay);
+        } catch (IllegalStateException e) {
+            // the timer stopped along with the analyst
+            bulkScheduled.set(false);
+        }
+    }
+
+    private boolean isBulkDue() {
+        int size = getSyncSize(Priority.Bulk);
+        return size >= bulkLane.maxBatch || (size > 0 && (lastBulkSync == 0 || getClock().nanoTime() - lastBulkSync >= TimeUnit.MILLISECONDS.toNanos(bulkDelay)));
+    }
+
+    /**
+     * A sync lane uploads the events of a single priority.
+     * <p>
+     * Lanes run independently, so a backlog of bulk events never delays a critical one.
+     * Only one synchronize task runs per lane, calls made meanwhile are queued.
+     */
+    private class SyncLane implements Runnable {
+        private final Priority priority;
+        private volatile boolean compressed;
+        private int maxBatch;
+        private boolean syncing;
+        private boolean resync;
+        private boolean closed;
+        private volatile WireSpool spool;
+
+        private SyncLane(Priority priority, int maxBatch, boolean compressed) {
+            this.priority = priority;
+            this.maxBatch = maxBatch;
+            this.compressed = compressed;
+        }
+
+        private synchronized void start() {
+            if (closed) {
+                return;
+            }
+            if (!syncing) {
+                syncing = true;
+                resync = false;
+                getExecutors().getSync().execute(this);
+            } else {
+                resync = true;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean drained = true;
+                if (priority == Priority.Bulk && drainConnections > 1 && getSyncSize(Priority.Bulk) >= drainThreshold) {
+                    lastBulkSync = getClock().nanoTime();
+                    drainInParallel(getToSyncIds(priority, Integer.MAX_VALUE));
+                } else {
+                    drained = syncBatch();
+                }
+                synchronized (this) {
+                    if (resync || !drained) {
                         resync = false;
-                        new Thread(this).start();
+                        getExecutors().getSync().execute(this);
                     } else {
                         syncing = false;
+                        notifyAll();
                     }
-                } catch (Exception e) {
-                    Log.e("ERROR", "Caught error in sync");
-                    e.printStackTrace();
-                    if (EventLogger.DEBUGMODE) {
-                        throw e;
-                    }
+                }
+                if (priority == Priority.Bulk) {
+                    // events left below a full batch wait for the next delay
+                    scheduleBulkSync();
+                }
+            } catch (Exception e) {
+                Log.e("ERROR", "Caught error in sync");
+                e.printStackTrace();
+                synchronized (this) {
+                    syncing = false;
+                    notifyAll();
+                }
+                if (EventLogger.DEBUGMODE) {
+                    throw e;
                 }
             }
-        };
-        if (!syncing) {
-            resync = false;
-            new Thread(synchronization).start();
-        } else {
-            resync = true;
         }
-    }
 
-    private class Enigma {
-        /**
-         * The Id.
-         */
-        public int id;
+        private synchronized boolean awaitIdle(long deadline) throws InterruptedException {
+            while (syncing) {
+                long wait = remaining(deadline);
+                if (wait <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+            return true;
+        }
+
+        private synchronized void close() {
+            closed = true;
+        }
+
+        private boolean syncBatch() {
+            WireSpool current = spool;
+            if (current != null && transport instanceof StreamingSyncTransport && current.size() == getSyncSize(priority)) {
+                WireSpool.Batch batch = current.select(maxBatch);
+                // equal counts do not tell the spool holds the same events, its batch must be the first events of the lane
+                if (Arrays.equals(batch.getIds(), getToSyncIds(priority, batch.size()))) {
+                    return syncSpooled(batch);
+                }
+                batch.release();
+            }
+            Event[] syncThis = selectBatch(maxBatch);
+            if (syncThis.length == 0) {
+                return true;
+            }
+            if (priority == Priority.Bulk) {
+                lastBulkSync = getClock().nanoTime();
+            }
+            if (upload(syncThis, compressed)) {
+                // success, remove all from database
+                acknowledge(syncThis);
+                return syncThis.length < maxBatch;
+            }
+            return true;
+        }
+
+        private boolean syncSpooled(WireSpool.Batch batch) {
+            try {
+                if (batch.size() == 0) {
+                    return true;
+                }
+                if (priority == Priority.Bulk) {
+                    lastBulkSync = getClock().nanoTime();
+                }
+                if (!uploadSpooled(batch)) {
+                    return true;
+                }
+            } finally {
+                batch.release();
+            }
+            removeAcknowledged(batch.getIds());
+            return batch.size() < maxBatch;
+        }
+
         /**
-         * The Value.
+         * Removes acknowledged events by id, they are usually the first ones of the lane.
+         *
+         * @param ids the ids, in order
          */
-        public String value;
+        private void removeAcknowledged(long[] ids) {
+            Event[] events = selectBatch(ids.length);
+            boolean aligned = events.length == ids.length;
+            for (int i = 0; aligned && i < ids.length; i++) {
+                aligned = events[i].getId() == ids[i];
+            }
+            if (!aligned) {
+                long[] sorted = ids.clone();
+                Arrays.sort(sorted);
+                events = getToSyncByIds(sorted);
+            }
+            acknowledge(events);
+        }
+
+        private Event[] selectBatch(int limit) {
+            return getToSyncAsArray(priority, limit);
+        }
     }
 
-    private Enigma requestEnigma(String serial) {
-        final PendingValue<Enigma> pendingEnigma = new PendingValue<>(new Enigma());
-        RequestParams params = new RequestParams();
-        params.addQueryParam("serial", serial);
-        RestRequest request = new RestRequest(RequestMethod.GET, "/analytics/enigma", params);
-        request.execute(new RequestCallback() {
-            @Override
-            public void onResponse(RequestResponse response) {
-                if (response != null) {
-                    if (response.getCode() == HttpsURLConnection.HTTP_OK) {
-                        JSONObject json = response.getContent();
-                        if (json != null) {
-                            try {
-                                pendingEnigma.getValue().id = json.getInt("id");
-                                pendingEnigma.getValue().value = json.getString("enigma");
-                            } catch (JSONException e) {
-                                pendingEnigma.setPending(false);
-                            }
-                        }
-                    }
+    /**
+     * Drains a backlog in id ranged batches over concurrent connections.
+     * <p>
+     * The events of a batch are only read when it is submitted, at most the batches in flight are materialized,
+     * events that left the backlog meanwhile are skipped.
+     *
+     * @param backlog the ids of the events
+     */
+    private void drainInParallel(long[] backlog) {
+        Arrays.sort(backlog);
+        int batches = (backlog.length + drainBatchSize - 1) / drainBatchSize;
+        final long[][] ids = new long[batches][];
+        for (int i = 0; i < batches; i++) {
+            ids[i] = Arrays.copyOfRange(backlog, i * drainBatchSize, Math.min(backlog.length, (i + 1) * drainBatchSize));
+        }
+        final Event[][] batch = new Event[batches][];
+        // connections run on the sync executor, at most drainConnections batches are in flight
+        CompletionService<Integer> acknowledgements = new ExecutorCompletionService<>(getExecutors().getSync());
+        int submitted = 0;
+        while (submitted < Math.min(drainConnections, batches)) {
+            submitBatch(acknowledgements, ids, batch, submitted++);
+        }
+        boolean failed = false;
+        boolean interrupted = false;
+        // every submitted batch is answered before the lane moves on, even after a failure,
+        // so no upload of this drain is still in flight when the next sync selects its batches
+        for (int received = 0; received < submitted; received++) {
+            int index;
+            while (true) {
+                try {
+                    index = acknowledgements.take().get();
+                    break;
+                } catch (ExecutionException e) {
+                    Log.e("ERROR", "Caught error in parallel drain");
+                    e.printStackTrace();
+                    index = -1;
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
-                pendingEnigma.setPending(false);
             }
+            if (index < 0) {
+                // a failed batch and the batches not submitted yet are kept, they are retried on the next sync
+                failed = true;
+                continue;
+            }
+            if (!failed && submitted < batches) {
+                submitBatch(acknowledgements, ids, batch, submitted++);
+            }
+            // an acknowledged batch is removed right away, whatever the order, so it is never uploaded again
+            acknowledge(batch[index]);
+            batch[index] = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    private void submitBatch(CompletionService<Integer> acknowledgements, long[][] ids, final Event[][] batch, final int index) {
+        batch[index] = getToSyncByIds(ids[index]);
+        acknowledgements.submit(new Callable<Integer>() {
             @Override
-            public void onInternalError() {
-                // dont do shit
-                pendingEnigma.setPending(false);
+            public Integer call() {
+                // a batch whose events all left the backlog has nothing to upload
+                return batch[index].length == 0 || upload(batch[index], bulkLane.compressed) ? index : -1;
             }
         });
-        //noinspection StatementWithEmptyBody
-        while (pendingEnigma.isPending()) {
+    }
+
+    /**
+     * Uploads events with enigma authentication.
+     *
+     * @param syncThis   the events
+     * @param compressed if the content is compressed
+     * @return if the server acknowledged the events
+     */
+    private boolean upload(Event[] syncThis, boolean compressed) {
+        String serial = generateIdentifier();
+        Enigma enigma = requestEnigma(serial);
+        if (enigma != null) {
+            // solve
+            String solution = MD5.encode(enigma.getValue() + ":" + solutionSalt);
+            JSONObject content = new JSONObject();
+            int dictionarySize;
+            try {
+                dictionarySize = buildContent(content, syncThis, compressed);
+            } catch (JSONException e) {
+                return false;
+            }
+            if (transport.submitSolution(serial, solution, enigma.getId(), content)) {
+                acknowledgeDictionary(dictionarySize);
+                return true;
+            }
         }
-        return pendingEnigma.getValue();
+        return false;
     }
 
-    private boolean submitSolution(Event[] events, String solution, int id, String serial) {
-        final PendingValue<Boolean> pendingBoolean = new PendingValue<>(false);
-        RequestParams params = new RequestParams();
-        params.addQueryParam("serial", serial);
-        params.addQueryParam("solution", solution);
-        params.addQueryParam("id", String.valueOf(id));
-        try {
-            RestRequest request = new RestRequest(RequestMethod.POST, "/analytics/solve", params);
-            JSONObject json = new JSONObject();
-            JSONArray array = new JSONArray();
-            for (Event event : events) {
-                JSONObject jsonEvent = new JSONObject();
-                jsonEvent.put("code", event.getType().getCode());
-                jsonEvent.put("timestamp", event.getTimestamp());
-                jsonEvent.put("data", event.getData().toString());
-                array.put(jsonEvent);
+    /**
+     * Uploads spooled events with enigma authentication, streaming them from the spool.
+     * <p>
+     * Only the header and the counters are built, the events are sent as they were spooled.
+     *
+     * @param batch the events
+     * @return if the server acknowledged the events
+     */
+    private boolean uploadSpooled(final WireSpool.Batch batch) {
+        String serial = generateIdentifier();
+        Enigma enigma = requestEnigma(serial);
+        if (enigma != null) {
+            String solution = MD5.encode(enigma.getValue() + ":" + solutionSalt);
+            final byte[] prefix;
+            final byte[] suffix;
+            int dictionarySize;
+            try {
+                JSONObject header = new JSONObject();
+                dictionarySize = buildHeader(header, batch.getIds(), batch.getContexts());
+                JSONObject dropped = buildDropped();
+                prefix = ("{\"header\":" + header.toString() + ",\"content\":[").getBytes(UTF8);
+                suffix = (dropped == null ? "]}" : "],\"dropped\":" + dropped.toString() + "}").getBytes(UTF8);
+            } catch (JSONException e) {
+                return false;
             }
-            json.put("content", array);
-            request.addContent(json);
-            request.execute(new RequestCallback() {
+            WireBody body = new WireBody() {
                 @Override
-                public void onResponse(RequestResponse response) {
-                    if (response != null) {
-                        if (response.getCode() == HttpsURLConnection.HTTP_OK) {
-                            pendingBoolean.setValue(true);
-                        }
-                    }
-                    pendingBoolean.setPending(false);
+                public long getLength() {
+                    return prefix.length + batch.getLength() + suffix.length;
                 }
 
                 @Override
-                public void onInternalError() {
-                    // dont do shit
-                    pendingBoolean.setPending(false);
+                public void writeTo(WritableByteChannel target) throws IOException {
+                    write(target, prefix);
+                    batch.transferTo(target);
+                    write(target, suffix);
                 }
-            });
-            //noinspection StatementWithEmptyBody
-            while (pendingBoolean.isPending()) {
+            };
+            if (((StreamingSyncTransport) transport).submitSolution(serial, solution, enigma.getId(), body)) {
+                acknowledgeDictionary(dictionarySize);
+                return true;
             }
-        } catch (JSONException e) {
-            return false;
         }
-        return pendingBoolean.getValue();
+        return false;
+    }
+
+    private static void write(WritableByteChannel target, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * Requests an enigma and checks the server integrity with it.
+     *
+     * @param serial the identifier of the device
+     * @return the enigma, null if the request failed or the server is not trusted
+     */
+    private Enigma requestEnigma(String serial) {
+        // request enigma from server
+        Enigma enigma = transport.requestEnigma(serial);
+        if (enigma != null && enigma.getValue() != null) {
+            // check server integrity
+            String expectedEnigma = MD5.encode(serial + ":" + enigmaSalt + ":" + enigma.getId());
+            if (enigma.getValue().equals(expectedEnigma)) {
+                return enigma;
+            }
+        }
+        return null;
+    }
+
+    private void acknowledgeDictionary(int size) {
+        StringDictionary dictionary = DataWrapper.getDictionary();
+        if (dictionary != null) {
+            dictionary.acknowledge(size);
+        }
+    }
+
+    /**
+     * Builds the content submitted with the solution.
+     *
+     * @param json       the content to fill
+     * @param events     the events
+     * @param compressed if the events are compressed
+     * @return the dictionary size the server knows once the content is accepted
+     * @throws JSONException if the content could not be built
+     */
+    private int buildContent(JSONObject json, Event[] events, boolean compressed) throws JSONException {
+        JSONArray array = new JSONArray();
+        long[] ids = new long[events.length];
+        long[] contexts = new long[events.length];
+        for (int i = 0; i < events.length; i++) {
+            Event event = events[i];
+            JSONObject jsonEvent = new JSONObject();
+            jsonEvent.put("id", event.getId());
+            jsonEvent.put("code", event.getType().getCode());
+            jsonEvent.put("timestamp", event.getTimestamp());
+            jsonEvent.put("data", event.getData().toEncodedString());
+            array.put(jsonEvent);
+            ids[i] = event.getId();
+            contexts[i] = EventContext.getVersion(event);
+        }
+        JSONObject header = new JSONObject();
+        int dictionarySize = buildHeader(header, ids, contexts);
+        json.put("header", header);
+        if (compressed) {
+            json.put("encoding", "gzip");
+            json.put("content", compress(array.toString()));
+        } else {
+            json.put("content", array);
+        }
+        JSONObject dropped = buildDropped();
+        if (dropped != null) {
+            json.put("dropped", dropped);
+        }
+        return dictionarySize;
+    }
+
+    /**
+     * Builds the header of the content, read after the events are encoded.
+     *
+     * @param header   the header to fill
+     * @param ids      the ids of the events
+     * @param contexts the versions of the contexts the events carry, zero for none
+     * @return the dictionary size the server knows once the content is accepted
+     * @throws JSONException if the header could not be built
+     */
+    private int buildHeader(JSONObject header, long[] ids, long[] contexts) throws JSONException {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (long id : ids) {
+            first = Math.min(first, id);
+            last = Math.max(last, id);
+        }
+        // the server deduplicates retried uploads by id, the header lets it skip whole batches
+        header.put("count", ids.length);
+        header.put("first", first);
+        header.put("last", last);
+        JSONObject versions = new JSONObject();
+        for (long version : contexts) {
+            if (version != 0 && !versions.has(String.valueOf(version))) {
+                DataWrapper attributes = getEventContext().getAttributes(version);
+                if (attributes != null) {
+                    versions.put(String.valueOf(version), attributes.toString());
+                }
+            }
+        }
+        header.put("contexts", versions);
+        int dictionarySize = 0;
+        StringDictionary dictionary = DataWrapper.getDictionary();
+        if (dictionary != null) {
+            // every id the events use is part of the delta, they were encoded before,
+            // and on disk before the server learns them
+            dictionarySize = dictionary.size();
+            if (!dictionary.force()) {
+                throw new JSONException("Could not force the dictionary");
+            }
+            int from = Math.min(dictionary.getAcknowledged(), dictionarySize);
+            JSONArray entries = new JSONArray();
+            for (String entry : dictionary.getEntries(from).subList(0, dictionarySize - from)) {
+                entries.put(entry);
+            }
+            JSONObject delta = new JSONObject();
+            delta.put("from", from);
+            delta.put("entries", entries);
+            header.put("dictionary", delta);
+        }
+        return dictionarySize;
+    }
+
+    /**
+     * Builds the cumulative counters of dropped events, the server re-weights sampled and limited codes with them.
+     *
+     * @return the counters, null without rate control
+     * @throws JSONException if the counters could not be built
+     */
+    private JSONObject buildDropped() throws JSONException {
+        EventRateControl rateControl = getRateControl();
+        if (rateControl == null) {
+            return null;
+        }
+        JSONObject dropped = new JSONObject();
+        for (Map.Entry<Integer, Long> counter : rateControl.getDroppedByCode().entrySet()) {
+            dropped.put(String.valueOf(counter.getKey()), counter.getValue().longValue());
+        }
+        for (SuperType superType : SuperType.values()) {
+            dropped.put(superType.name(), rateControl.getDroppedCount(superType));
+        }
+        dropped.put("since", rateControl.getSince());
+        return dropped;
+    }
+
+    private String compress(String content) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                gzip.write(content.getBytes("UTF-8"));
+            }
+            return contentEncoder.encode(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not compress content", e);
+        }
     }
 
     private String generateIdentifier() {
-        String identifier;
+        String current = identifier;
+        if (current != null) {
+            return current;
+        }
         final String deviceId = Secure.getString(getContext().getContentResolver(), Secure.ANDROID_ID);
         if (deviceId != null) {
-            identifier = deviceId;
+            current = deviceId;
         } else {
-            identifier = Build.SERIAL;
+            current = Build.SERIAL;
+        }
+        identifier = current;
+        return current;
+    }
+
+    /**
+     * Notes the events leaving the events to sync while a drain waits, acknowledged by the server or not,
+     * so the wait never looks at the events to sync themselves.
+     */
+    private class DrainWait implements SyncAwait {
+        private final Set<Long> acknowledged = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        private final Set<Long> lost = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+        private void left(long id, boolean acknowledged) {
+            (acknowledged ? this.acknowledged : lost).add(id);
+        }
+
+        /**
+         * Waits for both lanes to upload the events, restarting them after a failure when retrying.
+         * An event evicted or removed without being acknowledged will never be synced, the wait gives up.
+         */
+        @Override
+        public boolean await(long[] ids, long deadline, boolean retry) throws InterruptedException {
+            Set<Long> remaining = new HashSet<>();
+            for (long id : ids) {
+                remaining.add(id);
+            }
+            while (true) {
+                synchronize();
+                if (!criticalLane.awaitIdle(deadline) || !bulkLane.awaitIdle(deadline)) {
+                    return false;
+                }
+                Iterator<Long> iterator = remaining.iterator();
+                while (iterator.hasNext()) {
+                    Long id = iterator.next();
+                    if (lost.contains(id)) {
+                        return false;
+                    }
+                    if (acknowledged.contains(id)) {
+                        iterator.remove();
+                    }
+                }
+                if (remaining.isEmpty()) {
+                    return true;
+                }
+                long wait = remaining(deadline);
+                if (!retry || wait <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(DRAIN_RETRY_DELAY)));
+            }
+        }
+
+        @Override
+        public void close() {
+            drainWaits.remove(this);
         }
-        return identifier;
     }
 
 }
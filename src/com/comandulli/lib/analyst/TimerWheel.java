@@ -0,0 +1,212 @@
+package com.comandulli.lib.analyst;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel running timeouts on a single background thread.
+ * <p>
+ * The wheel is a ring of buckets, each a doubly linked list of timeouts,
+ * a timeout goes into the bucket of its deadline tick, so scheduling and cancelling are constant time
+ * no matter how many timeouts are waiting. Every tick only the current bucket is visited,
+ * timeouts due in a later revolution of the wheel stay in it.
+ * <p>
+ * Timeouts fire at most one tick late, tasks run on the timer thread and should be short.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class TimerWheel {
+
+    /**
+     * The default tick duration in milliseconds.
+     */
+    public static final long DEFAULT_TICK = 1000;
+    /**
+     * The default number of buckets.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    private long startTime;
+    private long currentTick;
+    private int size;
+    private final ThreadFactory threadFactory;
+    private Thread thread;
+    private boolean stopped;
+
+    /**
+     * Instantiates a new Timer wheel with default settings.
+     */
+    public TimerWheel() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Instantiates a new Timer wheel, its thread starts with the first timeout.
+     *
+     * @param tick      the tick duration in milliseconds
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tick, int wheelSize) {
+        this(tick, wheelSize, AnalystExecutors.named("AnalystTimer", true));
+    }
+
+    /**
+     * Instantiates a new Timer wheel with the factory of its thread.
+     *
+     * @param tick          the tick duration in milliseconds
+     * @param wheelSize     the number of buckets, rounded up to a power of two
+     * @param threadFactory the factory of the timer thread, started with the first timeout
+     */
+    public TimerWheel(long tick, int wheelSize, ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+        int buckets = 1;
+        while (buckets < wheelSize) {
+            buckets <<= 1;
+        }
+        this.wheel = new Timeout[buckets];
+        this.mask = buckets - 1;
+        for (int i = 0; i < buckets; i++) {
+            Timeout sentinel = new Timeout(null, 0);
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+            wheel[i] = sentinel;
+        }
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task  the task
+     * @param delay the delay in milliseconds
+     * @return the timeout, to be cancelled
+     */
+    public synchronized Timeout schedule(Runnable task, long delay) {
+        if (stopped) {
+            throw new IllegalStateException("Timer wheel stopped");
+        }
+        if (thread == null) {
+            startTime = System.nanoTime();
+            thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    runLoop();
+                }
+            });
+            thread.start();
+        }
+        long elapsed = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+        long deadline = Math.max((elapsed + tickNanos - 1) / tickNanos, currentTick + 1);
+        Timeout timeout = new Timeout(task, deadline);
+        Timeout sentinel = wheel[(int) (deadline & mask)];
+        timeout.previous = sentinel.previous;
+        timeout.next = sentinel;
+        sentinel.previous.next = timeout;
+        sentinel.previous = timeout;
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Gets the number of waiting timeouts.
+     *
+     * @return the number
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Stops the timer thread, waiting timeouts never fire.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    private void runLoop() {
+        List<Timeout> due = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                try {
+                    long wait;
+                    while (!stopped && (wait = startTime + (currentTick + 1) * tickNanos - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, wait);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (stopped) {
+                    return;
+                }
+                currentTick++;
+                Timeout sentinel = wheel[(int) (currentTick & mask)];
+                Timeout timeout = sentinel.next;
+                while (timeout != sentinel) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadline <= currentTick) {
+                        timeout.unlink();
+                        due.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+            for (Timeout timeout : due) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.e("ERROR", "Caught error in timeout");
+                    e.printStackTrace();
+                }
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it did not fire yet.
+         *
+         * @return if cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (next == null) {
+                    return false;
+                }
+                unlink();
+                return true;
+            }
+        }
+
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = null;
+            next = null;
+            size--;
+        }
+    }
+
+}
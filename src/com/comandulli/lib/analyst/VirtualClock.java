@@ -0,0 +1,52 @@
+package com.comandulli.lib.analyst;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that only moves when told to, used to replay recorded events.
+ * <p>
+ * Every thread sees its own time, so events replayed in parallel each keep the time
+ * of the event being replayed on their thread. Threads that never set a time see the epoch.
+ * The monotonic time follows the wall time, durations are those between the times set.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class VirtualClock implements EventClock {
+
+    private final ThreadLocal<long[]> time = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * Sets the time of the current thread.
+     *
+     * @param millis the time in milliseconds since the epoch
+     */
+    public void set(long millis) {
+        time.get()[0] = millis;
+    }
+
+    /**
+     * Moves the time of the current thread forward.
+     *
+     * @param millis the milliseconds to advance
+     */
+    public void advance(long millis) {
+        time.get()[0] += millis;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return time.get()[0];
+    }
+
+    @Override
+    public long nanoTime() {
+        return TimeUnit.MILLISECONDS.toNanos(time.get()[0]);
+    }
+
+}
@@ -1,8 +1,11 @@
 package com.comandulli.lib.analyst.entity;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The type Data wrapper allows you to wrap
@@ -10,13 +13,34 @@ import java.util.Set;
  * <p>
  * It allows you to encode the hash map into a string
  * an then decode again into another Data wrapper.
+ * <p>
+ * With a String dictionary {@link #setDictionary(StringDictionary)} the stored and synced form
+ * {@link #toEncodedString()} replaces keys, and the values of low cardinality keys,
+ * by their dictionary ids written as #id. Literal strings starting with # are escaped as ##.
+ * Encoded rows start with the #| marker, which no plain row can start with, so every row is decoded
+ * by its own form: rows stored before the dictionary was enabled are still read as plain text.
+ * Once enabled the dictionary must stay enabled, rows stored with ids need it to be read.
+ * <p>
+ * Wrappers built from a string keep it and only decode it on first access to the entries,
+ * until modified the same string is returned when encoding again.
  *
  * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
  * @since 1.0
  */
 public class DataWrapper {
 
+    private static final String ID_PREFIX = "#";
+    private static final String ENCODED_PREFIX = "#|";
+    private static final Set<String> encodedValueKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static volatile StringDictionary dictionary;
+
+    static {
+        encodedValueKeys.add("activity");
+    }
+
     private HashMap<String, Object> objects;
+    private String raw;
+    private boolean rawEncoded;
 
     /**
      * Instantiates a new empty Data wrapper.
@@ -40,16 +64,7 @@ public class DataWrapper {
      * @param stringValue the encoded data wrapper
      */
     public DataWrapper(String stringValue) {
-        if (stringValue != null) {
-            objects = new HashMap<>();
-            String[] entries = stringValue.split("\\|");
-            for (String entry : entries) {
-                String[] values = entry.split(":=");
-                String key = values[0];
-                String value = values[1];
-                objects.put(key, value);
-            }
-        }
+        this.raw = stringValue;
     }
 
     /**
@@ -69,8 +84,9 @@ public class DataWrapper {
      * @param key   the key
      * @param value the value
      */
-    public void putValue(String key, String value) {
-        objects.put(key, value);
+    public synchronized void putValue(String key, String value) {
+        entries().put(key, value);
+        raw = null;
     }
 
     /**
@@ -78,8 +94,9 @@ public class DataWrapper {
      *
      * @param key the key
      */
-    public void removeValue(String key) {
-        objects.remove(key);
+    public synchronized void removeValue(String key) {
+        entries().remove(key);
+        raw = null;
     }
 
     /**
@@ -88,8 +105,8 @@ public class DataWrapper {
      * @param key the key
      * @return the value
      */
-    public String getValue(String key) {
-        Object object = objects.get(key);
+    public synchronized String getValue(String key) {
+        Object object = entries().get(key);
         if (object == null) {
             return null;
         } else {
@@ -97,19 +114,211 @@ public class DataWrapper {
         }
     }
 
+    /**
+     * Gets the keys, as an unmodifiable copy taken when called.
+     *
+     * @return the keys
+     */
+    public synchronized Set<String> getKeys() {
+        return Collections.unmodifiableSet(new HashSet<>(entries().keySet()));
+    }
+
+    /**
+     * Sets the dictionary used by the stored and synced form, null disables it.
+     *
+     * @param dictionary the dictionary
+     */
+    public static void setDictionary(StringDictionary dictionary) {
+        DataWrapper.dictionary = dictionary;
+    }
+
+    /**
+     * Gets the dictionary in use.
+     *
+     * @return the dictionary, null if disabled
+     */
+    public static StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Adds a key with few distinct values, its values are encoded by the dictionary as well.
+     * The activity key is added by default.
+     *
+     * @param key the key
+     */
+    public static void addEncodedValueKey(String key) {
+        encodedValueKeys.add(key);
+    }
+
+    /**
+     * If a key has few distinct values {@link #addEncodedValueKey(String)}.
+     *
+     * @param key the key
+     * @return if its values are encoded
+     */
+    public static boolean isEncodedValueKey(String key) {
+        return encodedValueKeys.contains(key);
+    }
+
+    /**
+     * Encodes this data wrapper into its stored and synced form, using the dictionary if enabled.
+     *
+     * @return the resulting string
+     */
+    public synchronized String toEncodedString() {
+        StringDictionary current = dictionary;
+        if (current == null) {
+            return toString();
+        }
+        if (raw != null && rawEncoded) {
+            return ENCODED_PREFIX + raw;
+        }
+        StringBuilder builder = new StringBuilder(ENCODED_PREFIX);
+        for (Entry<String, Object> entry : entries().entrySet()) {
+            if (builder.length() > ENCODED_PREFIX.length()) {
+                builder.append('|');
+            }
+            String key = entry.getKey();
+            String value = String.valueOf(entry.getValue());
+            builder.append(encodeToken(current, key, true));
+            builder.append(":=");
+            builder.append(encodeToken(current, value, encodedValueKeys.contains(key)));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes a data wrapper from its stored and synced form, by the marker of the row rather than
+     * by whether the dictionary is enabled now.
+     *
+     * @param stringValue the encoded data wrapper
+     * @return the data wrapper, null if the value is null
+     */
+    public static DataWrapper fromEncodedString(String stringValue) {
+        if (stringValue == null) {
+            return null;
+        }
+        if (!stringValue.startsWith(ENCODED_PREFIX)) {
+            return new DataWrapper(stringValue);
+        }
+        DataWrapper wrapper = new DataWrapper(stringValue.substring(ENCODED_PREFIX.length()));
+        wrapper.rawEncoded = true;
+        return wrapper;
+    }
+
+    private synchronized HashMap<String, Object> decoded() {
+        return entries();
+    }
+
+    /**
+     * Gets the entries, decoding the string this wrapper was built from on first access.
+     */
+    private HashMap<String, Object> entries() {
+        if (objects == null && raw != null) {
+            HashMap<String, Object> decoded = new HashMap<>();
+            StringDictionary current = rawEncoded ? dictionary : null;
+            // scanned by hand, splitting by the two character separator compiles a pattern every time
+            int length = raw.length();
+            while (length > 0 && raw.charAt(length - 1) == '|') {
+                length--;
+            }
+            // an empty row is an empty wrapper, as encoded by toString
+            if (length > 0) {
+                int start = 0;
+                while (start <= length) {
+                    int end = raw.indexOf('|', start);
+                    if (end < 0 || end > length) {
+                        end = length;
+                    }
+                    int separator = raw.indexOf(":=", start);
+                    if (separator < 0 || separator > end) {
+                        throw new ArrayIndexOutOfBoundsException("Entry without value: " + raw.substring(start, end));
+                    }
+                    String key = raw.substring(start, separator);
+                    int valueEnd = raw.indexOf(":=", separator + 2);
+                    String value = raw.substring(separator + 2, valueEnd < 0 || valueEnd > end ? end : valueEnd);
+                    if (current != null) {
+                        decoded.put(decodeToken(current, key), decodeToken(current, value));
+                    } else {
+                        decoded.put(key, value);
+                    }
+                    start = end + 1;
+                }
+            }
+            objects = decoded;
+        }
+        return objects;
+    }
+
+    private static String encodeToken(StringDictionary current, String token, boolean encode) {
+        int id = encode ? current.encode(token) : -1;
+        if (id >= 0) {
+            return ID_PREFIX + id;
+        }
+        return token.startsWith(ID_PREFIX) ? ID_PREFIX + token : token;
+    }
+
+    private static String decodeToken(StringDictionary current, String token) {
+        if (!token.startsWith(ID_PREFIX)) {
+            return token;
+        }
+        if (token.startsWith(ID_PREFIX, 1)) {
+            return token.substring(1);
+        }
+        String value = current.decode(Integer.parseInt(token.substring(1)));
+        return value != null ? value : token;
+    }
+
+    /**
+     * If another data wrapper holds the same entries.
+     *
+     * @param other the other object
+     * @return if equal
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof DataWrapper)) {
+            return false;
+        }
+        HashMap<String, Object> entries = decoded();
+        HashMap<String, Object> otherEntries = ((DataWrapper) other).decoded();
+        return entries == null ? otherEntries == null : entries.equals(otherEntries);
+    }
+
+    /**
+     * Hash code of the wrapped entries.
+     *
+     * @return the hash code
+     */
+    @Override
+    public synchronized int hashCode() {
+        HashMap<String, Object> entries = entries();
+        return entries == null ? 0 : entries.hashCode();
+    }
+
     /**
      * Encodes this data wrapper into a string.
      *
      * @return the resulting string.
      */
     @Override
-    public String toString() {
-        String value = "";
-        Set<Entry<String, Object>> entrySet = objects.entrySet();
+    public synchronized String toString() {
+        if (raw != null && !rawEncoded) {
+            return raw;
+        }
+        StringBuilder value = new StringBuilder();
+        Set<Entry<String, Object>> entrySet = entries().entrySet();
         for (Entry<String, Object> entry : entrySet) {
-            value += entry.getKey() + ":=" + entry.getValue() + "|";
+            if (value.length() > 0) {
+                value.append('|');
+            }
+            value.append(entry.getKey()).append(":=").append(entry.getValue());
         }
-        return value.substring(0, value.length() - 1);
+        return value.toString();
     }
 
 }
@@ -1,5 +1,7 @@
 package com.comandulli.lib.analyst.entity;
 
+import com.comandulli.lib.analyst.entity.EventType.Priority;
+
 /**
  * The type Event.
  * This represents an event occuring in your application.
@@ -9,11 +11,14 @@ package com.comandulli.lib.analyst.entity;
  */
 public class Event {
 
-    private int id;
+    private long id;
     private String timestamp;
+    private long time;
+    private long nanoTime;
     private EventType type;
     private DataWrapper data;
     private boolean sync;
+    private Priority priority;
 
     /**
      * Instantiates a new Event.
@@ -35,11 +40,11 @@ public class Event {
     }
 
     /**
-     * Gets id.
+     * Gets id, unique and time ordered, assigned before the event is stored.
      *
      * @return the id
      */
-    public int getId() {
+    public long getId() {
         return id;
     }
 
@@ -48,7 +53,7 @@ public class Event {
      *
      * @param id the id
      */
-    public void setId(int id) {
+    public void setId(long id) {
         this.id = id;
     }
 
@@ -70,6 +75,47 @@ public class Event {
         this.timestamp = timestamp;
     }
 
+    /**
+     * Gets the creation time of this event in milliseconds since the epoch.
+     * <p>
+     * It is zero when the event was built only from its timestamp string.
+     *
+     * @return the time
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Sets the creation time of this event in milliseconds since the epoch.
+     *
+     * @param time the time
+     */
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * Gets the monotonic clock reading when this event was logged, in nanoseconds.
+     * <p>
+     * It only measures durations between events logged by the same process,
+     * it is zero for events built elsewhere or loaded from storage.
+     *
+     * @return the reading
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    /**
+     * Sets the monotonic clock reading when this event was logged.
+     *
+     * @param nanoTime the reading in nanoseconds
+     */
+    public void setNanoTime(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
     /**
      * Gets type.
      *
@@ -116,6 +162,36 @@ public class Event {
         return "[" + type.getCode() + "]" + type.getName();
     }
 
+    /**
+     * Gets the sync priority of this event, by default the priority of its type.
+     *
+     * @return the priority
+     */
+    public Priority getPriority() {
+        if (priority != null) {
+            return priority;
+        }
+        return type == null ? Priority.Critical : type.getPriority();
+    }
+
+    /**
+     * Gets the sync priority set on this event, overriding the priority of its type.
+     *
+     * @return the priority, null if none was set
+     */
+    public Priority getPriorityOverride() {
+        return priority;
+    }
+
+    /**
+     * Sets the sync priority of this event, overriding the priority of its type.
+     *
+     * @param priority the priority
+     */
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
     /**
      * Sets if this Event has already been synced.
      *
@@ -36,20 +36,44 @@ public class EventContract extends Contract<Event> {
      * The constant of the column sync.
      */
     public static final String COLUMN_SYNC = "Sync";
+    /**
+     * The constant of the column priority, the priority set on the event, null when it follows its type.
+     */
+    public static final String COLUMN_PRIORITY = "Priority";
+    /**
+     * Adds the priority column to tables created before it existed.
+     */
+    public static final String ADD_PRIORITY = "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_PRIORITY + " INTEGER";
+    /**
+     * The index over the sync state, also covering lookups by code within a state.
+     */
+    public static final String INDEX_SYNC = "CREATE INDEX IF NOT EXISTS IndexEventSync ON " + TABLE_NAME + " (" + COLUMN_SYNC + ", " + COLUMN_CODE + ")";
+    /**
+     * The index over the code.
+     */
+    public static final String INDEX_CODE = "CREATE INDEX IF NOT EXISTS IndexEventCode ON " + TABLE_NAME + " (" + COLUMN_CODE + ")";
+    /**
+     * The index over the time, timestamps sort in time order.
+     */
+    public static final String INDEX_TIME = "CREATE INDEX IF NOT EXISTS IndexEventTime ON " + TABLE_NAME + " (" + COLUMN_TIME + ")";
+    /**
+     * All the indexes of the Event table.
+     */
+    public static final String[] INDEXES = {INDEX_SYNC, INDEX_CODE, INDEX_TIME};
 
     /**
      * Instantiates a new Event contract.
      */
     public EventContract() {
         super(TABLE_NAME);
-        columns.add(new Column<Event, Integer>(COLUMN_ID, DataType.INTEGER, true, true) {
+        columns.add(new Column<Event, Long>(COLUMN_ID, DataType.INTEGER, true, true) {
             @Override
-            public Integer fetchValue(Event obj) {
+            public Long fetchValue(Event obj) {
                 return obj.getId();
             }
 
             @Override
-            public void insertValue(Event obj, Integer value) {
+            public void insertValue(Event obj, Long value) {
                 obj.setId(value);
             }
         });
@@ -67,12 +91,12 @@ public class EventContract extends Contract<Event> {
         columns.add(new Column<Event, String>(COLUMN_DATA, DataType.STRING, false) {
             @Override
             public String fetchValue(Event obj) {
-                return obj.getData().toString();
+                return obj.getData().toEncodedString();
             }
 
             @Override
             public void insertValue(Event obj, String value) {
-                obj.setData(new DataWrapper(value));
+                obj.setData(DataWrapper.fromEncodedString(value));
             }
         });
         columns.add(new Column<Event, String>(COLUMN_TIME, DataType.STRING, false) {
@@ -97,6 +121,17 @@ public class EventContract extends Contract<Event> {
                 obj.setSync(value > 0);
             }
         });
+        columns.add(new Column<Event, Integer>(COLUMN_PRIORITY, DataType.INTEGER, false) {
+            @Override
+            public Integer fetchValue(Event obj) {
+                return obj.getPriorityOverride() == null ? null : obj.getPriorityOverride().ordinal();
+            }
+
+            @Override
+            public void insertValue(Event obj, Integer value) {
+                obj.setPriority(value == null ? null : EventType.Priority.values()[value]);
+            }
+        });
     }
 
     /**
@@ -1,5 +1,7 @@
 package com.comandulli.lib.analyst.entity;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * The Event type.
  *
@@ -46,9 +48,25 @@ public class EventType {
 
     }
 
+    /**
+     * How urgently events of a type should reach the server.
+     */
+    public enum Priority {
+        /**
+         * Synced right away, in small requests, the priority of types given none.
+         */
+        Critical, /**
+         * Synced in large batches, which may wait for a delay and be compressed.
+         */
+        Bulk
+    }
+
+    private static final ConcurrentHashMap<Integer, Priority> priorities = new ConcurrentHashMap<>();
+
     private final int code;
     private final String name;
     private final SuperType superType;
+    private final Priority priority;
 
     /**
      * Instantiates a new Event type with only a code.
@@ -58,24 +76,8 @@ public class EventType {
     public EventType(int code) {
         this.code = code;
         this.name = String.valueOf(code);
-        char entry = name.charAt(0);
-        switch (entry) {
-            case '2':
-                this.superType = SuperType.Close;
-                break;
-            case '3':
-                this.superType = SuperType.Terminated;
-                break;
-            case '4':
-                this.superType = SuperType.Pause;
-                break;
-            case '5':
-                this.superType = SuperType.Resume;
-                break;
-            default:
-                this.superType = SuperType.Open;
-                break;
-        }
+        this.superType = superTypeOf(code);
+        this.priority = null;
     }
 
     /**
@@ -88,6 +90,7 @@ public class EventType {
         this.code = code;
         this.name = String.valueOf(code);
         this.superType = superType;
+        this.priority = null;
     }
 
     /**
@@ -101,6 +104,26 @@ public class EventType {
         this.code = code;
         this.name = name;
         this.superType = superType;
+        this.priority = null;
+    }
+
+    /**
+     * Instantiates a new complete Event type with a priority.
+     * <p>
+     * The priority is registered for the code,
+     * types built from the code alone, as when loaded from storage, share it even when built before.
+     *
+     * @param code      the code
+     * @param name      the name
+     * @param superType the super type
+     * @param priority  the priority
+     */
+    public EventType(int code, String name, SuperType superType, Priority priority) {
+        this.code = code;
+        this.name = name;
+        this.superType = superType;
+        this.priority = priority;
+        priorities.put(code, priority);
     }
 
     /**
@@ -140,6 +163,43 @@ public class EventType {
         return superType;
     }
 
+    /**
+     * Gets priority, the one given to this type or else the one registered for its code when asked,
+     * {@link Priority#Critical} when none is.
+     *
+     * @return the priority
+     */
+    public Priority getPriority() {
+        return priority == null ? registeredPriority(code) : priority;
+    }
+
+    /**
+     * Gets the super type a code stands for, by its first digit.
+     * It is the super type of types built from the code alone, as when loaded from storage.
+     *
+     * @param code the code
+     * @return the super type
+     */
+    public static SuperType superTypeOf(int code) {
+        switch (String.valueOf(code).charAt(0)) {
+            case '2':
+                return SuperType.Close;
+            case '3':
+                return SuperType.Terminated;
+            case '4':
+                return SuperType.Pause;
+            case '5':
+                return SuperType.Resume;
+            default:
+                return SuperType.Open;
+        }
+    }
+
+    private static Priority registeredPriority(int code) {
+        Priority priority = priorities.get(code);
+        return priority == null ? Priority.Critical : priority;
+    }
+
     /**
      * Converts this event to another supert type event.
      *
@@ -0,0 +1,219 @@
+package com.comandulli.lib.analyst.entity;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A persistent, append-only dictionary of strings.
+ * <p>
+ * Every string gets the next integer id the first time it is encoded and keeps it forever,
+ * the file is only ever appended to and written before the new id is handed out,
+ * so no stored event can refer to an id that is lost when the process dies.
+ * Appended strings are only forced to disk by {@link #force()}, once per upload before their ids are sent,
+ * so encoding a new string never waits for the disk.
+ * Decoded strings are the instances held by the dictionary, shared by every event.
+ * <p>
+ * The number of strings the server acknowledged is kept in a file next to the dictionary,
+ * so a restart only sends the strings the server is missing.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class StringDictionary {
+
+    /**
+     * The longest string kept in the dictionary, longer ones are never encoded.
+     */
+    public static final int MAX_LENGTH = 256;
+
+    private final ArrayList<String> strings = new ArrayList<>();
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final FileOutputStream file;
+    private final DataOutputStream output;
+    private final File acknowledgedFile;
+    private int acknowledged;
+    private boolean forced = true;
+
+    /**
+     * Instantiates a new String dictionary, loading the entries of the file.
+     *
+     * @param file the dictionary file, created if missing
+     * @throws IOException if the file could not be read nor created
+     */
+    public StringDictionary(File file) throws IOException {
+        long valid = 0;
+        if (file.exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    String value = input.readUTF();
+                    ids.put(value, strings.size());
+                    strings.add(value);
+                    valid += 2 + utfLength(value);
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                // end of the entries, possibly a torn one
+            }
+            if (valid < file.length()) {
+                Log.w("Analyst", "Discarding torn dictionary entry");
+                try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+                    truncate.setLength(valid);
+                }
+            }
+        }
+        this.file = new FileOutputStream(file, true);
+        this.output = new DataOutputStream(this.file);
+        this.acknowledgedFile = new File(file.getPath() + ".ack");
+        if (acknowledgedFile.length() == 4) {
+            try (DataInputStream input = new DataInputStream(new FileInputStream(acknowledgedFile))) {
+                acknowledged = Math.min(Math.max(input.readInt(), 0), strings.size());
+            }
+        }
+    }
+
+    /**
+     * Encodes a string, adding it to the dictionary if new.
+     *
+     * @param value the string
+     * @return the id, or -1 if the string is too long to be kept
+     */
+    public synchronized int encode(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        if (value.length() > MAX_LENGTH) {
+            return -1;
+        }
+        try {
+            output.writeUTF(value);
+            output.flush();
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error appending to dictionary");
+            e.printStackTrace();
+            return -1;
+        }
+        id = strings.size();
+        ids.put(value, id);
+        strings.add(value);
+        forced = false;
+        return id;
+    }
+
+    /**
+     * Forces the strings appended since the last call to disk, before their ids leave the device.
+     *
+     * @return if every string is on disk
+     */
+    public synchronized boolean force() {
+        if (forced) {
+            return true;
+        }
+        try {
+            file.getFD().sync();
+            forced = true;
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error forcing dictionary");
+            e.printStackTrace();
+        }
+        return forced;
+    }
+
+    /**
+     * Gets the number of strings the server acknowledged, the first id of the delta it is missing.
+     *
+     * @return the number
+     */
+    public synchronized int getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Records the server acknowledged the strings up to a size, kept if it is more than known.
+     *
+     * @param size the number of strings the server knows
+     */
+    public synchronized void acknowledge(int size) {
+        if (size <= acknowledged) {
+            return;
+        }
+        acknowledged = Math.min(size, strings.size());
+        try (RandomAccessFile output = new RandomAccessFile(acknowledgedFile, "rw")) {
+            output.writeInt(acknowledged);
+            output.setLength(4);
+        } catch (IOException e) {
+            // only costs a larger delta after a restart
+            Log.e("ERROR", "Caught error writing acknowledged dictionary size");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Decodes an id.
+     *
+     * @param id the id
+     * @return the string, null if the id is unknown
+     */
+    public synchronized String decode(int id) {
+        return id >= 0 && id < strings.size() ? strings.get(id) : null;
+    }
+
+    /**
+     * Gets the number of strings, which is also the id of the next one.
+     *
+     * @return the number
+     */
+    public synchronized int size() {
+        return strings.size();
+    }
+
+    /**
+     * Gets the strings from an id onwards, the delta a server that knows the first ids is missing.
+     *
+     * @param from the first id
+     * @return the strings, in id order
+     */
+    public synchronized List<String> getEntries(int from) {
+        return new ArrayList<>(strings.subList(Math.min(from, strings.size()), strings.size()));
+    }
+
+    /**
+     * Closes the dictionary file.
+     */
+    public synchronized void close() {
+        try {
+            force();
+            output.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int utfLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.comandulli.lib.analyst.store;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.comandulli.lib.analyst.EventLogger;
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventContract;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.Priority;
+import com.comandulli.lib.sqlite.ContractDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Event store backed by a SQLite Contract Database {@see com.comandulli.lib.sqlite.ContractDatabase}.
+ * <p>
+ * Every event is a row of the Event table {@see com.comandulli.lib.analyst.entity.EventContract}
+ * keyed by its own 64-bit id, state changes update the Sync column in place and lookups by state and code go through
+ * the table indexes, created on first use along with the Priority column of tables that predate it.
+ * <p>
+ * Queries {@link #query(EventQuery)} become a single indexed select, limited by SQL,
+ * whose rows are read from the cursor as the events are iterated.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class ContractEventStore implements EventStore {
+
+    private static final String[] COLUMNS = {EventContract.COLUMN_ID, EventContract.COLUMN_CODE, EventContract.COLUMN_DATA, EventContract.COLUMN_TIME, EventContract.COLUMN_SYNC, EventContract.COLUMN_PRIORITY};
+
+    private final ContractDatabase contractDatabase;
+    private volatile boolean indexed;
+
+    /**
+     * Instantiates a new Contract event store.
+     *
+     * @param contractDatabase the contract database
+     */
+    public ContractEventStore(ContractDatabase contractDatabase) {
+        this.contractDatabase = contractDatabase;
+    }
+
+    @Override
+    public void insert(Event event) {
+        ContentValues values = new ContentValues();
+        values.put(EventContract.COLUMN_ID, event.getId());
+        values.put(EventContract.COLUMN_CODE, event.getType().getCode());
+        values.put(EventContract.COLUMN_DATA, event.getData() == null ? null : event.getData().toEncodedString());
+        values.put(EventContract.COLUMN_TIME, event.getTimestamp());
+        values.put(EventContract.COLUMN_SYNC, event.isSync() ? 1 : 0);
+        values.put(EventContract.COLUMN_PRIORITY, event.getPriorityOverride() == null ? null : event.getPriorityOverride().ordinal());
+        // the id comes from the event, a retried insert replaces the row instead of duplicating it
+        getDatabase().insertWithOnConflict(EventContract.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    @Override
+    public void remove(Event event) {
+        getDatabase().delete(EventContract.TABLE_NAME, EventContract.COLUMN_ID + " = ?", new String[]{String.valueOf(event.getId())});
+    }
+
+    @Override
+    public void updateSync(Event event) {
+        ContentValues values = new ContentValues();
+        values.put(EventContract.COLUMN_SYNC, event.isSync() ? 1 : 0);
+        getDatabase().update(EventContract.TABLE_NAME, values, EventContract.COLUMN_ID + " = ?", new String[]{String.valueOf(event.getId())});
+    }
+
+    @Override
+    public List<Event> getList() {
+        return select(null, null, null);
+    }
+
+    @Override
+    public List<Event> getList(boolean sync) {
+        return select(EventContract.COLUMN_SYNC + " = ?", new String[]{sync ? "1" : "0"}, null);
+    }
+
+    @Override
+    public Event searchEvent(int code, boolean sync) {
+        List<Event> events = select(EventContract.COLUMN_SYNC + " = ? AND " + EventContract.COLUMN_CODE + " = ?", new String[]{sync ? "1" : "0", String.valueOf(code)}, "1");
+        return events.isEmpty() ? null : events.get(0);
+    }
+
+    @Override
+    public EventIterator query(EventQuery query) {
+        StringBuilder selection = new StringBuilder();
+        List<String> arguments = new ArrayList<>();
+        if (query.getSync() != null) {
+            and(selection).append(EventContract.COLUMN_SYNC).append(" = ?");
+            arguments.add(query.getSync() ? "1" : "0");
+        }
+        int[] ranges = query.getCodeRanges();
+        if (ranges.length == 0) {
+            return query.filter(new ArrayList<Event>());
+        }
+        if (ranges[0] != Integer.MIN_VALUE || ranges[1] != Integer.MAX_VALUE) {
+            and(selection).append('(');
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (i > 0) {
+                    selection.append(" OR ");
+                }
+                selection.append(EventContract.COLUMN_CODE).append(" BETWEEN ? AND ?");
+                arguments.add(String.valueOf(ranges[i]));
+                arguments.add(String.valueOf(ranges[i + 1]));
+            }
+            selection.append(')');
+        }
+        // timestamps are precise to the second and sort in time order
+        if (query.getSince() != Long.MIN_VALUE) {
+            and(selection).append(EventContract.COLUMN_TIME).append(" >= ?");
+            arguments.add(EventLogger.formatTime(ceilSecond(query.getSince())));
+        }
+        if (query.getUntil() != Long.MAX_VALUE) {
+            and(selection).append(EventContract.COLUMN_TIME).append(" < ?");
+            arguments.add(EventLogger.formatTime(ceilSecond(query.getUntil())));
+        }
+        String order = EventContract.COLUMN_ID + (query.isNewestFirst() ? " DESC" : " ASC");
+        String limit = query.getLimit() > 0 ? String.valueOf(query.getLimit()) : null;
+        final Cursor cursor = getDatabase().query(EventContract.TABLE_NAME, COLUMNS, selection.length() == 0 ? null : selection.toString(), arguments.toArray(new String[arguments.size()]), null, null, order, limit);
+        return new EventIterator() {
+            private Event next;
+            private boolean closed;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !closed) {
+                    if (cursor.moveToNext()) {
+                        next = readEvent(cursor);
+                    } else {
+                        close();
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Event next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Event event = next;
+                next = null;
+                return event;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    cursor.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void flush() {
+        // every statement is committed as it runs
+    }
+
+    @Override
+    public void close() {
+        // the contract database lifecycle belongs to the application
+    }
+
+    /**
+     * Gets the contract database.
+     *
+     * @return the contract database
+     */
+    public ContractDatabase getContractDatabase() {
+        return contractDatabase;
+    }
+
+    private List<Event> select(String selection, String[] arguments, String limit) {
+        List<Event> events = new ArrayList<>();
+        try (Cursor cursor = getDatabase().query(EventContract.TABLE_NAME, COLUMNS, selection, arguments, null, null, EventContract.COLUMN_ID, limit)) {
+            while (cursor.moveToNext()) {
+                events.add(readEvent(cursor));
+            }
+        }
+        return events;
+    }
+
+    private static StringBuilder and(StringBuilder selection) {
+        return selection.length() == 0 ? selection : selection.append(" AND ");
+    }
+
+    private static long ceilSecond(long millis) {
+        long floor = millis - ((millis % 1000) + 1000) % 1000;
+        return floor == millis ? millis : floor + 1000;
+    }
+
+    private SQLiteDatabase getDatabase() {
+        SQLiteDatabase database = contractDatabase.getWritableDatabase();
+        if (!indexed) {
+            if (!hasColumn(database, EventContract.COLUMN_PRIORITY)) {
+                database.execSQL(EventContract.ADD_PRIORITY);
+            }
+            for (String index : EventContract.INDEXES) {
+                database.execSQL(index);
+            }
+            indexed = true;
+        }
+        return database;
+    }
+
+    private static Event readEvent(Cursor cursor) {
+        Event event = new Event();
+        event.setId(cursor.getLong(0));
+        event.setType(new EventType(cursor.getInt(1)));
+        String data = cursor.getString(2);
+        event.setData(DataWrapper.fromEncodedString(data));
+        event.setTimestamp(cursor.getString(3));
+        event.setSync(cursor.getInt(4) > 0);
+        if (!cursor.isNull(5)) {
+            event.setPriority(Priority.values()[cursor.getInt(5)]);
+        }
+        return event;
+    }
+
+    private static boolean hasColumn(SQLiteDatabase database, String column) {
+        try (Cursor cursor = database.rawQuery("PRAGMA table_info(" + EventContract.TABLE_NAME + ")", null)) {
+            int name = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(name))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.comandulli.lib.analyst.store;
+
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes and reads event exports, a stream of insert records in the journal layout {@see EventRecord}.
+ * <p>
+ * Exports carry the events as stored, with their ids and timestamps,
+ * their data is written plain so exports are read without the String dictionary
+ * {@see com.comandulli.lib.analyst.entity.StringDictionary} of the device that wrote them.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public final class EventExport {
+
+    private EventExport() {
+    }
+
+    /**
+     * Writes events to an export.
+     *
+     * @param events the events
+     * @param output the output, left open
+     * @throws IOException if writing failed
+     */
+    public static void write(List<Event> events, OutputStream output) throws IOException {
+        for (Event event : events) {
+            ByteBuffer record = EventRecord.encodeInsert(event, false);
+            output.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+        }
+        output.flush();
+    }
+
+    /**
+     * Reads the events of an export, up to the first incomplete or corrupted record.
+     *
+     * @param input the input, left open
+     * @return the events, in export order
+     * @throws IOException if reading failed
+     */
+    public static List<Event> read(InputStream input) throws IOException {
+        DataInputStream data = new DataInputStream(input);
+        List<Event> events = new ArrayList<>();
+        byte[] frame = new byte[0];
+        while (true) {
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+            if (length <= 0) {
+                break;
+            }
+            if (frame.length < EventRecord.HEADER_SIZE + length) {
+                frame = new byte[EventRecord.HEADER_SIZE + length];
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(frame, 0, EventRecord.HEADER_SIZE + length);
+            buffer.putInt(length);
+            try {
+                data.readFully(frame, 4, EventRecord.HEADER_SIZE - 4 + length);
+            } catch (EOFException e) {
+                break;
+            }
+            buffer.position(0);
+            EventRecord record = EventRecord.read(buffer, true, false);
+            if (record == null) {
+                break;
+            }
+            if (record.op == EventRecord.OP_INSERT) {
+                events.add(record.event);
+            }
+        }
+        return events;
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.comandulli.lib.analyst.store;
+
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Streams the events matching a query {@see EventQuery}, reading them from the store as it goes.
+ * <p>
+ * It closes itself once exhausted, close it when stopping earlier to release the store resources.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public interface EventIterator extends Iterator<Event>, Closeable {
+
+    /**
+     * Releases the resources held, such as a database cursor.
+     */
+    @Override
+    void close();
+
+}
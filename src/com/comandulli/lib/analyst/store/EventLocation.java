@@ -0,0 +1,41 @@
+package com.comandulli.lib.analyst.store;
+
+/**
+ * Where a live event is stored in a segmented store, kept by its index together with the fields queries filter on,
+ * so an event is only read once it is known to match.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+class EventLocation {
+
+    /**
+     * The position of the insert record in its segment.
+     */
+    final long position;
+    /**
+     * The length of the insert record, including its frame.
+     */
+    final int length;
+    /**
+     * The code of the event.
+     */
+    final int code;
+    /**
+     * The time of the stored timestamp in milliseconds since the epoch, zero if it could not be parsed.
+     */
+    final long time;
+    /**
+     * The current sync state, changed in place by sync records.
+     */
+    volatile boolean sync;
+
+    EventLocation(long position, int length, int code, long time, boolean sync) {
+        this.position = position;
+        this.length = length;
+        this.code = code;
+        this.time = time;
+        this.sync = sync;
+    }
+
+}
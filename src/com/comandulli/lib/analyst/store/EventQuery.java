@@ -0,0 +1,311 @@
+package com.comandulli.lib.analyst.store;
+
+import com.comandulli.lib.analyst.EventLogger;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A query over stored events, run by an Event store {@see EventStore#query(EventQuery)}.
+ * <p>
+ * Filters on code, code range, super type, time range and sync state are all combined,
+ * stores push them down to their indexes where they have any.
+ * The super type is the one the code stands for {@link EventType#superTypeOf(int)}, and
+ * the time is the stored timestamp, precise to the second.
+ * Events come in id order, which is also creation order, or newest first.
+ * <p>
+ * <pre>
+ * EventQuery query = new EventQuery().code(EVENT_REGISTER_ENDED.getCode()).limit(1);
+ * </pre>
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class EventQuery {
+
+    private Boolean sync;
+    private int codeFrom = Integer.MIN_VALUE;
+    private int codeTo = Integer.MAX_VALUE;
+    private SuperType superType;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    private int limit;
+    private boolean newestFirst;
+
+    /**
+     * Only events of a code.
+     *
+     * @param code the code
+     * @return this query
+     */
+    public EventQuery code(int code) {
+        return codes(code, code);
+    }
+
+    /**
+     * Only events of a code range.
+     *
+     * @param from the first code
+     * @param to   the last code, inclusive
+     * @return this query
+     */
+    public EventQuery codes(int from, int to) {
+        this.codeFrom = from;
+        this.codeTo = to;
+        return this;
+    }
+
+    /**
+     * Only events whose code stands for a super type.
+     *
+     * @param superType the super type
+     * @return this query
+     */
+    public EventQuery superType(SuperType superType) {
+        this.superType = superType;
+        return this;
+    }
+
+    /**
+     * Only events created at or after a time.
+     *
+     * @param since the time in milliseconds since the epoch
+     * @return this query
+     */
+    public EventQuery since(long since) {
+        this.since = since;
+        return this;
+    }
+
+    /**
+     * Only events created before a time.
+     *
+     * @param until the time in milliseconds since the epoch, exclusive
+     * @return this query
+     */
+    public EventQuery until(long until) {
+        this.until = until;
+        return this;
+    }
+
+    /**
+     * Only events in a sync state.
+     *
+     * @param sync the sync state
+     * @return this query
+     */
+    public EventQuery sync(boolean sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    /**
+     * Stops after a number of events.
+     *
+     * @param limit the maximum number of events, zero for no limit
+     * @return this query
+     */
+    public EventQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Returns the newest events first.
+     *
+     * @return this query
+     */
+    public EventQuery newestFirst() {
+        this.newestFirst = true;
+        return this;
+    }
+
+    /**
+     * Gets the sync state filtered.
+     *
+     * @return the sync state, null for any
+     */
+    public Boolean getSync() {
+        return sync;
+    }
+
+    /**
+     * Gets the time range start.
+     *
+     * @return the time, Long.MIN_VALUE if unbounded
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * Gets the time range end, exclusive.
+     *
+     * @return the time, Long.MAX_VALUE if unbounded
+     */
+    public long getUntil() {
+        return until;
+    }
+
+    /**
+     * Gets the limit.
+     *
+     * @return the limit, zero for none
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * If the newest events come first.
+     *
+     * @return if newest first
+     */
+    public boolean isNewestFirst() {
+        return newestFirst;
+    }
+
+    /**
+     * Gets the code ranges matched, combining the code range and the super type.
+     *
+     * @return the ranges as pairs of first and last code, empty if no code matches
+     */
+    public int[] getCodeRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        if (superType == null) {
+            ranges.add(new long[]{Integer.MIN_VALUE, Integer.MAX_VALUE});
+        } else if (superType == SuperType.Open) {
+            // zero, negative codes and those starting by 1 or by 6 to 9
+            ranges.add(new long[]{Integer.MIN_VALUE, 1});
+            for (long power = 1; power <= Integer.MAX_VALUE; power *= 10) {
+                if (power > 1) {
+                    ranges.add(new long[]{power, 2 * power - 1});
+                }
+                ranges.add(new long[]{6 * power, 10 * power - 1});
+            }
+        } else {
+            // the identifiers of the other super types are their first digits
+            int digit = superType.getIdentifier();
+            for (long power = 1; power <= Integer.MAX_VALUE; power *= 10) {
+                ranges.add(new long[]{digit * power, (digit + 1) * power - 1});
+            }
+        }
+        int[] clipped = new int[ranges.size() * 2];
+        int count = 0;
+        for (long[] range : ranges) {
+            long from = Math.max(range[0], codeFrom);
+            long to = Math.min(range[1], codeTo);
+            if (from <= to) {
+                clipped[count++] = (int) from;
+                clipped[count++] = (int) to;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(clipped, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * If an event matches the filters.
+     *
+     * @param event the event
+     * @return if it matches
+     */
+    public boolean matches(Event event) {
+        if (!matches(event.getType().getCode(), event.isSync())) {
+            return false;
+        }
+        return !hasTimeRange() || matchesTime(EventLogger.getTime(event));
+    }
+
+    /**
+     * If an event matches the filters, by the fields stores keep in their indexes.
+     *
+     * @param code the code of the event
+     * @param sync the sync state of the event
+     * @param time the time of the stored timestamp in milliseconds since the epoch
+     * @return if it matches
+     */
+    public boolean matches(int code, boolean sync, long time) {
+        return matches(code, sync) && matchesTime(time);
+    }
+
+    private boolean matches(int code, boolean sync) {
+        if (this.sync != null && sync != this.sync) {
+            return false;
+        }
+        if (code < codeFrom || code > codeTo) {
+            return false;
+        }
+        return superType == null || EventType.superTypeOf(code) == superType;
+    }
+
+    private boolean hasTimeRange() {
+        return since != Long.MIN_VALUE || until != Long.MAX_VALUE;
+    }
+
+    private boolean matchesTime(long time) {
+        return time >= since && time < until;
+    }
+
+    /**
+     * Runs this query over events held in memory, for stores without indexes.
+     *
+     * @param events the events
+     * @return the iterator
+     */
+    public EventIterator filter(List<Event> events) {
+        final List<Event> ordered = new ArrayList<>(events);
+        Collections.sort(ordered, new Comparator<Event>() {
+            @Override
+            public int compare(Event first, Event second) {
+                return newestFirst ? Long.compare(second.getId(), first.getId()) : Long.compare(first.getId(), second.getId());
+            }
+        });
+        return new EventIterator() {
+            private int position;
+            private int returned;
+            private Event next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && position < ordered.size() && (limit <= 0 || returned < limit)) {
+                    Event candidate = ordered.get(position++);
+                    if (matches(candidate)) {
+                        next = candidate;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Event next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Event event = next;
+                next = null;
+                returned++;
+                return event;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                position = ordered.size();
+                next = null;
+            }
+        };
+    }
+
+}
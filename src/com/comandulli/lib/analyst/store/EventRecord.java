@@ -0,0 +1,311 @@
+package com.comandulli.lib.analyst.store;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.Priority;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary layout of a single event record inside a segment file.
+ * <p>
+ * Every record is framed as [length:int][crc:int][payload],
+ * the crc covers the payload only, a zero length marks the end of the written area.
+ * <p>
+ * The payload starts with the operation and the 64-bit event id,
+ * insert operations are followed by the code, the flags, the timestamp and the encoded data,
+ * sync operations are followed by the new sync flag only.
+ * <p>
+ * The lowest bit of the flags is the sync state, the bits above hold the priority set on the event plus one,
+ * zero when it follows its type.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+final class EventRecord {
+
+    /**
+     * Size of the frame header.
+     */
+    static final int HEADER_SIZE = 8;
+    /**
+     * Operation that inserts an event.
+     */
+    static final byte OP_INSERT = 1;
+    /**
+     * Operation that removes an event.
+     */
+    static final byte OP_REMOVE = 2;
+    /**
+     * Operation that changes the sync state of an event.
+     */
+    static final byte OP_SYNC = 3;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The operation.
+     */
+    byte op;
+    /**
+     * The event id.
+     */
+    long id;
+    /**
+     * The sync state, present on insert and sync operations.
+     */
+    boolean sync;
+    /**
+     * The event, only present on insert operations.
+     */
+    Event event;
+
+    private EventRecord() {
+    }
+
+    /**
+     * Encodes an insert record.
+     *
+     * @param event the event
+     * @return the framed record ready to be written
+     */
+    static ByteBuffer encodeInsert(Event event) {
+        return encodeInsert(event, true);
+    }
+
+    /**
+     * Encodes an insert record.
+     *
+     * @param event   the event
+     * @param encoded if the data is written in its dictionary encoded form, or plain
+     * @return the framed record ready to be written
+     */
+    static ByteBuffer encodeInsert(Event event, boolean encoded) {
+        byte[] time = encodeString(event.getTimestamp());
+        String value = event.getData() == null ? null : encoded ? event.getData().toEncodedString() : event.getData().toString();
+        byte[] data = encodeString(value);
+        int payloadSize = 1 + 8 + 4 + 1 + 4 + length(time) + 4 + length(data);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        buffer.position(HEADER_SIZE);
+        buffer.put(OP_INSERT);
+        buffer.putLong(event.getId());
+        buffer.putInt(event.getType().getCode());
+        buffer.put(encodeFlags(event));
+        putString(buffer, time);
+        putString(buffer, data);
+        return frame(buffer, payloadSize);
+    }
+
+    /**
+     * Encodes a remove record.
+     *
+     * @param id the id of the removed event
+     * @return the framed record ready to be written
+     */
+    static ByteBuffer encodeRemove(long id) {
+        int payloadSize = 1 + 8;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        buffer.position(HEADER_SIZE);
+        buffer.put(OP_REMOVE);
+        buffer.putLong(id);
+        return frame(buffer, payloadSize);
+    }
+
+    /**
+     * Encodes a sync state record.
+     *
+     * @param id   the id of the event
+     * @param sync the new sync state
+     * @return the framed record ready to be written
+     */
+    static ByteBuffer encodeSync(long id, boolean sync) {
+        int payloadSize = 1 + 8 + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        buffer.position(HEADER_SIZE);
+        buffer.put(OP_SYNC);
+        buffer.putLong(id);
+        buffer.put((byte) (sync ? 1 : 0));
+        return frame(buffer, payloadSize);
+    }
+
+    /**
+     * Reads the next record from the buffer.
+     * <p>
+     * On success the buffer is positioned after the record,
+     * otherwise its position is left untouched.
+     *
+     * @param buffer the buffer
+     * @param verify if the crc should be verified
+     * @return the record or null if there is no complete and valid record at the current position
+     */
+    static EventRecord read(ByteBuffer buffer, boolean verify) {
+        return read(buffer, verify, true);
+    }
+
+    /**
+     * Reads the record at the current position of the buffer.
+     *
+     * @param buffer  the buffer
+     * @param verify  if the crc should be verified
+     * @param encoded if the data was written in its dictionary encoded form, or plain
+     * @return the record or null if there is no complete and valid record at the current position
+     */
+    static EventRecord read(ByteBuffer buffer, boolean verify, boolean encoded) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt(start);
+        int crc = buffer.getInt(start + 4);
+        if (length <= 0 || length > buffer.remaining() - HEADER_SIZE) {
+            return null;
+        }
+        if (verify && crc != checksum(buffer, start + HEADER_SIZE, length)) {
+            return null;
+        }
+        buffer.position(start + HEADER_SIZE);
+        EventRecord record = new EventRecord();
+        try {
+            record.op = buffer.get();
+            if (record.op < OP_INSERT || record.op > OP_SYNC) {
+                buffer.position(start);
+                return null;
+            }
+            record.id = buffer.getLong();
+            if (record.op == OP_INSERT) {
+                Event event = new Event();
+                event.setId(record.id);
+                event.setType(new EventType(buffer.getInt()));
+                byte flags = buffer.get();
+                record.sync = (flags & 1) == 1;
+                event.setSync(record.sync);
+                int priority = (flags >> 1) - 1;
+                if (priority >= 0) {
+                    event.setPriority(Priority.values()[priority]);
+                }
+                event.setTimestamp(getString(buffer));
+                String data = getString(buffer);
+                event.setData(encoded ? DataWrapper.fromEncodedString(data) : data == null ? null : new DataWrapper(data));
+                record.event = event;
+            } else if (record.op == OP_SYNC) {
+                record.sync = buffer.get() == 1;
+            }
+        } catch (RuntimeException e) {
+            buffer.position(start);
+            return null;
+        }
+        buffer.position(start + HEADER_SIZE + length);
+        return record;
+    }
+
+    /**
+     * Replays this record over the events rebuilt so far.
+     *
+     * @param events the events by id, in insertion order
+     */
+    void applyTo(Map<Long, Event> events) {
+        if (op == OP_INSERT) {
+            events.put(id, event);
+        } else if (op == OP_REMOVE) {
+            events.remove(id);
+        } else if (op == OP_SYNC) {
+            Event target = events.get(id);
+            if (target != null) {
+                target.setSync(sync);
+            }
+        }
+    }
+
+    /**
+     * Filters events by their sync state.
+     *
+     * @param events the events
+     * @param sync   the sync state
+     * @return the events in that state
+     */
+    static List<Event> filter(List<Event> events, boolean sync) {
+        List<Event> filtered = new ArrayList<>();
+        for (Event event : events) {
+            if (event.isSync() == sync) {
+                filtered.add(event);
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * Search the first event of a code in a sync state.
+     *
+     * @param events the events
+     * @param code   the code of the event type
+     * @param sync   the sync state
+     * @return the event or null if none is found
+     */
+    static Event search(List<Event> events, int code, boolean sync) {
+        for (Event event : events) {
+            if (event.isSync() == sync && event.getType().getCode() == code) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    private static byte encodeFlags(Event event) {
+        Priority priority = event.getPriorityOverride();
+        int flags = priority == null ? 0 : (priority.ordinal() + 1) << 1;
+        return (byte) (flags | (event.isSync() ? 1 : 0));
+    }
+
+    private static ByteBuffer frame(ByteBuffer buffer, int payloadSize) {
+        buffer.putInt(0, payloadSize);
+        buffer.putInt(4, checksum(buffer, HEADER_SIZE, payloadSize));
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + offset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                crc.update(buffer.get(offset + i));
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodeString(String value) {
+        return value == null ? null : value.getBytes(UTF8);
+    }
+
+    private static int length(byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, UTF8);
+    }
+
+}
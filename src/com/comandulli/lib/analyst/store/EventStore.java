@@ -0,0 +1,82 @@
+package com.comandulli.lib.analyst.store;
+
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.util.List;
+
+/**
+ * A storage backend for events.
+ * <p>
+ * The Event contractor {@see com.comandulli.lib.analyst.EventContractor} delegates
+ * every persistence operation to an event store, allowing the analyst
+ * to run on top of SQLite or on top of a file based journal.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public interface EventStore {
+
+    /**
+     * Insert a new event, its id is already assigned by the contractor.
+     *
+     * @param event the event
+     */
+    void insert(Event event);
+
+    /**
+     * Remove an event.
+     *
+     * @param event the event
+     */
+    void remove(Event event);
+
+    /**
+     * Updates the sync state of a stored event in place, keeping its id.
+     *
+     * @param event the event, already holding its new state
+     */
+    void updateSync(Event event);
+
+    /**
+     * Gets a list of all stored events.
+     *
+     * @return the list
+     */
+    List<Event> getList();
+
+    /**
+     * Gets a list of the stored events in a sync state.
+     *
+     * @param sync the sync state
+     * @return the list
+     */
+    List<Event> getList(boolean sync);
+
+    /**
+     * Search the first stored event of a code in a sync state.
+     *
+     * @param code the code of the event type
+     * @param sync the sync state
+     * @return the event or null if none is found
+     */
+    Event searchEvent(int code, boolean sync);
+
+    /**
+     * Runs a query, streaming the matching events.
+     *
+     * @param query the query
+     * @return the iterator over the matching events
+     */
+    EventIterator query(EventQuery query);
+
+    /**
+     * Makes every change made so far durable, returning once it is.
+     */
+    void flush();
+
+    /**
+     * Releases the resources held by this store.
+     */
+    void close();
+
+}
@@ -0,0 +1,86 @@
+package com.comandulli.lib.analyst.store;
+
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the events of an index ordered by id, filtering on the indexed fields
+ * and reading only the events that match.
+ * <p>
+ * The index is walked while the store keeps changing, each matching event is read again by its id
+ * and checked once more, so events removed or moved meanwhile are skipped or read from their new place.
+ *
+ * @param <L> the type of the locations of the index
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+abstract class IndexIterator<L extends EventLocation> implements EventIterator {
+
+    private final Iterator<Map.Entry<Long, L>> entries;
+    private final EventQuery query;
+    private int returned;
+    private Event next;
+    private boolean closed;
+
+    /**
+     * Instantiates a new Index iterator.
+     *
+     * @param index the index, weakly consistent when walked concurrently with changes
+     * @param query the query
+     */
+    IndexIterator(NavigableMap<Long, L> index, EventQuery query) {
+        this.entries = (query.isNewestFirst() ? index.descendingMap() : index).entrySet().iterator();
+        this.query = query;
+    }
+
+    /**
+     * Reads the event currently stored under an id.
+     *
+     * @param id the id
+     * @return the event in its current state, or null if it was removed
+     */
+    abstract Event read(long id);
+
+    @Override
+    public boolean hasNext() {
+        int limit = query.getLimit();
+        while (next == null && !closed && (limit <= 0 || returned < limit) && entries.hasNext()) {
+            Map.Entry<Long, L> entry = entries.next();
+            L location = entry.getValue();
+            if (query.matches(location.code, location.sync, location.time)) {
+                Event event = read(entry.getKey());
+                if (event != null && query.matches(location.code, event.isSync(), location.time)) {
+                    next = event;
+                }
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Event next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Event event = next;
+        next = null;
+        returned++;
+        return event;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        next = null;
+    }
+
+}
@@ -0,0 +1,557 @@
+package com.comandulli.lib.analyst.store;
+
+import android.util.Log;
+
+import com.comandulli.lib.analyst.AnalystExecutors;
+import com.comandulli.lib.analyst.EventLogger;
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Event store backed by an append-only segmented journal.
+ * <p>
+ * Every change is a sequential append to the active segment,
+ * an insert writes the whole event while a remove or a state change writes only its id and new state.
+ * <p>
+ * Appends are not forced individually, a background thread forces
+ * the active segment once per sync interval, grouping all the appends made meanwhile.
+ * Call {@link #sync()} to force them right away.
+ * The thread comes from a thread factory, by default a daemon named after its role, and ends once the store is closed.
+ * <p>
+ * Segment files are deleted by the background thread from the oldest one only,
+ * once every event written to it has been removed and the removals are durable:
+ * a newer segment may still hold the removals and state changes of events inserted in an older one.
+ * When the oldest segment is mostly removed, its remaining events are written again
+ * to the active segment so a single long lived event does not keep every later segment on disk.
+ * <p>
+ * The index of live events is ordered by id and keeps the code, time and sync state of each one,
+ * queries and searches filter on it and only read the matching records, each at its position in its segment.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class JournalEventStore implements EventStore {
+
+    /**
+     * The default maximum size of a segment in bytes.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    /**
+     * The default interval between group syncs in milliseconds.
+     */
+    public static final long DEFAULT_SYNC_INTERVAL = 100;
+
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final Comparator<Event> ID_ORDER = new Comparator<Event>() {
+        @Override
+        public int compare(Event first, Event second) {
+            return first.getId() < second.getId() ? -1 : first.getId() == second.getId() ? 0 : 1;
+        }
+    };
+
+    private final File directory;
+    private final long segmentSize;
+    private final long syncInterval;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final ConcurrentSkipListMap<Long, Location> index = new ConcurrentSkipListMap<>();
+    private Segment active;
+    private FileChannel channel;
+    private boolean dirty;
+    private boolean closed;
+
+    /**
+     * Instantiates a new Journal event store with default settings.
+     *
+     * @param directory the directory holding the segments
+     * @throws IOException if the journal could not be recovered
+     */
+    public JournalEventStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * Instantiates a new Journal event store.
+     * <p>
+     * Existing segments are replayed to rebuild the index,
+     * a torn record at the tail of a segment is truncated.
+     *
+     * @param directory    the directory holding the segments
+     * @param segmentSize  the maximum size of a segment in bytes
+     * @param syncInterval the interval between group syncs in milliseconds
+     * @throws IOException if the journal could not be recovered
+     */
+    public JournalEventStore(File directory, long segmentSize, long syncInterval) throws IOException {
+        this(directory, segmentSize, syncInterval, AnalystExecutors.named("JournalSync", true));
+    }
+
+    /**
+     * Instantiates a new Journal event store, its background thread made by a thread factory.
+     * <p>
+     * Existing segments are replayed to rebuild the index,
+     * a torn record at the tail of a segment is truncated.
+     *
+     * @param directory     the directory holding the segments
+     * @param segmentSize   the maximum size of a segment in bytes
+     * @param syncInterval  the interval between group syncs in milliseconds
+     * @param threadFactory the factory of the thread running group syncs and segment deletions
+     * @throws IOException if the journal could not be recovered
+     */
+    public JournalEventStore(File directory, long segmentSize, long syncInterval, ThreadFactory threadFactory) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        recover();
+        threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                runSyncLoop();
+            }
+        }).start();
+    }
+
+    @Override
+    public synchronized void insert(Event event) {
+        ByteBuffer record = EventRecord.encodeInsert(event);
+        int length = record.remaining();
+        long position = append(record);
+        // inserting an id again replaces the event
+        Location previous = index.put(event.getId(), new Location(active, position, length, event, event.isSync()));
+        active.live++;
+        active.liveSize += length;
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    @Override
+    public synchronized void remove(Event event) {
+        Location location = index.remove(event.getId());
+        if (location == null) {
+            return;
+        }
+        append(EventRecord.encodeRemove(event.getId()));
+        release(location);
+    }
+
+    @Override
+    public synchronized void updateSync(Event event) {
+        Location location = index.get(event.getId());
+        if (location != null) {
+            append(EventRecord.encodeSync(event.getId(), event.isSync()));
+            location.sync = event.isSync();
+        }
+    }
+
+    @Override
+    public synchronized List<Event> getList() {
+        LinkedHashMap<Long, Event> events = new LinkedHashMap<>();
+        for (Segment segment : segments.values()) {
+            try {
+                ByteBuffer buffer = readSegment(segment.file, segment.size);
+                EventRecord record;
+                while ((record = EventRecord.read(buffer, false)) != null) {
+                    record.applyTo(events);
+                }
+            } catch (IOException e) {
+                Log.e("ERROR", "Caught error reading journal segment " + segment.file.getName());
+                e.printStackTrace();
+            }
+        }
+        List<Event> list = new ArrayList<>(events.values());
+        // events written again by a relocation follow newer ones in the journal, ids keep their order
+        Collections.sort(list, ID_ORDER);
+        return list;
+    }
+
+    @Override
+    public synchronized List<Event> getList(boolean sync) {
+        List<Event> list = new ArrayList<>();
+        for (Location location : index.values()) {
+            if (location.sync == sync) {
+                Event event = read(location);
+                if (event != null) {
+                    list.add(event);
+                }
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized Event searchEvent(int code, boolean sync) {
+        for (Location location : index.values()) {
+            if (location.code == code && location.sync == sync) {
+                return read(location);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public EventIterator query(EventQuery query) {
+        return new IndexIterator<Location>(index, query) {
+            @Override
+            Event read(long id) {
+                synchronized (JournalEventStore.this) {
+                    Location location = index.get(id);
+                    return location == null ? null : JournalEventStore.this.read(location);
+                }
+            }
+        };
+    }
+
+    /**
+     * Forces every append made so far to the storage device.
+     */
+    public void sync() {
+        FileChannel syncChannel;
+        long sequence;
+        long size;
+        synchronized (this) {
+            if (closed || !dirty) {
+                return;
+            }
+            syncChannel = channel;
+            sequence = active.sequence;
+            size = active.size;
+            dirty = false;
+        }
+        try {
+            syncChannel.force(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            Log.e("ERROR", "Caught error syncing journal");
+            e.printStackTrace();
+            return;
+        }
+        compact(sequence, size);
+    }
+
+    @Override
+    public void flush() {
+        sync();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        notifyAll();
+        try {
+            channel.force(false);
+            channel.close();
+            for (Segment segment : segments.values()) {
+                segment.closeReader();
+            }
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error closing journal");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets the number of segment files currently on disk.
+     *
+     * @return the number of segments
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    Segment segment = new Segment(sequence, file);
+                    ByteBuffer buffer = readSegment(file, file.length());
+                    EventRecord record;
+                    int start = 0;
+                    while ((record = EventRecord.read(buffer, true)) != null) {
+                        int position = start;
+                        int length = buffer.position() - start;
+                        start = buffer.position();
+                        if (record.op == EventRecord.OP_INSERT) {
+                            // a relocated event is inserted again, the newer copy is the live one
+                            Location previous = index.put(record.id, new Location(segment, position, length, record.event, record.sync));
+                            if (previous != null) {
+                                previous.segment.live--;
+                                previous.segment.liveSize -= previous.length;
+                            }
+                            segment.live++;
+                            segment.liveSize += length;
+                        } else if (record.op == EventRecord.OP_REMOVE) {
+                            Location location = index.remove(record.id);
+                            if (location != null) {
+                                location.segment.live--;
+                                location.segment.liveSize -= location.length;
+                            }
+                        } else if (record.op == EventRecord.OP_SYNC) {
+                            Location location = index.get(record.id);
+                            if (location != null) {
+                                location.sync = record.sync;
+                            }
+                        }
+                    }
+                    segment.size = buffer.position();
+                    segments.put(sequence, segment);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            Segment segment = new Segment(0, segmentFile(0));
+            segments.put(segment.sequence, segment);
+        }
+        active = segments.lastEntry().getValue();
+        channel = openSegment(active);
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.live <= 0) {
+                segment.deadAtSequence = active.sequence;
+                segment.deadAtSize = active.size;
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, rolling to a new one when full.
+     *
+     * @return the position of the record in the active segment
+     */
+    private long append(ByteBuffer record) {
+        try {
+            if (active.size > 0 && active.size + record.remaining() > segmentSize) {
+                roll();
+            }
+            long position = active.size;
+            while (record.hasRemaining()) {
+                active.size += channel.write(record);
+            }
+            dirty = true;
+            return position;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not append to journal", e);
+        }
+    }
+
+    private void roll() throws IOException {
+        channel.force(false);
+        channel.close();
+        Segment segment = new Segment(active.sequence + 1, segmentFile(active.sequence + 1));
+        segments.put(segment.sequence, segment);
+        active = segment;
+        channel = openSegment(segment);
+    }
+
+    private void release(Location location) {
+        Segment segment = location.segment;
+        segment.live--;
+        segment.liveSize -= location.length;
+        if (segment.live == 0) {
+            segment.deadAtSequence = active.sequence;
+            segment.deadAtSize = active.size;
+        }
+    }
+
+    private synchronized void compact(long sequence, long size) {
+        while (!closed) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == active || oldest.live > 0) {
+                break;
+            }
+            boolean durable = oldest.deadAtSequence < sequence || (oldest.deadAtSequence == sequence && oldest.deadAtSize <= size);
+            if (!durable) {
+                break;
+            }
+            oldest.closeReader();
+            if (!oldest.file.delete()) {
+                break;
+            }
+            segments.pollFirstEntry();
+        }
+        Segment oldest = segments.firstEntry().getValue();
+        if (!closed && oldest != active && oldest.live > 0 && oldest.liveSize * 2 < oldest.size) {
+            relocate(oldest);
+        }
+    }
+
+    /**
+     * Writes the live events of a segment again to the active one, in their current state,
+     * the segment is deleted once the new copies are durable.
+     */
+    private void relocate(Segment segment) {
+        ByteBuffer buffer;
+        try {
+            buffer = readSegment(segment.file, segment.size);
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error reading journal segment " + segment.file.getName());
+            e.printStackTrace();
+            return;
+        }
+        EventRecord record;
+        while (segment.live > 0 && (record = EventRecord.read(buffer, false)) != null) {
+            if (record.op != EventRecord.OP_INSERT) {
+                continue;
+            }
+            Location location = index.get(record.id);
+            if (location == null || location.segment != segment) {
+                continue;
+            }
+            record.event.setSync(location.sync);
+            ByteBuffer copy = EventRecord.encodeInsert(record.event);
+            int length = copy.remaining();
+            long position = append(copy);
+            index.put(record.id, new Location(active, position, length, location.code, location.time, location.sync));
+            active.live++;
+            active.liveSize += length;
+            release(location);
+        }
+    }
+
+    private void runSyncLoop() {
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    wait(syncInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            sync();
+        }
+    }
+
+    /**
+     * Reads a live event at its location, called holding the lock of the store.
+     *
+     * @return the event in its current sync state, or null if it could not be read
+     */
+    private Event read(Location location) {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        try {
+            FileChannel reader = location.segment.reader();
+            long position = location.position;
+            while (buffer.hasRemaining()) {
+                int read = reader.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error reading journal segment " + location.segment.file.getName());
+            e.printStackTrace();
+            return null;
+        }
+        buffer.flip();
+        EventRecord record = EventRecord.read(buffer, false);
+        if (record == null || record.op != EventRecord.OP_INSERT) {
+            Log.e("ERROR", "Caught error reading journal record at " + location.position + " of " + location.segment.file.getName());
+            return null;
+        }
+        record.event.setSync(location.sync);
+        return record.event;
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%016d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    private static FileChannel openSegment(Segment segment) throws IOException {
+        FileChannel channel = new RandomAccessFile(segment.file, "rw").getChannel();
+        channel.truncate(segment.size);
+        channel.position(segment.size);
+        return channel;
+    }
+
+    private static ByteBuffer readSegment(File file, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        try (FileInputStream input = new FileInputStream(file)) {
+            FileChannel readChannel = input.getChannel();
+            while (buffer.hasRemaining() && readChannel.read(buffer) >= 0) {
+                // keep reading until the expected size
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static class Segment {
+        private final long sequence;
+        private final File file;
+        private FileChannel reader;
+        private long size;
+        private int live;
+        private long liveSize;
+        private long deadAtSequence;
+        private long deadAtSize;
+
+        private Segment(long sequence, File file) {
+            this.sequence = sequence;
+            this.file = file;
+        }
+
+        private FileChannel reader() throws IOException {
+            if (reader == null) {
+                reader = new RandomAccessFile(file, "r").getChannel();
+            }
+            return reader;
+        }
+
+        private void closeReader() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                reader = null;
+            }
+        }
+    }
+
+    private static class Location extends EventLocation {
+        private final Segment segment;
+
+        private Location(Segment segment, long position, int length, Event event, boolean sync) {
+            this(segment, position, length, event.getType().getCode(), EventLogger.parseTime(event.getTimestamp()), sync);
+        }
+
+        private Location(Segment segment, long position, int length, int code, long time, boolean sync) {
+            super(position, length, code, time, sync);
+            this.segment = segment;
+        }
+    }
+
+}
@@ -0,0 +1,726 @@
+package com.comandulli.lib.analyst.store;
+
+import android.util.Log;
+
+import com.comandulli.lib.analyst.AnalystExecutors;
+import com.comandulli.lib.analyst.EventLogger;
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Event store backed by memory-mapped segment files.
+ * <p>
+ * Each segment is a file of fixed capacity with a fixed layout header,
+ * followed by framed records {@see com.comandulli.lib.analyst.store.EventRecord} carrying their own crc.
+ * Records are written straight into the mapped buffer.
+ * <p>
+ * A background thread periodically forces the active segment and then writes a checkpoint,
+ * the position up to which every record is known to be durable and valid.
+ * On startup only the records after the checkpoint are validated,
+ * so recovery depends on the size of the unflushed tail and not on the backlog.
+ * <p>
+ * The thread comes from a thread factory, by default a daemon named after its role, and ends once the store is closed.
+ * <p>
+ * The index used to delete fully removed segments is rebuilt by the background thread after startup.
+ * Segments are deleted from the oldest one only, a newer segment may still hold the removals
+ * and state changes of events inserted in an older one, and a mostly removed oldest segment
+ * has its remaining events written again to the active one.
+ * <p>
+ * The index is ordered by id and keeps the code, time and sync state of each live event,
+ * once built queries and searches filter on it and only read the matching records, from duplicates of the mapped buffers.
+ * Until then they scan every segment.
+ * <p>
+ * Checkpoints are written under the lock of the store and never move backwards.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class MappedEventStore implements EventStore {
+
+    /**
+     * The default capacity of a segment in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_CAPACITY = 4 * 1024 * 1024;
+    /**
+     * The default interval between checkpoints in milliseconds.
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 500;
+
+    private static final int SEGMENT_MAGIC = 0x45564E54;
+    private static final int CHECKPOINT_MAGIC = 0x43484B50;
+    private static final int VERSION = 1;
+    /**
+     * Segment header: magic, version, header size, capacity, sequence and reserved space.
+     */
+    private static final int SEGMENT_HEADER_SIZE = 32;
+    /**
+     * Checkpoint slot: magic, version, counter, sequence, position, reserved, crc.
+     */
+    private static final int CHECKPOINT_SLOT_SIZE = 40;
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final Comparator<Event> ID_ORDER = new Comparator<Event>() {
+        @Override
+        public int compare(Event first, Event second) {
+            return first.getId() < second.getId() ? -1 : first.getId() == second.getId() ? 0 : 1;
+        }
+    };
+
+    private final File directory;
+    private final int capacity;
+    private final long checkpointInterval;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final FileChannel checkpointChannel;
+    private ConcurrentSkipListMap<Long, Location> index;
+    private Segment active;
+    private long checkpointCounter;
+    private long checkpointSequence = -1;
+    private int checkpointPosition;
+    private long recoveredTail;
+    private boolean dirty;
+    private boolean closed;
+
+    /**
+     * Instantiates a new Mapped event store with default settings.
+     *
+     * @param directory the directory holding the segments
+     * @throws IOException if the store could not be recovered
+     */
+    public MappedEventStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_CAPACITY, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Instantiates a new Mapped event store.
+     *
+     * @param directory          the directory holding the segments
+     * @param capacity           the capacity of each segment in bytes
+     * @param checkpointInterval the interval between checkpoints in milliseconds
+     * @throws IOException if the store could not be recovered
+     */
+    public MappedEventStore(File directory, int capacity, long checkpointInterval) throws IOException {
+        this(directory, capacity, checkpointInterval, AnalystExecutors.named("MappedCheckpoint", true));
+    }
+
+    /**
+     * Instantiates a new Mapped event store, its background thread made by a thread factory.
+     *
+     * @param directory          the directory holding the segments
+     * @param capacity           the capacity of each segment in bytes
+     * @param checkpointInterval the interval between checkpoints in milliseconds
+     * @param threadFactory      the factory of the thread running checkpoints and segment deletions
+     * @throws IOException if the store could not be recovered
+     */
+    public MappedEventStore(File directory, int capacity, long checkpointInterval, ThreadFactory threadFactory) throws IOException {
+        this.directory = directory;
+        this.capacity = capacity;
+        this.checkpointInterval = checkpointInterval;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create segment directory " + directory);
+        }
+        this.checkpointChannel = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw").getChannel();
+        recover();
+        threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                runCheckpointLoop();
+            }
+        }).start();
+    }
+
+    @Override
+    public synchronized void insert(Event event) {
+        ByteBuffer record = EventRecord.encodeInsert(event);
+        int length = record.remaining();
+        int position = append(record);
+        if (index != null) {
+            // inserting an id again replaces the event
+            Location previous = index.put(event.getId(), new Location(active, position, length, event, event.isSync()));
+            active.live++;
+            active.liveSize += length;
+            if (previous != null) {
+                markRemoved(previous);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(Event event) {
+        append(EventRecord.encodeRemove(event.getId()));
+        if (index != null) {
+            Location location = index.remove(event.getId());
+            if (location != null) {
+                markRemoved(location);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void updateSync(Event event) {
+        append(EventRecord.encodeSync(event.getId(), event.isSync()));
+        if (index != null) {
+            Location location = index.get(event.getId());
+            if (location != null) {
+                location.sync = event.isSync();
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<Event> getList() {
+        LinkedHashMap<Long, Event> events = new LinkedHashMap<>();
+        for (Segment segment : segments.values()) {
+            try {
+                ByteBuffer buffer = segment.records();
+                EventRecord record;
+                while ((record = EventRecord.read(buffer, false)) != null) {
+                    record.applyTo(events);
+                }
+            } catch (IOException e) {
+                Log.e("ERROR", "Caught error reading segment " + segment.file.getName());
+                e.printStackTrace();
+            }
+        }
+        List<Event> list = new ArrayList<>(events.values());
+        // events written again by a relocation follow newer ones, ids keep their order
+        Collections.sort(list, ID_ORDER);
+        return list;
+    }
+
+    @Override
+    public synchronized List<Event> getList(boolean sync) {
+        if (index == null) {
+            return EventRecord.filter(getList(), sync);
+        }
+        List<Event> list = new ArrayList<>();
+        for (Location location : index.values()) {
+            if (location.sync == sync) {
+                Event event = read(location);
+                if (event != null) {
+                    list.add(event);
+                }
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized Event searchEvent(int code, boolean sync) {
+        if (index == null) {
+            return EventRecord.search(getList(), code, sync);
+        }
+        for (Location location : index.values()) {
+            if (location.code == code && location.sync == sync) {
+                return read(location);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized EventIterator query(EventQuery query) {
+        if (index == null) {
+            // the index is still being built in the background
+            return query.filter(getList());
+        }
+        return new IndexIterator<Location>(index, query) {
+            @Override
+            Event read(long id) {
+                synchronized (MappedEventStore.this) {
+                    Location location = index.get(id);
+                    return location == null ? null : MappedEventStore.this.read(location);
+                }
+            }
+        };
+    }
+
+    /**
+     * Forces the active segment and writes a new checkpoint.
+     */
+    public void checkpoint() {
+        MappedByteBuffer buffer;
+        long sequence;
+        int position;
+        synchronized (this) {
+            if (closed || !dirty) {
+                return;
+            }
+            buffer = active.buffer;
+            sequence = active.sequence;
+            position = active.position;
+            dirty = false;
+        }
+        buffer.force();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                writeCheckpoint(sequence, position);
+            } catch (IOException e) {
+                dirty = true;
+                Log.e("ERROR", "Caught error writing checkpoint");
+                e.printStackTrace();
+                return;
+            }
+        }
+        compact(sequence, position);
+    }
+
+    @Override
+    public void flush() {
+        checkpoint();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        active.buffer.force();
+        try {
+            writeCheckpoint(active.sequence, active.position);
+            checkpointChannel.close();
+            for (Segment segment : segments.values()) {
+                segment.release();
+            }
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error closing mapped store");
+            e.printStackTrace();
+        }
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of segment files currently on disk.
+     *
+     * @return the number of segments
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Gets the number of bytes validated on the last startup.
+     *
+     * @return the size of the recovered tail in bytes
+     */
+    public synchronized long getRecoveredTailSize() {
+        return recoveredTail;
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(sequence, new Segment(sequence, file));
+                }
+            }
+        }
+        long durableSequence = -1;
+        int durablePosition = SEGMENT_HEADER_SIZE;
+        ByteBuffer checkpoint = readCheckpoint();
+        if (checkpoint != null) {
+            checkpointCounter = checkpoint.getLong(8);
+            durableSequence = checkpoint.getLong(16);
+            durablePosition = checkpoint.getInt(24);
+        }
+        if (segments.isEmpty()) {
+            active = createSegment(0);
+            segments.put(active.sequence, active);
+            writeCheckpoint(active.sequence, active.position);
+            index = new ConcurrentSkipListMap<>();
+            return;
+        }
+        // validate only what was written after the checkpoint
+        for (Entry<Long, Segment> entry : segments.tailMap(Math.max(durableSequence, segments.firstKey()), true).entrySet()) {
+            Segment segment = entry.getValue();
+            segment.map();
+            int start = segment.sequence == durableSequence ? durablePosition : SEGMENT_HEADER_SIZE;
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(start);
+            //noinspection StatementWithEmptyBody
+            while (EventRecord.read(buffer, true) != null) {
+            }
+            segment.position = buffer.position();
+            recoveredTail += segment.position - start;
+            if (segment.position + EventRecord.HEADER_SIZE <= capacity) {
+                // discard a torn record, if any
+                segment.buffer.putLong(segment.position, 0);
+            }
+            active = segment;
+        }
+        dirty = true;
+        checkpoint();
+    }
+
+    /**
+     * Appends a record to the active segment, rolling to a new one when full.
+     *
+     * @return the position of the record in the active segment
+     */
+    private int append(ByteBuffer record) {
+        try {
+            if (active.position + record.remaining() + EventRecord.HEADER_SIZE > capacity) {
+                if (record.remaining() + EventRecord.HEADER_SIZE > capacity - SEGMENT_HEADER_SIZE) {
+                    throw new IllegalArgumentException("Record larger than segment capacity");
+                }
+                roll();
+            }
+            int position = active.position;
+            active.buffer.position(position);
+            active.buffer.put(record);
+            active.position = active.buffer.position();
+            dirty = true;
+            return position;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not append to segment", e);
+        }
+    }
+
+    private void roll() throws IOException {
+        active.buffer.force();
+        Segment segment = createSegment(active.sequence + 1);
+        segments.put(segment.sequence, segment);
+        active = segment;
+        writeCheckpoint(segment.sequence, segment.position);
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        Segment segment = new Segment(sequence, new File(directory, SEGMENT_PREFIX + String.format("%016d", sequence) + SEGMENT_SUFFIX));
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, "rw")) {
+            file.setLength(capacity);
+        }
+        segment.map();
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(0, SEGMENT_MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, SEGMENT_HEADER_SIZE);
+        buffer.putInt(12, capacity);
+        buffer.putLong(16, sequence);
+        buffer.force();
+        segment.position = SEGMENT_HEADER_SIZE;
+        return segment;
+    }
+
+    private void markRemoved(Location location) {
+        Segment segment = location.segment;
+        segment.live--;
+        segment.liveSize -= location.length;
+        if (segment.live == 0) {
+            segment.deadAtSequence = active.sequence;
+            segment.deadAtPosition = active.position;
+        }
+    }
+
+    private void buildIndex() {
+        ConcurrentSkipListMap<Long, Location> built = new ConcurrentSkipListMap<>();
+        List<Segment> snapshot;
+        long sequence;
+        int position;
+        synchronized (this) {
+            snapshot = new ArrayList<>(segments.values());
+            sequence = active.sequence;
+            position = active.position;
+        }
+        // scan the durable part without holding the lock
+        for (Segment segment : snapshot) {
+            try {
+                ByteBuffer buffer = segment.records();
+                if (segment.sequence == sequence) {
+                    buffer.limit(position);
+                }
+                index(built, segment, buffer);
+            } catch (IOException e) {
+                Log.e("ERROR", "Caught error indexing segment " + segment.file.getName());
+                e.printStackTrace();
+            }
+        }
+        synchronized (this) {
+            for (Segment segment : segments.tailMap(sequence, true).values()) {
+                ByteBuffer buffer = segment.buffer.duplicate();
+                buffer.position(segment.sequence == sequence ? position : SEGMENT_HEADER_SIZE);
+                buffer.limit(segment.position);
+                index(built, segment, buffer);
+            }
+            for (Segment segment : segments.values()) {
+                if (segment.live <= 0) {
+                    segment.deadAtSequence = active.sequence;
+                    segment.deadAtPosition = active.position;
+                }
+            }
+            index = built;
+        }
+    }
+
+    private static void index(ConcurrentSkipListMap<Long, Location> index, Segment owner, ByteBuffer buffer) {
+        EventRecord record;
+        int start = buffer.position();
+        while ((record = EventRecord.read(buffer, false)) != null) {
+            int position = start;
+            int length = buffer.position() - start;
+            start = buffer.position();
+            if (record.op == EventRecord.OP_INSERT) {
+                // a relocated event is inserted again, the newer copy is the live one
+                Location previous = index.put(record.id, new Location(owner, position, length, record.event, record.sync));
+                if (previous != null) {
+                    previous.segment.live--;
+                    previous.segment.liveSize -= previous.length;
+                }
+                owner.live++;
+                owner.liveSize += length;
+            } else if (record.op == EventRecord.OP_REMOVE) {
+                Location location = index.remove(record.id);
+                if (location != null) {
+                    location.segment.live--;
+                    location.segment.liveSize -= location.length;
+                }
+            } else if (record.op == EventRecord.OP_SYNC) {
+                Location location = index.get(record.id);
+                if (location != null) {
+                    location.sync = record.sync;
+                }
+            }
+        }
+    }
+
+    private synchronized void compact(long sequence, int position) {
+        if (index == null) {
+            return;
+        }
+        while (!closed) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == active || oldest.live > 0) {
+                break;
+            }
+            boolean durable = oldest.deadAtSequence < sequence || (oldest.deadAtSequence == sequence && oldest.deadAtPosition <= position);
+            if (!durable) {
+                break;
+            }
+            oldest.release();
+            if (!oldest.file.delete()) {
+                break;
+            }
+            segments.pollFirstEntry();
+        }
+        Segment oldest = segments.firstEntry().getValue();
+        // segments recovered before the checkpoint were not scanned, they were filled up to their capacity
+        int used = (oldest.position > 0 ? oldest.position : capacity) - SEGMENT_HEADER_SIZE;
+        if (!closed && oldest != active && oldest.live > 0 && oldest.liveSize * 2 < used) {
+            relocate(oldest);
+        }
+    }
+
+    /**
+     * Writes the live events of a segment again to the active one, in their current state,
+     * the segment is deleted once the new copies are durable.
+     */
+    private void relocate(Segment segment) {
+        ByteBuffer buffer;
+        try {
+            buffer = segment.records();
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error reading segment " + segment.file.getName());
+            e.printStackTrace();
+            return;
+        }
+        EventRecord record;
+        while (segment.live > 0 && (record = EventRecord.read(buffer, false)) != null) {
+            if (record.op != EventRecord.OP_INSERT) {
+                continue;
+            }
+            Location location = index.get(record.id);
+            if (location == null || location.segment != segment) {
+                continue;
+            }
+            record.event.setSync(location.sync);
+            ByteBuffer copy = EventRecord.encodeInsert(record.event);
+            int length = copy.remaining();
+            int position = append(copy);
+            index.put(record.id, new Location(active, position, length, location.code, location.time, location.sync));
+            active.live++;
+            active.liveSize += length;
+            markRemoved(location);
+        }
+    }
+
+    private void runCheckpointLoop() {
+        buildIndex();
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    wait(checkpointInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            checkpoint();
+        }
+    }
+
+    /**
+     * Reads a live event at its location, called holding the lock of the store.
+     *
+     * @return the event in its current sync state, or null if it could not be read
+     */
+    private Event read(Location location) {
+        ByteBuffer buffer;
+        try {
+            location.segment.map();
+            buffer = location.segment.buffer.duplicate();
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error reading segment " + location.segment.file.getName());
+            e.printStackTrace();
+            return null;
+        }
+        buffer.limit((int) location.position + location.length);
+        buffer.position((int) location.position);
+        EventRecord record = EventRecord.read(buffer, false);
+        if (record == null || record.op != EventRecord.OP_INSERT) {
+            Log.e("ERROR", "Caught error reading record at " + location.position + " of " + location.segment.file.getName());
+            return null;
+        }
+        record.event.setSync(location.sync);
+        return record.event;
+    }
+
+    private ByteBuffer readCheckpoint() throws IOException {
+        ByteBuffer best = null;
+        for (int slot = 0; slot < 2; slot++) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SLOT_SIZE);
+            checkpointChannel.read(buffer, slot * CHECKPOINT_SLOT_SIZE);
+            if (buffer.position() < CHECKPOINT_SLOT_SIZE || buffer.getInt(0) != CHECKPOINT_MAGIC) {
+                continue;
+            }
+            if (buffer.getInt(32) != checksum(buffer)) {
+                continue;
+            }
+            if (best == null || buffer.getLong(8) > best.getLong(8)) {
+                best = buffer;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Writes a checkpoint, called holding the lock of the store.
+     * A checkpoint behind the last one written is skipped.
+     */
+    private void writeCheckpoint(long sequence, int position) throws IOException {
+        if (sequence < checkpointSequence || (sequence == checkpointSequence && position <= checkpointPosition)) {
+            return;
+        }
+        checkpointCounter++;
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SLOT_SIZE);
+        buffer.putInt(0, CHECKPOINT_MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, checkpointCounter);
+        buffer.putLong(16, sequence);
+        buffer.putInt(24, position);
+        buffer.putInt(32, checksum(buffer));
+        // alternate slots so a torn write never destroys the previous checkpoint
+        checkpointChannel.write(buffer, (checkpointCounter % 2) * CHECKPOINT_SLOT_SIZE);
+        checkpointChannel.force(false);
+        checkpointSequence = sequence;
+        checkpointPosition = position;
+    }
+
+    private static int checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 32);
+        return (int) crc.getValue();
+    }
+
+    private static class Location extends EventLocation {
+        private final Segment segment;
+
+        private Location(Segment segment, int position, int length, Event event, boolean sync) {
+            this(segment, position, length, event.getType().getCode(), EventLogger.parseTime(event.getTimestamp()), sync);
+        }
+
+        private Location(Segment segment, long position, int length, int code, long time, boolean sync) {
+            super(position, length, code, time, sync);
+            this.segment = segment;
+        }
+    }
+
+    private class Segment {
+        private final long sequence;
+        private final File file;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int position;
+        private int live;
+        private int liveSize;
+        private long deadAtSequence;
+        private int deadAtPosition;
+
+        private Segment(long sequence, File file) {
+            this.sequence = sequence;
+            this.file = file;
+        }
+
+        private synchronized void map() throws IOException {
+            if (buffer == null) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                buffer = channel.map(MapMode.READ_WRITE, 0, capacity);
+                if (buffer.getInt(0) == SEGMENT_MAGIC && buffer.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported segment version in " + file.getName());
+                }
+            }
+        }
+
+        private ByteBuffer records() throws IOException {
+            map();
+            ByteBuffer records = buffer.duplicate();
+            records.position(SEGMENT_HEADER_SIZE);
+            if (position > 0) {
+                records.limit(position);
+            }
+            return records;
+        }
+
+        private synchronized void release() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+            buffer = null;
+        }
+    }
+
+}
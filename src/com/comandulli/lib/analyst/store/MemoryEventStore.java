@@ -0,0 +1,69 @@
+package com.comandulli.lib.analyst.store;
+
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Event store keeping events in memory only, nothing survives the process.
+ * <p>
+ * Meant for replays and tests, where the analyst should run without any I/O.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class MemoryEventStore implements EventStore {
+
+    private final LinkedHashMap<Long, Event> events = new LinkedHashMap<>();
+
+    @Override
+    public synchronized void insert(Event event) {
+        events.put(event.getId(), event);
+    }
+
+    @Override
+    public synchronized void remove(Event event) {
+        events.remove(event.getId());
+    }
+
+    @Override
+    public synchronized void updateSync(Event event) {
+        Event stored = events.get(event.getId());
+        if (stored != null) {
+            stored.setSync(event.isSync());
+        }
+    }
+
+    @Override
+    public synchronized List<Event> getList() {
+        return new ArrayList<>(events.values());
+    }
+
+    @Override
+    public synchronized List<Event> getList(boolean sync) {
+        return EventRecord.filter(getList(), sync);
+    }
+
+    @Override
+    public synchronized Event searchEvent(int code, boolean sync) {
+        return EventRecord.search(getList(), code, sync);
+    }
+
+    @Override
+    public synchronized EventIterator query(EventQuery query) {
+        return query.filter(getList());
+    }
+
+    @Override
+    public void flush() {
+        // nothing is ever durable
+    }
+
+    @Override
+    public synchronized void close() {
+        events.clear();
+    }
+
+}
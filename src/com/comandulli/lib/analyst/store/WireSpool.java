@@ -0,0 +1,469 @@
+package com.comandulli.lib.analyst.store;
+
+import android.util.Log;
+
+import com.comandulli.lib.analyst.entity.Event;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A spool file of events awaiting sync, each written once in its wire form.
+ * <p>
+ * Every event is appended as the JSON object uploaded for it, preceded by a comma,
+ * so consecutive entries are a ready made slice of the content array of a request.
+ * A batch is a list of file ranges, adjacent entries merged into one,
+ * transferred from the file to the request {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+ * without decoding or building a single event.
+ * <p>
+ * The spool is derived from the events to sync and starts empty, it is not a store:
+ * the file is truncated once every entry is removed, and rewritten without the removed entries
+ * once they take most of it.
+ * <p>
+ * This costs an extra write per event joining the events to sync, made by the thread adding it and never forced,
+ * on top of the write of the store. Since the file is discarded when opened,
+ * the stored backlog is encoded again on every start, as it joins the events to sync.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class WireSpool {
+
+    /**
+     * Size of removed entries in bytes below which the file is never rewritten.
+     */
+    public static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final File file;
+    private FileChannel channel;
+    private long size;
+    private long garbage;
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private long[] contexts = new long[INITIAL_CAPACITY];
+    private long[] positions = new long[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private boolean[] removed = new boolean[INITIAL_CAPACITY];
+    private int head;
+    private int count;
+    private int live;
+    private int readers;
+
+    /**
+     * Instantiates a new Wire spool, discarding what the file held.
+     *
+     * @param file the spool file
+     * @throws IOException if the file could not be opened
+     */
+    public WireSpool(File file) throws IOException {
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+    }
+
+    /**
+     * Appends an event in its wire form.
+     *
+     * @param event   the event, holding its id
+     * @param context the version of the context the event carries, zero for none
+     * @throws IOException if the entry could not be written
+     */
+    public synchronized void append(Event event, long context) throws IOException {
+        ByteBuffer entry = ByteBuffer.wrap(encode(event));
+        int length = entry.remaining();
+        long position = size;
+        try {
+            while (entry.hasRemaining()) {
+                position += channel.write(entry, position);
+            }
+        } finally {
+            // a torn entry is never referenced, nor merged with the next one
+            size = position;
+        }
+        if (count == ids.length) {
+            grow();
+        }
+        ids[count] = event.getId();
+        contexts[count] = context;
+        positions[count] = size - length;
+        lengths[count] = length;
+        removed[count] = false;
+        count++;
+        live++;
+    }
+
+    /**
+     * Removes an event, if spooled.
+     *
+     * @param id the id of the event
+     */
+    public synchronized void remove(long id) {
+        int index = find(id);
+        if (index < 0) {
+            return;
+        }
+        removed[index] = true;
+        garbage += lengths[index];
+        live--;
+        while (head < count && removed[head]) {
+            head++;
+        }
+        reclaim();
+    }
+
+    /**
+     * Gets the number of spooled events.
+     *
+     * @return the number
+     */
+    public synchronized int size() {
+        return live;
+    }
+
+    /**
+     * Gets the size of the spool file.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getFileSize() {
+        return size;
+    }
+
+    /**
+     * Selects the first spooled events, in order.
+     * <p>
+     * The file is not rewritten nor truncated until the batch is released.
+     *
+     * @param limit the maximum number of events
+     * @return the batch
+     */
+    public synchronized Batch select(int limit) {
+        int selected = Math.min(limit, live);
+        long[] batchIds = new long[selected];
+        long[] batchContexts = new long[selected];
+        long[] starts = new long[selected];
+        long[] ends = new long[selected];
+        int ranges = 0;
+        int taken = 0;
+        for (int i = head; i < count && taken < selected; i++) {
+            if (removed[i]) {
+                continue;
+            }
+            batchIds[taken] = ids[i];
+            batchContexts[taken] = contexts[i];
+            if (taken == 0) {
+                // the first entry of the content array goes without its comma
+                starts[0] = positions[i] + 1;
+                ends[0] = positions[i] + lengths[i];
+                ranges = 1;
+            } else if (ends[ranges - 1] == positions[i]) {
+                ends[ranges - 1] += lengths[i];
+            } else {
+                starts[ranges] = positions[i];
+                ends[ranges] = positions[i] + lengths[i];
+                ranges++;
+            }
+            taken++;
+        }
+        readers++;
+        return new Batch(channel, batchIds, batchContexts, Arrays.copyOf(starts, ranges), Arrays.copyOf(ends, ranges));
+    }
+
+    /**
+     * Releases the file, no more batches can be selected.
+     */
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error closing wire spool");
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void release() {
+        readers--;
+        reclaim();
+    }
+
+    private int find(long id) {
+        // entries leave mostly in order, the head is checked first
+        for (int i = head; i < count; i++) {
+            if (ids[i] == id && !removed[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void reclaim() {
+        if (live == 0) {
+            head = 0;
+            count = 0;
+            if (readers == 0 && size > 0) {
+                try {
+                    channel.truncate(0);
+                    size = 0;
+                    garbage = 0;
+                } catch (IOException e) {
+                    Log.e("ERROR", "Caught error truncating wire spool");
+                    e.printStackTrace();
+                }
+            }
+            return;
+        }
+        if (readers == 0 && garbage >= MIN_COMPACTION_SIZE && garbage * 2 > size) {
+            compact();
+        } else if (head >= INITIAL_CAPACITY && head * 2 >= count) {
+            shift();
+        }
+    }
+
+    private void compact() {
+        File rewritten = new File(file.getPath() + ".tmp");
+        FileChannel target = null;
+        try {
+            target = new RandomAccessFile(rewritten, "rw").getChannel();
+            target.truncate(0);
+            long[] moved = new long[count];
+            long written = 0;
+            for (int i = head; i < count; i++) {
+                if (removed[i]) {
+                    continue;
+                }
+                moved[i] = written;
+                long position = positions[i];
+                long end = position + lengths[i];
+                while (position < end) {
+                    long transferred = channel.transferTo(position, end - position, target);
+                    if (transferred <= 0) {
+                        throw new IOException("Wire spool truncated at " + position);
+                    }
+                    position += transferred;
+                }
+                written += lengths[i];
+            }
+            if (!rewritten.renameTo(file)) {
+                throw new IOException("Could not replace wire spool " + file);
+            }
+            channel.close();
+            channel = target;
+            target = null;
+            for (int i = head; i < count; i++) {
+                positions[i] = moved[i];
+            }
+            size = written;
+            garbage = 0;
+            shift();
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error compacting wire spool");
+            e.printStackTrace();
+        } finally {
+            if (target != null) {
+                try {
+                    target.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                //noinspection ResultOfMethodCallIgnored
+                rewritten.delete();
+            }
+        }
+    }
+
+    private void shift() {
+        int kept = 0;
+        for (int i = head; i < count; i++) {
+            if (!removed[i]) {
+                ids[kept] = ids[i];
+                contexts[kept] = contexts[i];
+                positions[kept] = positions[i];
+                lengths[kept] = lengths[i];
+                removed[kept] = false;
+                kept++;
+            }
+        }
+        head = 0;
+        count = kept;
+    }
+
+    private void grow() {
+        if (head > 0) {
+            shift();
+            if (count < ids.length) {
+                return;
+            }
+        }
+        int capacity = ids.length + (ids.length >> 1);
+        ids = Arrays.copyOf(ids, capacity);
+        contexts = Arrays.copyOf(contexts, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        removed = Arrays.copyOf(removed, capacity);
+    }
+
+    /**
+     * Encodes the wire form of an event, as uploaded in the content array.
+     *
+     * @param event the event
+     * @return the entry, starting with a comma
+     */
+    static byte[] encode(Event event) {
+        StringBuilder builder = new StringBuilder(128);
+        builder.append(",{\"id\":").append(event.getId());
+        builder.append(",\"code\":").append(event.getType().getCode());
+        builder.append(",\"timestamp\":");
+        quote(builder, event.getTimestamp());
+        builder.append(",\"data\":");
+        quote(builder, event.getData() == null ? null : event.getData().toEncodedString());
+        builder.append('}');
+        return builder.toString().getBytes(UTF8);
+    }
+
+    private static void quote(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    /**
+     * The first spooled events at the time they were selected, as file ranges.
+     * <p>
+     * A batch must be released once uploaded, successfully or not.
+     */
+    public class Batch {
+        private final FileChannel source;
+        private final long[] ids;
+        private final long[] contexts;
+        private final long[] starts;
+        private final long[] ends;
+        private boolean released;
+
+        private Batch(FileChannel source, long[] ids, long[] contexts, long[] starts, long[] ends) {
+            this.source = source;
+            this.ids = ids;
+            this.contexts = contexts;
+            this.starts = starts;
+            this.ends = ends;
+        }
+
+        /**
+         * Gets the number of events.
+         *
+         * @return the number
+         */
+        public int size() {
+            return ids.length;
+        }
+
+        /**
+         * Gets the ids of the events, in order.
+         *
+         * @return the ids
+         */
+        public long[] getIds() {
+            return ids;
+        }
+
+        /**
+         * Gets the versions of the contexts the events carry, zero for none.
+         *
+         * @return the versions, in the order of the events
+         */
+        public long[] getContexts() {
+            return contexts;
+        }
+
+        /**
+         * Gets the number of file ranges, one per run of adjacent entries.
+         *
+         * @return the number
+         */
+        public int getRangeCount() {
+            return starts.length;
+        }
+
+        /**
+         * Gets the length of the events in their wire form, comma separated.
+         *
+         * @return the length in bytes
+         */
+        public long getLength() {
+            long length = 0;
+            for (int i = 0; i < starts.length; i++) {
+                length += ends[i] - starts[i];
+            }
+            return length;
+        }
+
+        /**
+         * Transfers the events from the file, as the elements of a JSON array without its brackets.
+         *
+         * @param target the channel, left open
+         * @throws IOException if reading or writing failed
+         */
+        public void transferTo(WritableByteChannel target) throws IOException {
+            for (int i = 0; i < starts.length; i++) {
+                long position = starts[i];
+                while (position < ends[i]) {
+                    long transferred = source.transferTo(position, ends[i] - position, target);
+                    if (transferred <= 0) {
+                        throw new IOException("Wire spool truncated at " + position);
+                    }
+                    position += transferred;
+                }
+            }
+        }
+
+        /**
+         * Releases the batch, letting the spool reclaim its file.
+         */
+        public void release() {
+            synchronized (WireSpool.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            WireSpool.this.release();
+        }
+    }
+
+}
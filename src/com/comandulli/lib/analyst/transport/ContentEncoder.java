@@ -0,0 +1,34 @@
+package com.comandulli.lib.analyst.transport;
+
+import android.util.Base64;
+
+/**
+ * Encodes the compressed content of a request as text, by default in Base64 through the android utilities.
+ * <p>
+ * An analyst running outside android, in benchmarks and tests,
+ * is given an encoder of its runtime {@see com.comandulli.lib.analyst.SynchronizedActionAnalyst#setContentEncoder(ContentEncoder)}.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public interface ContentEncoder {
+
+    /**
+     * The Base64 encoder of android, without line wraps.
+     */
+    ContentEncoder ANDROID = new ContentEncoder() {
+        @Override
+        public String encode(byte[] bytes) {
+            return Base64.encodeToString(bytes, Base64.NO_WRAP);
+        }
+    };
+
+    /**
+     * Encodes bytes as text.
+     *
+     * @param bytes the bytes
+     * @return the text
+     */
+    String encode(byte[] bytes);
+
+}
@@ -0,0 +1,43 @@
+package com.comandulli.lib.analyst.transport;
+
+/**
+ * An enigma sent by the server, to be checked and solved by the device.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class Enigma {
+
+    private final int id;
+    private final String value;
+
+    /**
+     * Instantiates a new Enigma.
+     *
+     * @param id    the id
+     * @param value the value
+     */
+    public Enigma(int id, String value) {
+        this.id = id;
+        this.value = value;
+    }
+
+    /**
+     * Gets id.
+     *
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets value.
+     *
+     * @return the value
+     */
+    public String getValue() {
+        return value;
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.comandulli.lib.analyst.transport;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Sync transport on plain {@link HttpURLConnection}, talking to an explicit base url.
+ * <p>
+ * It does not depend on Android, so it also drives sync against
+ * a Local sync server {@see LocalSyncServer} on a regular machine.
+ * Bodies are streamed with a fixed length, wire bodies straight from their channels.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class HttpSyncTransport implements StreamingSyncTransport {
+
+    /**
+     * The default connect and read timeout in milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 30000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String baseUrl;
+    private int timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * Instantiates a new Http sync transport.
+     *
+     * @param baseUrl the url the request paths are appended to, such as http://localhost:8080
+     */
+    public HttpSyncTransport(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Sets the connect and read timeout.
+     *
+     * @param timeout the timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public Enigma requestEnigma(String serial) {
+        try {
+            HttpURLConnection connection = open(RestSyncTransport.PATH_ENIGMA + "?serial=" + encode(serial));
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    return null;
+                }
+                JSONObject json = new JSONObject(read(connection.getInputStream()));
+                return new Enigma(json.getInt("id"), json.getString("enigma"));
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException | JSONException e) {
+            Log.e("ERROR", "Caught error requesting enigma");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean submitSolution(String serial, String solution, int id, JSONObject content) {
+        final byte[] body = content.toString().getBytes(UTF8);
+        return submitSolution(serial, solution, id, new WireBody() {
+            @Override
+            public long getLength() {
+                return body.length;
+            }
+
+            @Override
+            public void writeTo(WritableByteChannel target) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean submitSolution(String serial, String solution, int id, WireBody body) {
+        try {
+            HttpURLConnection connection = open(RestSyncTransport.PATH_SOLVE + "?serial=" + encode(serial) + "&solution=" + encode(solution) + "&id=" + id);
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.getLength());
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (WritableByteChannel output = Channels.newChannel(connection.getOutputStream())) {
+                    body.writeTo(output);
+                }
+                return connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            Log.e("ERROR", "Caught error submitting solution");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        return connection;
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String read(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), UTF8);
+        } finally {
+            input.close();
+        }
+    }
+
+}
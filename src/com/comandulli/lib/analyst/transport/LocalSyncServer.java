@@ -0,0 +1,415 @@
+package com.comandulli.lib.analyst.transport;
+
+import com.comandulli.lib.MD5;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An embedded HTTP server speaking the enigma protocol, standing in for the real backend.
+ * <p>
+ * It answers the enigma and solve requests exactly like the server expected
+ * by the Synchronized action analyst {@see com.comandulli.lib.analyst.SynchronizedActionAnalyst},
+ * every enigma can be solved only once.
+ * Latency, error rate and bandwidth can be injected to measure sync throughput and
+ * to exercise failures, and every outcome is counted.
+ * <p>
+ * It only binds to the loopback address and is meant for benchmarks and tests,
+ * drive it with a Http sync transport {@see HttpSyncTransport}.
+ * It runs on any JVM, errors are logged through the java logging of its runtime rather than the android log.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class LocalSyncServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_HEADER = 8192;
+    private static final Logger LOGGER = Logger.getLogger(LocalSyncServer.class.getName());
+
+    private final String enigmaSalt;
+    private final String solutionSalt;
+    private final Map<Integer, String> enigmas = new ConcurrentHashMap<>();
+    private final AtomicInteger nextEnigma = new AtomicInteger();
+    private final AtomicLong enigmaCount = new AtomicLong();
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong acceptedEvents = new AtomicLong();
+    private final AtomicLong acceptedBytes = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final Random random = new Random();
+    private volatile long latency;
+    private volatile double errorRate;
+    private volatile long bandwidth;
+    private ServerSocket serverSocket;
+    private ExecutorService workers;
+
+    /**
+     * Instantiates a new Local sync server.
+     *
+     * @param enigmaSalt   the enigma salt, same as the analyst
+     * @param solutionSalt the solution salt, same as the analyst
+     */
+    public LocalSyncServer(String enigmaSalt, String solutionSalt) {
+        this.enigmaSalt = enigmaSalt;
+        this.solutionSalt = solutionSalt;
+    }
+
+    /**
+     * Sets the delay added before every response.
+     *
+     * @param latency the latency in milliseconds
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Sets the fraction of requests failing with a server error.
+     *
+     * @param errorRate the error rate, between zero and one
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Seeds the draws of the error rate, so runs fail the same requests in the order they arrive.
+     *
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    /**
+     * Sets the bandwidth of every connection, request bodies and responses are throttled to it.
+     *
+     * @param bytesPerSecond the bandwidth, zero for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Starts listening on the loopback address.
+     *
+     * @param port the port, zero for any free port
+     * @return the port listening
+     * @throws IOException if the port could not be bound
+     */
+    public synchronized int start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        workers = Executors.newCachedThreadPool();
+        final ServerSocket listening = serverSocket;
+        final ExecutorService handlers = workers;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!listening.isClosed()) {
+                    try {
+                        final Socket socket = listening.accept();
+                        handlers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        }, "LocalSyncServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the url to give a Http sync transport {@see HttpSyncTransport}.
+     *
+     * @return the url
+     */
+    public synchronized String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops listening and drops the connections in progress.
+     */
+    public synchronized void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Caught error closing local sync server", e);
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the number of enigmas handed out.
+     *
+     * @return the number
+     */
+    public long getEnigmaCount() {
+        return enigmaCount.get();
+    }
+
+    /**
+     * Gets the number of accepted submissions.
+     *
+     * @return the number
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * Gets the number of events of the accepted submissions.
+     *
+     * @return the number
+     */
+    public long getAcceptedEvents() {
+        return acceptedEvents.get();
+    }
+
+    /**
+     * Gets the number of body bytes of the accepted submissions.
+     *
+     * @return the number
+     */
+    public long getAcceptedBytes() {
+        return acceptedBytes.get();
+    }
+
+    /**
+     * Gets the number of submissions with a wrong or reused solution.
+     *
+     * @return the number
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Gets the number of requests failed by the injected error rate.
+     *
+     * @return the number
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    private void handle(Socket socket) {
+        try (Socket connection = socket) {
+            InputStream input = new BufferedInputStream(connection.getInputStream());
+            OutputStream output = connection.getOutputStream();
+            String requestLine = readLine(input);
+            if (requestLine == null) {
+                return;
+            }
+            int contentLength = 0;
+            String header;
+            while ((header = readLine(input)) != null && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Integer.parseInt(header.substring(colon + 1).trim());
+                    } catch (NumberFormatException e) {
+                        contentLength = -1;
+                    }
+                    if (contentLength < 0) {
+                        respond(output, 400, "{}");
+                        return;
+                    }
+                }
+            }
+            byte[] body = new byte[contentLength];
+            int offset = 0;
+            while (offset < contentLength) {
+                int read = input.read(body, offset, contentLength - offset);
+                if (read == -1) {
+                    return;
+                }
+                offset += read;
+            }
+            throttle(contentLength);
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                respond(output, 400, "{}");
+                return;
+            }
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                failedCount.incrementAndGet();
+                respond(output, 503, "{}");
+                return;
+            }
+            String target = parts[1];
+            int question = target.indexOf('?');
+            String path = question < 0 ? target : target.substring(0, question);
+            Map<String, String> query = parseQuery(question < 0 ? "" : target.substring(question + 1));
+            if (parts[0].equals("GET") && path.equals(RestSyncTransport.PATH_ENIGMA)) {
+                respondEnigma(output, query);
+            } else if (parts[0].equals("POST") && path.equals(RestSyncTransport.PATH_SOLVE)) {
+                respondSolve(output, query, body);
+            } else {
+                respond(output, 404, "{}");
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Caught error in local sync server", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void respondEnigma(OutputStream output, Map<String, String> query) throws IOException, InterruptedException {
+        String serial = query.get("serial");
+        if (serial == null) {
+            respond(output, 400, "{}");
+            return;
+        }
+        int id = nextEnigma.incrementAndGet();
+        enigmas.put(id, serial);
+        enigmaCount.incrementAndGet();
+        try {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("enigma", enigma(serial, id));
+            respond(output, 200, json.toString());
+        } catch (JSONException e) {
+            respond(output, 500, "{}");
+        }
+    }
+
+    private void respondSolve(OutputStream output, Map<String, String> query, byte[] body) throws IOException, InterruptedException {
+        String serial = query.get("serial");
+        String solution = query.get("solution");
+        int id;
+        try {
+            id = Integer.parseInt(query.get("id"));
+        } catch (NumberFormatException e) {
+            id = -1;
+        }
+        // an enigma is consumed by its first submission, right or wrong
+        String expectedSerial = serial == null || solution == null ? null : enigmas.remove(id);
+        if (expectedSerial == null || !expectedSerial.equals(serial) || !solution.equals(MD5.encode(enigma(serial, id) + ":" + solutionSalt))) {
+            rejectedCount.incrementAndGet();
+            respond(output, 403, "{}");
+            return;
+        }
+        try {
+            JSONObject content = new JSONObject(new String(body, UTF8));
+            JSONObject header = content.optJSONObject("header");
+            acceptedEvents.addAndGet(header == null ? 0 : header.optLong("count"));
+            acceptedBytes.addAndGet(body.length);
+            acceptedCount.incrementAndGet();
+            JSONObject json = new JSONObject();
+            json.put("solution", MD5.encode(solution + ":" + solutionSalt));
+            respond(output, 200, json.toString());
+        } catch (JSONException e) {
+            rejectedCount.incrementAndGet();
+            respond(output, 400, "{}");
+        }
+    }
+
+    private String enigma(String serial, int id) {
+        return MD5.encode(serial + ":" + enigmaSalt + ":" + id);
+    }
+
+    private void respond(OutputStream output, int code, String content) throws IOException, InterruptedException {
+        byte[] body = content.getBytes(UTF8);
+        String head = "HTTP/1.1 " + code + " " + reason(code) + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        throttle(body.length);
+        output.write(head.getBytes(UTF8));
+        output.write(body);
+        output.flush();
+    }
+
+    private void throttle(int bytes) throws InterruptedException {
+        long limit = bandwidth;
+        if (limit > 0 && bytes > 0) {
+            Thread.sleep(bytes * 1000L / limit);
+        }
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 400:
+                return "Bad Request";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Internal Server Error";
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int read;
+        while ((read = input.read()) != -1) {
+            if (read == '\n') {
+                break;
+            }
+            if (read != '\r') {
+                line.write(read);
+            }
+            if (line.size() > MAX_HEADER) {
+                throw new IOException("Header too long");
+            }
+        }
+        if (read == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), UTF8);
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.comandulli.lib.analyst.transport;
+
+import com.comandulli.lib.PendingValue;
+import com.comandulli.lib.rest.RequestCallback;
+import com.comandulli.lib.rest.RequestParams;
+import com.comandulli.lib.rest.RequestResponse;
+import com.comandulli.lib.rest.RestRequest;
+import com.comandulli.lib.rest.RestRequest.RequestMethod;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Sync transport on top of the REST library, using the host it is configured with.
+ * <p>
+ * This is the default transport.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class RestSyncTransport implements SyncTransport {
+
+    /**
+     * The path of enigma requests.
+     */
+    public static final String PATH_ENIGMA = "/analytics/enigma";
+    /**
+     * The path of solution submissions.
+     */
+    public static final String PATH_SOLVE = "/analytics/solve";
+
+    @Override
+    public Enigma requestEnigma(String serial) {
+        final PendingValue<Enigma> pendingEnigma = new PendingValue<>(null);
+        RequestParams params = new RequestParams();
+        params.addQueryParam("serial", serial);
+        RestRequest request = new RestRequest(RequestMethod.GET, PATH_ENIGMA, params);
+        request.execute(new RequestCallback() {
+            @Override
+            public void onResponse(RequestResponse response) {
+                if (response != null) {
+                    if (response.getCode() == HttpsURLConnection.HTTP_OK) {
+                        JSONObject json = response.getContent();
+                        if (json != null) {
+                            try {
+                                pendingEnigma.setValue(new Enigma(json.getInt("id"), json.getString("enigma")));
+                            } catch (JSONException e) {
+                                pendingEnigma.setPending(false);
+                            }
+                        }
+                    }
+                }
+                pendingEnigma.setPending(false);
+            }
+
+            @Override
+            public void onInternalError() {
+                // dont do shit
+                pendingEnigma.setPending(false);
+            }
+        });
+        //noinspection StatementWithEmptyBody
+        while (pendingEnigma.isPending()) {
+        }
+        return pendingEnigma.getValue();
+    }
+
+    @Override
+    public boolean submitSolution(String serial, String solution, int id, JSONObject content) {
+        final PendingValue<Boolean> pendingBoolean = new PendingValue<>(false);
+        RequestParams params = new RequestParams();
+        params.addQueryParam("serial", serial);
+        params.addQueryParam("solution", solution);
+        params.addQueryParam("id", String.valueOf(id));
+        RestRequest request = new RestRequest(RequestMethod.POST, PATH_SOLVE, params);
+        request.addContent(content);
+        request.execute(new RequestCallback() {
+            @Override
+            public void onResponse(RequestResponse response) {
+                if (response != null) {
+                    if (response.getCode() == HttpsURLConnection.HTTP_OK) {
+                        pendingBoolean.setValue(true);
+                    }
+                }
+                pendingBoolean.setPending(false);
+            }
+
+            @Override
+            public void onInternalError() {
+                // dont do shit
+                pendingBoolean.setPending(false);
+            }
+        });
+        //noinspection StatementWithEmptyBody
+        while (pendingBoolean.isPending()) {
+        }
+        return pendingBoolean.getValue();
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.comandulli.lib.analyst.transport;
+
+/**
+ * A sync transport able to stream a body already in its wire form.
+ * <p>
+ * The Synchronized action analyst {@see com.comandulli.lib.analyst.SynchronizedActionAnalyst} uses it
+ * to upload events from its wire spool without building them as JSON objects.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public interface StreamingSyncTransport extends SyncTransport {
+
+    /**
+     * Submits the solution of an enigma together with the events, streaming the body.
+     *
+     * @param serial   the identifier of the device
+     * @param solution the solution
+     * @param id       the id of the enigma
+     * @param body     the events and their metadata, as JSON
+     * @return if the server accepted the solution and the events
+     */
+    boolean submitSolution(String serial, String solution, int id, WireBody body);
+
+}
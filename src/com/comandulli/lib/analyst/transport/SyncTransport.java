@@ -0,0 +1,37 @@
+package com.comandulli.lib.analyst.transport;
+
+import org.json.JSONObject;
+
+/**
+ * The transport used by the Synchronized action analyst {@see com.comandulli.lib.analyst.SynchronizedActionAnalyst}
+ * to talk to the server.
+ * <p>
+ * A transport only carries the two requests of the enigma authentication,
+ * the analyst itself generates the serial, checks the enigma and solves it.
+ * Both methods are called from sync threads and may block.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public interface SyncTransport {
+
+    /**
+     * Requests an enigma for a device.
+     *
+     * @param serial the identifier of the device
+     * @return the enigma, null if the request failed
+     */
+    Enigma requestEnigma(String serial);
+
+    /**
+     * Submits the solution of an enigma together with the events.
+     *
+     * @param serial   the identifier of the device
+     * @param solution the solution
+     * @param id       the id of the enigma
+     * @param content  the events and their metadata
+     * @return if the server accepted the solution and the events
+     */
+    boolean submitSolution(String serial, String solution, int id, JSONObject content);
+
+}
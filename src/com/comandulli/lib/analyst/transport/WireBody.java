@@ -0,0 +1,30 @@
+package com.comandulli.lib.analyst.transport;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A request body already in its wire form, streamed to the connection
+ * instead of being built as a JSON object {@see StreamingSyncTransport}.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public interface WireBody {
+
+    /**
+     * Gets the length of the body, known before it is written.
+     *
+     * @return the length in bytes
+     */
+    long getLength();
+
+    /**
+     * Writes the whole body.
+     *
+     * @param target the channel of the request, left open
+     * @throws IOException if writing failed
+     */
+    void writeTo(WritableByteChannel target) throws IOException;
+
+}
@@ -0,0 +1,236 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.AnalyzeQueue.OverflowPolicy;
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.Priority;
+import com.comandulli.lib.analyst.store.MemoryEventStore;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Overloads the analyze queue with events arriving faster than the surveys handle them,
+ * checking the outcome and the counters of every overflow policy.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class AnalyzeQueueOverloadTest {
+
+    private static final EventType TYPE = new EventType(900, "Overload", EventType.SuperType.Terminated);
+    private static final int CAPACITY = 64;
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 2000;
+
+    private final List<Event> surveyed = Collections.synchronizedList(new ArrayList<Event>());
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    @Test
+    public void blockDropsAfterTheTimeout() throws Exception {
+        AnalyzeQueue queue = new AnalyzeQueue(CAPACITY, OverflowPolicy.Block);
+        queue.setBlockTimeout(5);
+        start(queue);
+        int offered = stallAndOffer(queue, CAPACITY * 2);
+        assertEquals(offered, queue.getAcceptedCount() + queue.getDroppedCount());
+        assertEquals(queue.getDroppedCount(), queue.getTimedOutCount());
+        assertTrue(queue.getTimedOutCount() >= CAPACITY - 1);
+        release(queue);
+        assertEquals(queue.getAcceptedCount(), surveyed.size());
+    }
+
+    @Test
+    public void dropNewestKeepsTheFirstEvents() throws Exception {
+        AnalyzeQueue queue = new AnalyzeQueue(CAPACITY, OverflowPolicy.DropNewest);
+        start(queue);
+        int offered = stallAndOffer(queue, CAPACITY * 4);
+        assertEquals(offered, queue.getAcceptedCount() + queue.getDroppedCount());
+        assertTrue(queue.getDepth() <= CAPACITY);
+        release(queue);
+        assertEquals(queue.getAcceptedCount(), surveyed.size());
+        for (int i = 0; i < surveyed.size(); i++) {
+            assertEquals(i + 1, surveyed.get(i).getId());
+        }
+    }
+
+    @Test
+    public void dropOldestKeepsTheLastEvents() throws Exception {
+        AnalyzeQueue queue = new AnalyzeQueue(CAPACITY, OverflowPolicy.DropOldest);
+        start(queue);
+        int offered = stallAndOffer(queue, CAPACITY * 4);
+        assertEquals(offered, queue.getAcceptedCount());
+        assertEquals(CAPACITY, queue.getDepth());
+        release(queue);
+        assertEquals(offered - queue.getDroppedCount(), surveyed.size());
+        Event last = surveyed.get(surveyed.size() - 1);
+        assertEquals(offered, last.getId());
+        assertEquals(offered - CAPACITY + 1, surveyed.get(surveyed.size() - CAPACITY).getId());
+    }
+
+    @Test
+    public void dropOldestIgnoresQueuedTasks() throws Exception {
+        AnalyzeQueue queue = new AnalyzeQueue(CAPACITY, OverflowPolicy.DropOldest);
+        start(queue);
+        stall(queue);
+        final AtomicLong tasks = new AtomicLong();
+        for (int i = 0; i < CAPACITY * 2; i++) {
+            queue.execute(new Runnable() {
+                @Override
+                public void run() {
+                    tasks.incrementAndGet();
+                }
+            });
+        }
+        for (int i = 0; i < CAPACITY + 10; i++) {
+            assertTrue(queue.offer(newEvent(), AnalyzeQueueOverloadTest.class));
+        }
+        assertEquals(CAPACITY, queue.getDepth());
+        assertEquals(10, queue.getDroppedCount());
+        release(queue);
+        assertEquals(CAPACITY * 2, tasks.get());
+        assertEquals(CAPACITY, surveyed.size());
+    }
+
+    @Test
+    public void spillKeepsEveryEventInOrder() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "analyze-overload-" + System.nanoTime());
+        assertTrue(directory.mkdirs());
+        AnalyzeQueue queue = new AnalyzeQueue(CAPACITY, OverflowPolicy.Spill);
+        queue.setSpillDirectory(directory);
+        start(queue);
+        int offered = stallAndOffer(queue, CAPACITY * 8);
+        assertEquals(offered, queue.getAcceptedCount());
+        assertEquals(0, queue.getDroppedCount());
+        assertTrue(queue.getSpilledCount() > 0);
+        release(queue);
+        assertEquals(offered, surveyed.size());
+        for (int i = 0; i < offered; i++) {
+            Event event = surveyed.get(i);
+            assertEquals(i + 1, event.getId());
+            assertEquals(event.getId() * 1000, event.getNanoTime());
+            assertEquals(event.getId() % 3 == 0 ? Priority.Critical : null, event.getPriorityOverride());
+            assertEquals(String.valueOf(event.getId()), event.getData().getValue("sequence"));
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void countersAddUpUnderConcurrentOverload() throws Exception {
+        for (OverflowPolicy policy : new OverflowPolicy[]{OverflowPolicy.Block, OverflowPolicy.DropNewest, OverflowPolicy.DropOldest}) {
+            surveyed.clear();
+            AnalyzeQueue queue = new AnalyzeQueue(CAPACITY, policy);
+            queue.setBlockTimeout(1);
+            start(queue, true);
+            Thread[] producers = new Thread[PRODUCERS];
+            for (int i = 0; i < PRODUCERS; i++) {
+                producers[i] = new Thread(new Producer(queue));
+                producers[i].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            assertTrue(queue.awaitIdle(60000));
+            long offered = PRODUCERS * EVENTS_PER_PRODUCER;
+            assertEquals(offered, queue.getAcceptedCount() + (policy == OverflowPolicy.DropOldest ? 0 : queue.getDroppedCount()));
+            assertEquals(offered - queue.getDroppedCount(), surveyed.size());
+            assertTrue(policy + " never overflowed", queue.getDroppedCount() > 0);
+            queue.stop();
+        }
+    }
+
+    private void start(AnalyzeQueue queue) {
+        start(queue, false);
+    }
+
+    private void start(AnalyzeQueue queue, final boolean slow) {
+        ActionAnalyst analyst = new ActionAnalyst(null, new EventContractor(new MemoryEventStore()));
+        analyst.setDefaultSurvey(new ActionSurvey(analyst) {
+            @Override
+            public void survey(Event event, Class<?> activity) {
+                if (slow) {
+                    LockSupport.parkNanos(50000);
+                }
+                surveyed.add(event);
+            }
+        });
+        analyst.setAnalyzeQueue(queue);
+    }
+
+    /**
+     * Stalls the survey thread on a task, then offers events from the calling thread.
+     */
+    private int stallAndOffer(AnalyzeQueue queue, int count) throws InterruptedException {
+        stall(queue);
+        for (int i = 0; i < count; i++) {
+            queue.offer(newEvent(), AnalyzeQueueOverloadTest.class);
+        }
+        return count;
+    }
+
+    private void stall(AnalyzeQueue queue) throws InterruptedException {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        queue.execute(new Runnable() {
+            @Override
+            public void run() {
+                stalled.countDown();
+                await();
+            }
+        });
+        assertTrue(stalled.await(10, TimeUnit.SECONDS));
+    }
+
+    private void release(AnalyzeQueue queue) throws InterruptedException {
+        gate.countDown();
+        assertTrue(queue.awaitIdle(10000));
+        queue.stop();
+    }
+
+    private void await() {
+        try {
+            gate.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Event newEvent() {
+        long id = nextId.getAndIncrement();
+        Event event = new Event(TYPE, EventLogger.getCurrentTime(), new DataWrapper("sequence", String.valueOf(id)));
+        event.setId(id);
+        event.setTime(System.currentTimeMillis());
+        event.setNanoTime(id * 1000);
+        if (id % 3 == 0) {
+            event.setPriority(Priority.Critical);
+        }
+        return event;
+    }
+
+    private class Producer implements Runnable {
+        private final AnalyzeQueue queue;
+
+        private Producer(AnalyzeQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                queue.offer(newEvent(), AnalyzeQueueOverloadTest.class);
+            }
+        }
+    }
+
+}
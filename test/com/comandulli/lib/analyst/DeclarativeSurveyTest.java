@@ -0,0 +1,196 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+import com.comandulli.lib.analyst.store.MemoryEventStore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives surveys compiled from definitions through their transitions,
+ * checking the machine dispatch, the guards, the instances and the pending events they resolve.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class DeclarativeSurveyTest {
+
+    private static final EventType STARTED = new EventType(1100, "Started", SuperType.Open);
+    private static final EventType ENDED = new EventType(2100, "Ended", SuperType.Close);
+    private static final EventType CANCELLED = new EventType(2101, "Cancelled", SuperType.Close);
+    private static final EventType SUBMITTED = new EventType(1101, "Submitted", SuperType.Open);
+
+    private final ActionAnalyst analyst = newAnalyst();
+
+    @Test
+    public void machineDispatchesByStateSlotAndGuard() {
+        SurveyMachine machine = registerForm().compile();
+        int idle = machine.getState("Idle");
+        int filling = machine.getState("Filling");
+        assertEquals(0, idle);
+        assertEquals(2, machine.getStateCount());
+        assertEquals(-1, machine.getState("Unknown"));
+        int open = machine.callbackSlot(SuperType.Open);
+        int close = machine.callbackSlot(SuperType.Close);
+        assertEquals(filling, machine.getTarget(machine.transition(idle, open, null)));
+        assertEquals(-1, machine.transition(idle, close, null));
+        // the guarded transition is only taken when the data holds its key, the next alternative otherwise
+        int finished = machine.transition(filling, close, new DataWrapper("finished", "true"));
+        int unfinished = machine.transition(filling, close, new DataWrapper("other", "true"));
+        assertEquals(unfinished, machine.transition(filling, close, null));
+        assertEquals(idle, machine.getTarget(finished));
+        assertEquals(idle, machine.getTarget(unfinished));
+        assertTrue(finished != unfinished);
+        assertEquals(-1, machine.eventSlot(STARTED.getCode()));
+        assertEquals(-1, machine.transition(idle, -1, null));
+    }
+
+    @Test
+    public void eventTriggersGetSlotsAfterTheSuperTypes() {
+        SurveyMachine machine = new SurveyDefinition()
+                .on("Idle", SUBMITTED, "Sent").sync(ENDED)
+                .compile();
+        int slot = machine.eventSlot(SUBMITTED.getCode());
+        assertEquals(SuperType.values().length, slot);
+        assertEquals(machine.getState("Sent"), machine.getTarget(machine.transition(0, slot, null)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void compilingWithoutTransitionsFails() {
+        new SurveyDefinition().compile();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void actionsNeedATransition() {
+        new SurveyDefinition().pend(STARTED);
+    }
+
+    @Test
+    public void surveyPendsThenResolvesOnTheGuardedTransition() {
+        DeclarativeSurvey survey = new DeclarativeSurvey(analyst, registerForm().compile());
+        survey.open(null);
+        assertEquals("Filling", survey.getState());
+        Event started = analyst.searchPendingEvent(STARTED.getCode());
+        assertNotNull(started);
+        survey.close(new DataWrapper("finished", "true"));
+        assertEquals("Idle", survey.getState());
+        assertEquals(0, analyst.getPendingSize());
+        assertEquals(2, analyst.getSyncSize());
+        assertEquals(STARTED.getCode(), analyst.getToSyncAsArray()[0].getType().getCode());
+        assertEquals(ENDED.getCode(), analyst.getToSyncAsArray()[1].getType().getCode());
+        survey.open(null);
+        survey.close(null);
+        assertEquals(CANCELLED.getCode(), analyst.getToSyncAsArray()[3].getType().getCode());
+    }
+
+    @Test
+    public void triggersWithoutTransitionFallBackToTheDefaultSurvey() {
+        final List<String> fallbacks = new ArrayList<>();
+        analyst.setDefaultSurvey(new ActionSurvey(analyst) {
+            @Override
+            public void close(DataWrapper data) {
+                fallbacks.add("close");
+            }
+
+            @Override
+            public void pause(DataWrapper data) {
+                fallbacks.add("pause");
+            }
+        });
+        DeclarativeSurvey survey = new DeclarativeSurvey(analyst, registerForm().compile());
+        survey.close(null);
+        assertEquals("Idle", survey.getState());
+        assertEquals(0, analyst.getPendingSize());
+        survey.open(null);
+        survey.pause(null);
+        assertEquals("Filling", survey.getState());
+        assertEquals(Arrays.asList("close", "pause"), fallbacks);
+    }
+
+    @Test
+    public void instancesKeepTheirOwnState() {
+        DeclarativeSurvey survey = new DeclarativeSurvey(analyst, registerForm().instancesBy("form").compile());
+        survey.open(new DataWrapper("form", "a"));
+        survey.open(new DataWrapper("form", "b"));
+        assertEquals("Filling", survey.getState("a"));
+        assertEquals("Filling", survey.getState("b"));
+        assertEquals(2, analyst.getPendingSize());
+        DataWrapper finished = new DataWrapper("form", "a");
+        finished.putValue("finished", "true");
+        survey.close(finished);
+        assertEquals("Idle", survey.getState("a"));
+        assertEquals("Filling", survey.getState("b"));
+        // the pending event of the instance itself is resolved, not the oldest one of the code
+        assertEquals(1, analyst.getPendingSize());
+        assertEquals("b", analyst.searchPendingEvent(STARTED.getCode()).getData().getValue("form"));
+        assertEquals("Idle", survey.getState("unknown"));
+    }
+
+    @Test
+    public void pendingAgainExpiresTheOlderEvent() {
+        SurveyMachine machine = new SurveyDefinition().instancesBy("form")
+                .on("Idle", SuperType.Open, "Filling").pend(STARTED)
+                .on("Filling", SuperType.Open, "Filling").pend(STARTED)
+                .on("Filling", SuperType.Close, "Idle").resolve(STARTED).sync(ENDED)
+                .compile();
+        DeclarativeSurvey survey = new DeclarativeSurvey(analyst, machine);
+        DataWrapper form = new DataWrapper("form", "a");
+        survey.open(form);
+        Event first = analyst.searchPendingEvent(STARTED.getCode());
+        survey.open(form);
+        Event second = analyst.searchPendingEvent(STARTED.getCode());
+        assertNotSame(first, second);
+        assertEquals("Filling", survey.getState("a"));
+        assertEquals(1, analyst.getPendingSize());
+        // the older one is synced as its Terminated type
+        assertEquals(1, analyst.getSyncSize());
+        assertEquals(STARTED.getAsNewType(SuperType.Terminated).getCode(), analyst.getToSyncAsArray()[0].getType().getCode());
+        survey.expire(second);
+        assertEquals("Idle", survey.getState("a"));
+        assertNull(analyst.searchPendingEvent(STARTED.getCode()));
+        assertEquals(2, analyst.getSyncSize());
+    }
+
+    @Test
+    public void eventsLeftPendingByAPreviousRunAreResolvedByCode() {
+        Event left = new Event(STARTED, EventLogger.getCurrentTime(), null);
+        left.setId(1);
+        ArrayList<Event> pending = new ArrayList<>();
+        pending.add(left);
+        analyst.init(pending, new ArrayList<Event>());
+        SurveyMachine machine = new SurveyDefinition()
+                .on("Idle", SuperType.Close, "Idle").resolve(STARTED)
+                .compile();
+        DeclarativeSurvey survey = new DeclarativeSurvey(analyst, machine);
+        survey.close(null);
+        assertEquals(0, analyst.getPendingSize());
+        assertEquals(1, analyst.getSyncSize());
+        assertEquals(1, analyst.getToSyncAsArray()[0].getId());
+    }
+
+    private static SurveyDefinition registerForm() {
+        return new SurveyDefinition()
+                .on("Idle", SuperType.Open, "Filling").pend(STARTED)
+                .on("Filling", SuperType.Close, "Idle").with("finished").resolve(STARTED).sync(ENDED)
+                .on("Filling", SuperType.Close, "Idle").resolve(STARTED).sync(CANCELLED);
+    }
+
+    private static ActionAnalyst newAnalyst() {
+        ActionAnalyst analyst = new ActionAnalyst(null, new EventContractor(new MemoryEventStore()));
+        analyst.init(new ArrayList<Event>(), new ArrayList<Event>());
+        return analyst;
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.TimeStringFormatter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the clocks events are stamped with: the lag of the coarse clock, the per thread time of the virtual one,
+ * and timestamps formatted concurrently.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class EventClockTest {
+
+    private static final long RESOLUTION = 5;
+    // scheduling delays the ticker beyond its resolution on a loaded machine
+    private static final long SLACK = 500;
+
+    @Test
+    public void coarseClockLagsByAboutItsResolution() throws Exception {
+        final AtomicInteger threads = new AtomicInteger();
+        CoarseClock clock = new CoarseClock(RESOLUTION, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                threads.incrementAndGet();
+                Thread thread = new Thread(runnable, "TestClock");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            assertEquals(1, threads.get());
+            assertEquals(RESOLUTION, clock.getResolution());
+            long first = clock.currentTimeMillis();
+            for (int i = 0; i < 20; i++) {
+                long now = System.currentTimeMillis();
+                long coarse = clock.currentTimeMillis();
+                assertTrue(coarse <= System.currentTimeMillis());
+                assertTrue(now - coarse <= RESOLUTION + SLACK);
+                Thread.sleep(RESOLUTION);
+            }
+            assertTrue(clock.currentTimeMillis() > first);
+            long before = clock.nanoTime();
+            assertTrue(clock.nanoTime() >= before);
+        } finally {
+            clock.stop();
+        }
+    }
+
+    @Test
+    public void stoppedCoarseClockKeepsItsLastTime() throws Exception {
+        CoarseClock clock = new CoarseClock(RESOLUTION);
+        clock.stop();
+        Thread.sleep(RESOLUTION * 4);
+        long stopped = clock.currentTimeMillis();
+        Thread.sleep(RESOLUTION * 4);
+        assertEquals(stopped, clock.currentTimeMillis());
+    }
+
+    @Test
+    public void virtualClockKeepsATimePerThread() throws Exception {
+        final VirtualClock clock = new VirtualClock();
+        clock.set(1000);
+        clock.advance(500);
+        assertEquals(1500, clock.currentTimeMillis());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500), clock.nanoTime());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long other = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    // a thread that never set a time sees the epoch
+                    long unset = clock.currentTimeMillis();
+                    clock.set(9000);
+                    return unset;
+                }
+            }).get();
+            assertEquals(0, other);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1500, clock.currentTimeMillis());
+    }
+
+    @Test
+    public void timestampsFormatConcurrently() throws Exception {
+        final EventDateFormat reference = new EventDateFormat(TimeStringFormatter.MY_SQL_DATETIME_FORMAT, Locale.UK, TimeStringFormatter.UNIVERSAL_TIME_ZONE);
+        final long start = 1500000000000L;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int offset = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int mismatches = 0;
+                        for (int i = 0; i < 20000; i++) {
+                            // several readings per second, the cached timestamp is reused until the second changes
+                            long millis = start + (i + offset) * 250L;
+                            String expected;
+                            synchronized (reference) {
+                                expected = reference.format(new Date(millis));
+                            }
+                            if (!expected.equals(EventLogger.formatTime(millis))) {
+                                mismatches++;
+                            }
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(0, (int) result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+import com.comandulli.lib.analyst.store.MemoryEventStore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds funnel steps across periods, checking every step is counted in the period its user entered
+ * and periods are only synced once their users can no longer move forward.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class FunnelAggregatorTest {
+
+    private static final EventType STARTED = new EventType(1300, "Started", SuperType.Open);
+    private static final EventType FILLED = new EventType(1301, "Filled", SuperType.Open);
+    private static final EventType ENDED = new EventType(3300, "Ended", SuperType.Terminated);
+    private static final long START = 1500000000000L;
+    private static final long PERIOD = 1000;
+    private static final long WINDOW = 300;
+
+    private final ActionAnalyst analyst = newAnalyst();
+    private final FunnelAggregator funnels = new FunnelAggregator(analyst, PERIOD);
+
+    public FunnelAggregatorTest() {
+        funnels.addFunnel("register", WINDOW, STARTED, FILLED, ENDED);
+    }
+
+    @Test
+    public void stepsCountInThePeriodTheUserEntered() {
+        step(0, "u2", STARTED);
+        step(800, "u1", STARTED);
+        step(900, "u1", FILLED);
+        assertCounts(new int[]{2, 1, 0});
+        // the period ends, u1 finishes in the next one
+        step(1050, "u1", ENDED);
+        assertCounts(new int[]{0, 0, 0});
+        assertEquals(1, funnels.getInProgress("register"));
+        step(1100, "u3", STARTED);
+        assertCounts(new int[]{1, 0, 0});
+        assertEquals(0, funnelEvents().size());
+        // a window after the first period ended its users can no longer move forward, u2 expired
+        step(1400, "u3", FILLED);
+        List<Event> emitted = funnelEvents();
+        assertEquals(1, emitted.size());
+        DataWrapper first = emitted.get(0).getData();
+        assertEquals("2,1,1", first.getValue("counts"));
+        assertEquals("1", first.getValue("expired"));
+        assertEquals("0", first.getValue("progress"));
+        assertEquals(EventLogger.formatTime(START), first.getValue("from"));
+        assertEquals(EventLogger.formatTime(START + 1050), first.getValue("to"));
+        assertCounts(new int[]{1, 1, 0});
+    }
+
+    @Test
+    public void flushSyncsEveryPeriodWithTheUsersInProgress() {
+        step(0, "u1", STARTED);
+        step(1000, "u2", STARTED);
+        step(1100, "u2", FILLED);
+        funnels.flush();
+        List<Event> emitted = funnelEvents();
+        assertEquals(2, emitted.size());
+        assertEquals("1,0,0", emitted.get(0).getData().getValue("counts"));
+        assertEquals("1,1,0", emitted.get(1).getData().getValue("counts"));
+        assertEquals("1", emitted.get(1).getData().getValue("progress"));
+        assertEquals(0, funnels.getInProgress("register"));
+        assertCounts(new int[]{0, 0, 0});
+        // nothing is left to sync twice
+        funnels.flush();
+        assertEquals(2, funnelEvents().size());
+    }
+
+    @Test
+    public void usersOutsideTheWindowStartOver() {
+        step(0, "u1", STARTED);
+        step(WINDOW + 1, "u1", FILLED);
+        assertCounts(new int[]{1, 0, 0});
+        assertEquals(0, funnels.getInProgress("register"));
+        step(WINDOW + 2, "u1", STARTED);
+        step(WINDOW + 3, "u1", FILLED);
+        step(WINDOW + 4, "u1", ENDED);
+        assertCounts(new int[]{2, 1, 1});
+        assertEquals(0.5, funnels.getConversionRate("register"), 0);
+    }
+
+    @Test
+    public void noStepCountExceedsTheEntriesOfItsPeriod() {
+        for (int i = 0; i < 40; i++) {
+            long time = i * 97;
+            step(time, "u" + i, STARTED);
+            step(time + 250, "u" + (i - 1), FILLED);
+            step(time + 280, "u" + (i - 2), ENDED);
+        }
+        funnels.flush();
+        for (Event event : funnelEvents()) {
+            String[] counts = event.getData().getValue("counts").split(",");
+            assertTrue(Integer.parseInt(counts[1]) <= Integer.parseInt(counts[0]));
+            assertTrue(Integer.parseInt(counts[2]) <= Integer.parseInt(counts[1]));
+        }
+    }
+
+    private void step(long offset, String user, EventType type) {
+        long time = START + offset;
+        Event event = new Event(type, EventLogger.formatTime(time), new DataWrapper("user", user));
+        event.setTime(time);
+        funnels.onEvent(event, null);
+    }
+
+    private void assertCounts(int[] counts) {
+        assertArrayEquals(counts, funnels.getStepCounts("register"));
+    }
+
+    private List<Event> funnelEvents() {
+        List<Event> events = new ArrayList<>();
+        for (Event event : analyst.getToSyncAsArray()) {
+            if (event.getType().getCode() == FunnelAggregator.EVENT_FUNNEL.getCode()) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    private static ActionAnalyst newAnalyst() {
+        ActionAnalyst analyst = new ActionAnalyst(null, new EventContractor(new MemoryEventStore()));
+        analyst.init(new ArrayList<Event>(), new ArrayList<Event>());
+        return analyst;
+    }
+
+}
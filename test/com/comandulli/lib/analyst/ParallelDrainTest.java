@@ -0,0 +1,147 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.store.MemoryEventStore;
+import com.comandulli.lib.analyst.transport.ContentEncoder;
+import com.comandulli.lib.analyst.transport.Enigma;
+import com.comandulli.lib.analyst.transport.HttpSyncTransport;
+import com.comandulli.lib.analyst.transport.LocalSyncServer;
+import com.comandulli.lib.analyst.transport.SyncTransport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains a bulk backlog to a local sync server failing a seeded share of its requests,
+ * over one and over several connections, and checks every event is acknowledged once and no batch is lost.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class ParallelDrainTest {
+
+    private static final EventType TYPE = new EventType(901, "Drain", EventType.SuperType.Terminated, EventType.Priority.Bulk);
+    private static final int EVENTS = 1000;
+    private static final int BATCH = 100;
+    private static final int CONNECTIONS = 4;
+    private static final long LATENCY = 5;
+    private static final double ERROR_RATE = 0.2;
+    private static final long SEED = 901;
+    private static final long TIMEOUT = 60000;
+
+    @Test
+    public void drainAcknowledgesEveryEventOnce() throws Exception {
+        for (int connections : new int[]{1, CONNECTIONS}) {
+            LocalSyncServer server = newServer();
+            try {
+                AtomicIntegerArray acknowledged = new AtomicIntegerArray(EVENTS + 1);
+                SynchronizedActionAnalyst analyst = newAnalyst(server, connections, acknowledged);
+                assertEquals(Completion.Stage.Synced, analyst.drain(TIMEOUT).get());
+                assertTrue(server.getFailedCount() > 0);
+                assertEquals(0, analyst.getSyncSize());
+                assertEquals(EVENTS, server.getAcceptedEvents());
+                for (int id = 1; id <= EVENTS; id++) {
+                    assertEquals(1, acknowledged.get(id));
+                }
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    public void failuresLoseNoBatch() throws Exception {
+        LocalSyncServer server = newServer();
+        try {
+            AtomicIntegerArray acknowledged = new AtomicIntegerArray(EVENTS + 1);
+            SynchronizedActionAnalyst analyst = newAnalyst(server, CONNECTIONS, acknowledged);
+            // a shutdown uploads once without retrying, it ends once the lanes are idle
+            analyst.shutdown().get();
+            assertTrue(server.getFailedCount() > 0);
+            assertTrue(analyst.getSyncSize() > 0);
+            boolean[] kept = new boolean[EVENTS + 1];
+            for (long id : analyst.getToSyncIds()) {
+                kept[(int) id] = true;
+            }
+            // every event is either acknowledged once or still to sync, never both nor neither
+            for (int id = 1; id <= EVENTS; id++) {
+                assertEquals(kept[id] ? 0 : 1, acknowledged.get(id));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static LocalSyncServer newServer() throws Exception {
+        LocalSyncServer server = new LocalSyncServer("defaultenigma", "defaultsolution");
+        server.start(0);
+        server.setLatency(LATENCY);
+        server.setErrorRate(ERROR_RATE);
+        server.setSeed(SEED);
+        return server;
+    }
+
+    private static SynchronizedActionAnalyst newAnalyst(LocalSyncServer server, int connections, final AtomicIntegerArray acknowledged) {
+        SynchronizedActionAnalyst analyst = new SynchronizedActionAnalyst(null, new EventContractor(new MemoryEventStore()));
+        final SyncTransport http = new HttpSyncTransport(server.getUrl());
+        analyst.setTransport(new SyncTransport() {
+            @Override
+            public Enigma requestEnigma(String serial) {
+                return http.requestEnigma(serial);
+            }
+
+            @Override
+            public boolean submitSolution(String serial, String solution, int id, JSONObject content) {
+                if (!http.submitSolution(serial, solution, id, content)) {
+                    return false;
+                }
+                try {
+                    // the backlog ids are consecutive, so a batch holds every id from its first to its last
+                    JSONObject header = content.getJSONObject("header");
+                    assertEquals(header.getLong("last") - header.getLong("first") + 1, header.getLong("count"));
+                    for (long event = header.getLong("first"); event <= header.getLong("last"); event++) {
+                        acknowledged.incrementAndGet((int) event);
+                    }
+                } catch (JSONException e) {
+                    throw new IllegalStateException(e);
+                }
+                return true;
+            }
+        });
+        analyst.setIdentifier("drain");
+        analyst.setContentEncoder(new ContentEncoder() {
+            @Override
+            public String encode(byte[] bytes) {
+                // the server only reads the header, any text form of the content does
+                StringBuilder hex = new StringBuilder(bytes.length * 2);
+                for (byte value : bytes) {
+                    hex.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+                }
+                return hex.toString();
+            }
+        });
+        analyst.setBulkBatching(BATCH, Long.MAX_VALUE / 2);
+        analyst.setBulkCompression(true);
+        analyst.setParallelDrain(connections, BATCH, BATCH);
+        List<Event> backlog = new ArrayList<>();
+        for (int i = 1; i <= EVENTS; i++) {
+            Event event = new Event(TYPE, EventLogger.getCurrentTime(), new DataWrapper("sequence", String.valueOf(i)));
+            event.setId(i);
+            event.setSync(true);
+            backlog.add(event);
+        }
+        analyst.init(new ArrayList<Event>(), backlog);
+        return analyst;
+    }
+
+}
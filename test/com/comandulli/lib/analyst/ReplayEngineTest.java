@@ -0,0 +1,136 @@
+package com.comandulli.lib.analyst;
+
+import com.comandulli.lib.analyst.entity.DataWrapper;
+import com.comandulli.lib.analyst.entity.Event;
+import com.comandulli.lib.analyst.entity.EventType;
+import com.comandulli.lib.analyst.entity.EventType.SuperType;
+import com.comandulli.lib.analyst.store.EventExport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays recorded sessions through a declarative survey,
+ * checking the outcome only depends on the events and never touches the clock of live logging.
+ *
+ * @author <a href="mailto:caioa.comandulli@gmail.com">Caio Comandulli</a>
+ * @since 1.1
+ */
+public class ReplayEngineTest {
+
+    private static final EventType OPENED = new EventType(1200, "Opened", SuperType.Open);
+    private static final EventType SHOWN = new EventType(3200, "Shown", SuperType.Terminated);
+    private static final long START = 1500000000000L;
+    private static final int EVENTS = 5000;
+    private static final int SESSIONS = 50;
+
+    private final SurveyMachine machine = new SurveyDefinition()
+            .on("Out", EventLogger.EVENT_VIEW_RESUME, "In").pend(OPENED)
+            .on("In", EventLogger.EVENT_VIEW_PAUSE, "Out").with("done").resolve(OPENED).sync(SHOWN)
+            .on("In", EventLogger.EVENT_VIEW_PAUSE, "Out").discard(OPENED)
+            .compile();
+
+    @Test
+    public void outcomeDoesNotDependOnParallelismNorOrder() throws Exception {
+        List<Event> events = record();
+        ReplayEngine engine = newEngine();
+        engine.setParallelism(1);
+        ReplayResult sequential = engine.replay(events);
+        engine.setParallelism(8);
+        List<Event> shuffled = new ArrayList<>(events);
+        Collections.shuffle(shuffled, new Random(7));
+        ReplayResult parallel = engine.replay(shuffled);
+        assertEquals(SESSIONS, parallel.getPartitions().size());
+        assertEquals(EVENTS, parallel.getEventCount());
+        assertEquals(0, parallel.getErrorCount());
+        assertTrue(parallel.describe().size() > 0);
+        assertEquals(sequential.describe(), parallel.describe());
+    }
+
+    @Test
+    public void exportedEventsReplayTheSame() throws Exception {
+        List<Event> events = record();
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        EventExport.write(events, export);
+        List<Event> loaded = EventExport.read(new ByteArrayInputStream(export.toByteArray()));
+        ReplayEngine engine = newEngine();
+        assertTrue(engine.replay(events).matches(engine.replay(loaded)));
+    }
+
+    @Test
+    public void eventsCreatedBySurveysCarryRecordedTimes() throws Exception {
+        List<Event> events = record();
+        ReplayResult result = newEngine().replay(events);
+        for (ReplayResult.Partition partition : result.getPartitions()) {
+            for (Event event : partition.getSynced()) {
+                long time = EventLogger.getTime(event);
+                assertTrue(time >= START / 1000 * 1000 && time <= START + EVENTS * 7);
+            }
+        }
+    }
+
+    @Test
+    public void liveLoggingKeepsItsClock() throws Exception {
+        final EventClock live = EventLogger.getClock();
+        final AtomicInteger checked = new AtomicInteger();
+        ReplayEngine engine = new ReplayEngine(new ReplayEngine.SurveySetup() {
+            @Override
+            public void setup(final ActionAnalyst analyst) {
+                analyst.setDefaultSurvey(new ActionSurvey(analyst) {
+                    @Override
+                    public void survey(Event event, Class<?> activity) {
+                        // another thread logging live meanwhile still reads its own clock
+                        assertSame(live, EventLogger.getClock());
+                        assertEquals(event.getTime(), analyst.getClock().currentTimeMillis());
+                        checked.incrementAndGet();
+                    }
+                });
+            }
+        });
+        engine.setPartitionKey("session");
+        engine.replay(record());
+        assertEquals(EVENTS, checked.get());
+        assertSame(live, EventLogger.getClock());
+    }
+
+    private ReplayEngine newEngine() {
+        ReplayEngine engine = new ReplayEngine(new ReplayEngine.SurveySetup() {
+            @Override
+            public void setup(ActionAnalyst analyst) {
+                analyst.setDefaultSurvey(new DeclarativeSurvey(analyst, machine));
+            }
+        });
+        engine.setPartitionKey("session");
+        return engine;
+    }
+
+    private static List<Event> record() {
+        List<Event> events = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < EVENTS; i++) {
+            DataWrapper data = new DataWrapper("session", "s" + random.nextInt(SESSIONS));
+            boolean resume = random.nextBoolean();
+            if (!resume && random.nextBoolean()) {
+                data.putValue("done", "1");
+            }
+            long time = START + i * 7;
+            Event event = new Event(resume ? EventLogger.EVENT_VIEW_RESUME : EventLogger.EVENT_VIEW_PAUSE, EventLogger.formatTime(time), data);
+            event.setTime(time);
+            event.setId(i + 1);
+            events.add(event);
+        }
+        return events;
+    }
+
+}